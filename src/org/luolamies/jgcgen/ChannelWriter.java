@@ -0,0 +1,249 @@
+/*
+ * This file is part of JGCGen.
+ *
+ * JGCGen is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JGCGen is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JGCGen.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.luolamies.jgcgen;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.Arrays;
+
+/**
+ * A writer that encodes characters into a large direct buffer and
+ * writes it to a channel.
+ * <p>G-code is almost entirely ASCII, so ASCII characters are copied straight
+ * into the buffer when the charset allows it. Other characters are encoded
+ * with the charset encoder.
+ * <p>The number of bytes written and the time spent writing them are
+ * recorded for throughput reporting.
+ * <p>This class is not thread safe.
+ */
+public final class ChannelWriter extends Writer {
+	static private final int BUFFER = 1 << 18;
+	
+	private final WritableByteChannel channel;
+	private final ByteBuffer buffer;
+	private final CharsetEncoder encoder;
+	private final boolean ascii;
+	
+	private long bytes, nanos;
+	private boolean closed;
+	
+	/** High surrogate left over from the previous write, or 0 */
+	private char pending;
+	
+	/**
+	 * Create a writer for a channel
+	 * @param channel the output channel
+	 * @param charset character set
+	 */
+	public ChannelWriter(WritableByteChannel channel, Charset charset) {
+		this.channel = channel;
+		this.buffer = ByteBuffer.allocateDirect(BUFFER);
+		this.encoder = charset.newEncoder()
+			.onMalformedInput(CodingErrorAction.REPLACE)
+			.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		this.ascii = isAsciiCompatible(charset);
+	}
+	
+	/**
+	 * Create a writer for an output stream
+	 * @param out the output stream
+	 * @param charset character set
+	 */
+	public ChannelWriter(OutputStream out, Charset charset) {
+		this(Channels.newChannel(out), charset);
+	}
+	
+	/**
+	 * Does the charset encode ASCII characters as single bytes of the same value?
+	 */
+	static private boolean isAsciiCompatible(Charset charset) {
+		byte[] ascii = new byte[128];
+		char[] chars = new char[128];
+		for(int i=0;i<128;++i) {
+			ascii[i] = (byte)i;
+			chars[i] = (char)i;
+		}
+		return charset.canEncode() && Arrays.equals(ascii, new String(chars).getBytes(charset));
+	}
+	
+	@Override
+	public void write(int c) throws IOException {
+		ensureOpen();
+		if(pending!=0)
+			encode(CharBuffer.wrap(new char[] { takePending(), (char)c }));
+		else if(ascii && c < 0x80) {
+			if(!buffer.hasRemaining())
+				drain();
+			buffer.put((byte)c);
+		} else
+			encode(CharBuffer.wrap(new char[] { (char)c }));
+	}
+	
+	@Override
+	public void write(char[] cbuf, int off, int len) throws IOException {
+		ensureOpen();
+		final int end = off + len;
+		int i = off;
+		if(pending!=0 && i < end)
+			encode(CharBuffer.wrap(new char[] { takePending(), cbuf[i++] }));
+		while(i < end) {
+			if(ascii) {
+				int n = Math.min(end - i, buffer.remaining());
+				if(n==0) {
+					drain();
+					continue;
+				}
+				final int stop = i + n;
+				while(i < stop && cbuf[i] < 0x80)
+					buffer.put((byte)cbuf[i++]);
+				if(i==stop)
+					continue;
+			}
+			// Encode a run of non-ASCII characters
+			int j = i + 1;
+			while(j < end && (!ascii || cbuf[j] >= 0x80))
+				++j;
+			// A high surrogate followed by ASCII is malformed: let the encoder see both
+			if(j < end && Character.isHighSurrogate(cbuf[j-1]))
+				++j;
+			encode(CharBuffer.wrap(cbuf, i, j - i));
+			i = j;
+		}
+	}
+	
+	@Override
+	public void write(String str, int off, int len) throws IOException {
+		ensureOpen();
+		final int end = off + len;
+		int i = off;
+		if(pending!=0 && i < end)
+			encode(CharBuffer.wrap(new char[] { takePending(), str.charAt(i++) }));
+		while(i < end) {
+			if(ascii) {
+				int n = Math.min(end - i, buffer.remaining());
+				if(n==0) {
+					drain();
+					continue;
+				}
+				final int stop = i + n;
+				char c;
+				while(i < stop && (c=str.charAt(i)) < 0x80) {
+					buffer.put((byte)c);
+					++i;
+				}
+				if(i==stop)
+					continue;
+			}
+			int j = i + 1;
+			while(j < end && (!ascii || str.charAt(j) >= 0x80))
+				++j;
+			if(j < end && Character.isHighSurrogate(str.charAt(j-1)))
+				++j;
+			encode(CharBuffer.wrap(str, i, j));
+			i = j;
+		}
+	}
+	
+	/**
+	 * Encode characters with the charset encoder.
+	 * <p>A trailing high surrogate is kept until the next write so that
+	 * surrogate pairs split between writes are encoded correctly.
+	 */
+	private void encode(CharBuffer chars) throws IOException {
+		while(encoder.encode(chars, buffer, false).isOverflow())
+			drain();
+		if(chars.hasRemaining())
+			pending = chars.get();
+	}
+	
+	private char takePending() {
+		final char c = pending;
+		pending = 0;
+		return c;
+	}
+	
+	/**
+	 * Encode any leftover character and flush the encoder state
+	 */
+	private void endEncoding() throws IOException {
+		final CharBuffer rest = pending!=0 ? CharBuffer.wrap(new char[] { takePending() }) : CharBuffer.allocate(0);
+		while(encoder.encode(rest, buffer, true).isOverflow())
+			drain();
+		while(encoder.flush(buffer).isOverflow())
+			drain();
+	}
+	
+	/**
+	 * Write the buffer contents to the channel
+	 */
+	private void drain() throws IOException {
+		buffer.flip();
+		final long start = System.nanoTime();
+		while(buffer.hasRemaining())
+			bytes += channel.write(buffer);
+		nanos += System.nanoTime() - start;
+		buffer.clear();
+	}
+	
+	private void ensureOpen() throws IOException {
+		if(closed)
+			throw new IOException("Writer closed");
+	}
+	
+	@Override
+	public void flush() throws IOException {
+		ensureOpen();
+		drain();
+	}
+	
+	@Override
+	public void close() throws IOException {
+		if(closed)
+			return;
+		try {
+			endEncoding();
+			drain();
+			final long start = System.nanoTime();
+			channel.close();
+			nanos += System.nanoTime() - start;
+		} finally {
+			closed = true;
+		}
+	}
+	
+	/**
+	 * @return number of bytes written to the channel so far
+	 */
+	public long getBytesWritten() {
+		return bytes;
+	}
+	
+	/**
+	 * @return time spent writing to the channel in nanoseconds
+	 */
+	public long getWriteTime() {
+		return nanos;
+	}
+}
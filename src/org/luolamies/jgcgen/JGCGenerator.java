@@ -17,20 +17,21 @@
 package org.luolamies.jgcgen;
 
 import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.io.OutputStream;
-import java.io.OutputStreamWriter;
 import java.io.StringWriter;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.zip.GZIPOutputStream;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
@@ -62,6 +63,9 @@ public class JGCGenerator {
 	static private Logger logger;
 	
 	static public Logger getLogger() {
+		// Library use (e.g. tests) gets a quiet logger
+		if(logger==null)
+			logger = new Logger(false);
 		return logger;
 	}
 	
@@ -71,6 +75,7 @@ public class JGCGenerator {
 		
 		// Default flags
 		boolean split = false;
+		boolean gzip = false;
 		
 		// Output file name
 		String outputfile=null;
@@ -80,9 +85,12 @@ public class JGCGenerator {
 	
 		opts.addOption("h", false, "Show this help text");
 		opts.addOption("s", false, "Split output");
+		opts.addOption("z", false, "Compress output with gzip");
 		opts.addOption("o", true, "Output filename");
 		opts.addOption("v", false, "Verbose error messages");
 		opts.addOption("D", true, "Define variable (var=value)");
+		opts.addOption("j", true, "Number of worker threads (0 = one per processor)");
+		opts.addOption(null, "stats", false, "Print path statistics for each #g");
 		
 		CommandLineParser parser = new GnuParser();
 		CommandLine cmd;
@@ -115,8 +123,17 @@ public class JGCGenerator {
 			}
 		}
 		
+		if(cmd.hasOption('j'))
+			vars.put("threads", cmd.getOptionValue('j'));
+		
+		if(cmd.hasOption("stats"))
+			vars.put("stats", "true");
+		
 		if(cmd.hasOption('s'))
 			split = true;
+		
+		if(cmd.hasOption('z'))
+			gzip = true;
 				
 		logger = new Logger(cmd.hasOption('v'));
 		
@@ -204,7 +221,7 @@ public class JGCGenerator {
 			return;
 		}
 		
-		if(renderTemplate(inputfile, outputfile, template, split, vars)==false)
+		if(renderTemplate(inputfile, outputfile, template, split, gzip, vars)==false)
 			System.exit(1);
 	}
 	
@@ -214,11 +231,12 @@ public class JGCGenerator {
 	 * @param out output
 	 * @param template template to render
 	 * @param split enable split mode?
+	 * @param gzip compress the output?
 	 */
-	static public boolean renderTemplate(String input, String outfile, Template template, boolean split, Map<String, String> vars) {
+	static public boolean renderTemplate(String input, String outfile, Template template, boolean split, boolean gzip, Map<String, String> vars) {
 		int i = split ? 1 : 0;
 		do {
-			i = renderTemplate2(input, outfile, template, i, vars);
+			i = renderTemplate2(input, outfile, template, i, gzip, vars);
 		} while(i>0);
 		return i==0;
 	}
@@ -231,28 +249,42 @@ public class JGCGenerator {
 	 * @param template
 	 * @param vars
 	 * @param split
+	 * @param gzip
 	 * @return -1 on error, 0 when done, positive integer for the next split block
 	 */
 	@SuppressWarnings("unchecked")
-	static private int renderTemplate2(String input, String outfile, Template template, int split, Map<String, String> vars) {
+	static private int renderTemplate2(String input, String outfile, Template template, int split, boolean gzip, Map<String, String> vars) {
 		
 		// Decide output file name
-		OutputStream out;
-		if("-".equals(outfile))
-			out = System.out;
-		else {
-			String fname = outfile;
-			if(split>0) {
-				int i = fname.lastIndexOf('.');
-				fname = fname.substring(0, i) + "_" + split + fname.substring(i);
-			}
-			try {
-				out = new FileOutputStream(fname);
-			} catch(IOException e) {
-				System.err.println("Couldn't open " + fname + " for writing: " + e.getMessage());
-				return -1;
+		String fname = outfile;
+		WritableByteChannel out;
+		try {
+			if("-".equals(outfile)) {
+				if(gzip)
+					out = Channels.newChannel(new GZIPOutputStream(System.out, 1 << 16));
+				else
+					out = Channels.newChannel(System.out);
+			} else {
+				// Output file names ending in .gz are always compressed.
+				// The split number goes before the original extension.
+				if(fname.endsWith(".gz")) {
+					gzip = true;
+					fname = fname.substring(0, fname.length()-3);
+				}
+				if(split>0) {
+					int i = fname.lastIndexOf('.');
+					fname = fname.substring(0, i) + "_" + split + fname.substring(i);
+				}
+				if(gzip) {
+					fname = fname + ".gz";
+					out = Channels.newChannel(new GZIPOutputStream(new FileOutputStream(fname), 1 << 16));
+				} else
+					out = new FileOutputStream(fname).getChannel();
+				System.out.println("Generating " + fname + "...");
 			}
-			System.out.println("Generating " + fname + "...");
+		} catch(IOException e) {
+			System.err.println("Couldn't open " + fname + " for writing: " + e.getMessage());
+			return -1;
 		}
 		
 		// Initialize velocity context and set initial
@@ -278,7 +310,8 @@ public class JGCGenerator {
 		ctx.put("Import", Importer.class);
 		
 		// Render the template
-		BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(out));
+		ChannelWriter writer = new ChannelWriter(out, Charset.defaultCharset());
+		final long start = System.nanoTime();
 		try {
 			template.merge(ctx, writer);
 		} catch(Exception e) {
@@ -297,7 +330,15 @@ public class JGCGenerator {
 		// Clean up
 		try {
 			writer.close();
-		} catch (IOException e) { }
+		} catch (IOException e) {
+			System.err.println("Error writing " + fname + ": " + e.getMessage());
+			return -1;
+		}
+		logger.status(String.format("%s: %d bytes in %.2f s, %.2f s writing (%.1f MB/s)",
+				fname, writer.getBytesWritten(),
+				(System.nanoTime() - start) / 1e9,
+				writer.getWriteTime() / 1e9,
+				writer.getBytesWritten() / 1e6 / Math.max(writer.getWriteTime() / 1e9, 1e-9)));
 				
 		// Find the next split block number if in split mode
 		if(split>0) {
@@ -9,6 +9,7 @@ import org.apache.velocity.exception.ParseErrorException;
 import org.apache.velocity.exception.ResourceNotFoundException;
 import org.apache.velocity.runtime.directive.Directive;
 import org.apache.velocity.runtime.parser.node.Node;
+import org.luolamies.jgcgen.path.NumberFormatter;
 import org.nfunk.jep.JEP;
 import org.nfunk.jep.SymbolTable;
 import org.nfunk.jep.Variable;
@@ -61,11 +62,12 @@ public class Expression extends Directive {
 		if(store!=null)
 			ctx.put(store, parser.getValue());
 		else
-			out.write(String.format("%.3f", parser.getValue()));
+			out.write(FORMAT.format(parser.getValue()));
 		
 		return true;
 	}
 
+	static private final NumberFormatter FORMAT = new NumberFormatter(3, false);
 	static private final JEP parser = new JEP();
 	
 	static {
@@ -28,6 +28,11 @@ import org.apache.velocity.runtime.parser.node.Node;
 import org.luolamies.jgcgen.RenderException;
 import org.luolamies.jgcgen.path.Path;
 import org.luolamies.jgcgen.path.PathGenerator;
+import org.luolamies.jgcgen.path.PathStats;
+import org.luolamies.jgcgen.path.ReducingSink;
+import org.luolamies.jgcgen.path.SegmentSink;
+import org.luolamies.jgcgen.path.StreamingPathGenerator;
+import org.luolamies.jgcgen.path.Path.SType;
 import org.luolamies.jgcgen.routers.Router;
 
 /**
@@ -36,6 +41,12 @@ import org.luolamies.jgcgen.routers.Router;
  * <code>#g ($router, $path, [$offset[)</code> or
  * <code>#g ($path, [$offset])</code>
  * <p>If $router is not defined, the default router $router will be used.
+ * <p>If the path generator supports streaming, the path is converted as it is
+ * generated, unless the variable $streaming is set to <code>false</code>.
+ * <p>If the variable $reduce is set, the path is simplified with
+ * {@link Path#reduce(double)} using its value as the tolerance.
+ * <p>If the variable $stats is <code>true</code>, path statistics and
+ * a machining time estimate are printed for each call. See {@link PathStats}.
  */
 public class Gcodegen extends Directive {
 
@@ -82,10 +93,128 @@ public class Gcodegen extends Directive {
 			throw new RenderException("First parameter must be either a Router or a PathGenerator!");
 		}
 		
-		Path path = pathg.toPath();
-		if(path.getSize()>0)
-			r.toGcode(out, path, offset);
+		// Optional path simplification
+		double reduce = 0;
+		Object reducevar = ctx.get("reduce");
+		if(reducevar!=null && reducevar.toString().trim().length()>0) {
+			try {
+				reduce = Double.parseDouble(reducevar.toString().trim());
+			} catch(NumberFormatException e) {
+				throw new RenderException("$reduce must be a number: " + reducevar);
+			}
+		}
+		
+		final boolean showstats = "true".equals(String.valueOf(ctx.get("stats")));
+		PathStats stats = null;
+		
+		if(pathg instanceof StreamingPathGenerator && !"false".equals(String.valueOf(ctx.get("streaming")))) {
+			StreamingPathGenerator spg = (StreamingPathGenerator)pathg;
+			if(reduce>0)
+				spg = ReducingSink.reduce(spg, reduce);
+			if(showstats) {
+				stats = new PathStats();
+				setModel(stats, ctx, offset);
+				spg = measure(spg, stats);
+			}
+			r.toGcode(out, spg, offset);
+		} else {
+			Path path = pathg.toPath();
+			if(reduce>0)
+				path = path.reduce(reduce);
+			if(path.getSize()>0)
+				r.toGcode(out, path, offset);
+			if(showstats) {
+				stats = path.stats();
+				setModel(stats, ctx, offset);
+			}
+		}
+		
+		if(stats!=null) {
+			try {
+				System.err.println("#g at " + node.getTemplateName() + " line " + node.getLine() + ": " + stats);
+			} catch(RenderException e) {
+				System.err.println("#g at " + node.getTemplateName() + " line " + node.getLine() + ": " + e.getMessage());
+			}
+		}
 		return true;
 	}
+	
+	/**
+	 * Set the machine model from the router variables
+	 * @param stats
+	 * @param ctx
+	 * @param offset
+	 */
+	static private void setModel(PathStats stats, InternalContextAdapter ctx, String offset) {
+		stats.setFeed(number(ctx, ctx.get("default_f")));
+		stats.setPlungeFeed(number(ctx, ctx.get("plunge_f")));
+		stats.setSafeZ(number(ctx, ctx.get("safe_z")));
+		stats.setNearZ(number(ctx, ctx.get("near_z")));
+		stats.setRapidNear("true".equals(String.valueOf(ctx.get("rapidnear"))));
+		if(ctx.get("stats_rapid_f")!=null)
+			stats.setRapidFeed(number(ctx, ctx.get("stats_rapid_f")));
+		if(ctx.get("stats_accel")!=null)
+			stats.setAcceleration(number(ctx, ctx.get("stats_accel")));
+		if(ctx.get("stats_deviation")!=null)
+			stats.setDeviation(number(ctx, ctx.get("stats_deviation")));
+		
+		// Multipass cuts
+		if(offset!=null) {
+			final double zoff = number(ctx, offset);
+			stats.setOffset(zoff);
+			final double passdepth = number(ctx, ctx.get("passdepth"));
+			if(zoff<0 && passdepth>0 && !"true".equals(String.valueOf(ctx.get("r3singlepass"))))
+				stats.setPasses((int)Math.ceil(-zoff / passdepth - 1e-9));
+		}
+	}
+	
+	/**
+	 * Get the numeric value of a variable.
+	 * <p>A named parameter like <code>#&lt;_fdef&gt;</code> is resolved with the variable
+	 * of the same name.
+	 * @return value or NaN if not numeric
+	 */
+	static private double number(InternalContextAdapter ctx, Object value) {
+		if(value==null)
+			return Double.NaN;
+		String str = value.toString().trim();
+		if(str.startsWith("#<") && str.endsWith(">")) {
+			Object v = ctx.get(str.substring(2, str.length()-1));
+			if(v==null)
+				return Double.NaN;
+			str = v.toString().trim();
+		}
+		try {
+			return Double.parseDouble(str);
+		} catch(NumberFormatException e) {
+			return Double.NaN;
+		}
+	}
+	
+	/**
+	 * Wrap a path generator so that its segments are also passed to the stats
+	 * @param pathg
+	 * @param stats
+	 * @return wrapped generator
+	 */
+	static private StreamingPathGenerator measure(final StreamingPathGenerator pathg, final PathStats stats) {
+		return new StreamingPathGenerator() {
+			public Path toPath() {
+				Path path = pathg.toPath();
+				for(Path.Segment s : path.getSegments())
+					stats.add(s);
+				return path;
+			}
+			
+			public void generate(final SegmentSink sink) {
+				pathg.generate(new SegmentSink() {
+					public void addSegment(SType type, double x, double y, double z) {
+						stats.addSegment(type, x, y, z);
+						sink.addSegment(type, x, y, z);
+					}
+				});
+			}
+		};
+	}
 
 }
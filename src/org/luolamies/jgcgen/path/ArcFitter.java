@@ -0,0 +1,387 @@
+/*
+ * This file is part of JGCGen.
+ *
+ * JGCGen is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JGCGen is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JGCGen.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.luolamies.jgcgen.path;
+
+import java.util.List;
+
+import org.luolamies.jgcgen.path.Path.SType;
+import org.luolamies.jgcgen.path.Path.Segment;
+
+/**
+ * Replace runs of linear moves with arcs in the XY plane.
+ * <p>The runs are approximated with biarcs: pairs of arcs that meet with a
+ * common tangent. The tangents at the run points are estimated from the
+ * neighbouring points, so consecutive biarcs are tangent continuous too,
+ * except at sharp corners, which are preserved.
+ * Each biarc is made as long as possible while keeping the points
+ * and the midpoints of the original lines within the tolerance.
+ * Pieces that are straight within the tolerance become single lines.
+ * <p>Only constant Z parts of the runs are fitted. Lines that change the Z
+ * coordinate are kept as they are.
+ */
+abstract class ArcFitter extends SegmentReducer {
+	/** Turns sharper than this (cosine of the angle) are corners */
+	static private final double CORNER = Math.cos(Math.toRadians(30));
+	
+	static private final double EPS = 1e-9;
+	
+	/**
+	 * @param tolerance maximum distance of the arcs from the original path
+	 */
+	ArcFitter(double tolerance) {
+		super(tolerance);
+	}
+	
+	@Override
+	protected void reduceRun(List<Segment> run, double[] pts, int n) {
+		// Drop zero length lines
+		final double[] x = new double[n], y = new double[n], z = new double[n];
+		int m = 0;
+		for(int i=0;i<n;++i) {
+			final double px = pts[3*i], py = pts[3*i+1], pz = pts[3*i+2];
+			if(m>0 && px==x[m-1] && py==y[m-1] && pz==z[m-1])
+				continue;
+			x[m] = px;
+			y[m] = py;
+			z[m] = pz;
+			++m;
+		}
+		
+		// Split into constant Z parts
+		int start = 0;
+		for(int i=1;i<m;++i) {
+			if(z[i]!=z[i-1]) {
+				if(i-1 > start)
+					fit(x, y, z[start], start, i-1);
+				line(x[i], y[i], z[i]);
+				start = i;
+			}
+		}
+		if(m-1 > start)
+			fit(x, y, z[start], start, m-1);
+	}
+	
+	/**
+	 * Fit arcs to the points from..to (inclusive) and output them. The point <i>from</i>
+	 * is the current position.
+	 */
+	private void fit(double[] x, double[] y, double z, int from, int to) {
+		// Tangents leaving and arriving at each point
+		final int n = to - from + 1;
+		final double[] toutx = new double[n], touty = new double[n], tinx = new double[n], tiny = new double[n];
+		final boolean[] smooth = new boolean[n];
+		for(int i=0;i<n;++i) {
+			final int p = from + i;
+			double ix=0, iy=0, ox=0, oy=0;
+			if(i>0) {
+				ix = x[p] - x[p-1];
+				iy = y[p] - y[p-1];
+				final double l = Math.hypot(ix, iy);
+				ix /= l;
+				iy /= l;
+			}
+			if(i<n-1) {
+				ox = x[p+1] - x[p];
+				oy = y[p+1] - y[p];
+				final double l = Math.hypot(ox, oy);
+				ox /= l;
+				oy /= l;
+			}
+			if(i>0 && i<n-1 && ix*ox + iy*oy >= CORNER) {
+				// Smooth point: use the same tangent for both sides
+				smooth[i] = true;
+				double tx = ix + ox, ty = iy + oy;
+				final double l = Math.hypot(tx, ty);
+				ix = ox = tx / l;
+				iy = oy = ty / l;
+			}
+			tinx[i] = ix;
+			tiny[i] = iy;
+			toutx[i] = ox;
+			touty[i] = oy;
+		}
+		
+		// At the ends and corners, the line direction is a poor estimate of the curve's tangent.
+		// If the neighbouring point is smooth, mirror its tangent over the line instead.
+		// (The tangents at the ends of a circle's chord are mirror images.)
+		for(int i=0;i<n;++i) {
+			if(smooth[i])
+				continue;
+			if(i<n-1 && smooth[i+1]) {
+				final double cx = toutx[i], cy = touty[i];
+				final double d = 2 * (cx*tinx[i+1] + cy*tiny[i+1]);
+				toutx[i] = d*cx - tinx[i+1];
+				touty[i] = d*cy - tiny[i+1];
+			}
+			if(i>0 && smooth[i-1]) {
+				final double cx = tinx[i], cy = tiny[i];
+				final double d = 2 * (cx*toutx[i-1] + cy*touty[i-1]);
+				tinx[i] = d*cx - toutx[i-1];
+				tiny[i] = d*cy - touty[i-1];
+			}
+		}
+		
+		// Find the longest piece that can be fitted, stopping at corners
+		int a = 0;
+		while(a < n-1) {
+			int limit = a+1;
+			while(limit < n-1 && smooth[limit])
+				++limit;
+			
+			// Exponential search followed by binary search.
+			// A single line always fits.
+			int good = a+1;
+			Arc[] best = fitPiece(x, y, from, a, good, toutx, touty, tinx, tiny);
+			int step = 1;
+			int bad = limit+1;
+			while(good < limit) {
+				final int b = Math.min(good + step, limit);
+				Arc[] arcs = fitPiece(x, y, from, a, b, toutx, touty, tinx, tiny);
+				if(arcs==null) {
+					bad = b;
+					break;
+				}
+				good = b;
+				best = arcs;
+				step *= 2;
+			}
+			while(bad - good > 1) {
+				final int b = (good + bad) / 2;
+				Arc[] arcs = fitPiece(x, y, from, a, b, toutx, touty, tinx, tiny);
+				if(arcs==null)
+					bad = b;
+				else {
+					good = b;
+					best = arcs;
+				}
+			}
+			
+			for(Arc arc : best)
+				arc.emit(z);
+			a = good;
+		}
+	}
+	
+	/**
+	 * Fit the points a..b (relative to <i>from</i>)
+	 * @return a single line or arcs or null if the points can't be fitted
+	 */
+	private Arc[] fitPiece(double[] x, double[] y, int from, int a, int b,
+			double[] toutx, double[] touty, double[] tinx, double[] tiny) {
+		final int pa = from + a, pb = from + b;
+		final Arc chord = new Arc(x[pa], y[pa], x[pb], y[pb]);
+		if(fits(chord, null, x, y, pa, pb))
+			return new Arc[] { chord };
+		
+		// Biarc with the given end tangents
+		final double t1x = toutx[a], t1y = touty[a], t2x = tinx[b], t2y = tiny[b];
+		final double vx = x[pb] - x[pa], vy = y[pb] - y[pa];
+		final double vv = vx*vx + vy*vy;
+		final double tx = t1x + t2x, ty = t1y + t2y;
+		final double denom = 2 * (1 - (t1x*t2x + t1y*t2y));
+		double d;
+		if(denom < EPS) {
+			final double vt2 = vx*t2x + vy*t2y;
+			if(Math.abs(vt2) < EPS)
+				return null;
+			d = vv / (4 * vt2);
+		} else {
+			final double vt = vx*tx + vy*ty;
+			d = (-vt + Math.sqrt(vt*vt + denom*vv)) / denom;
+		}
+		if(!(d > 0) || Double.isInfinite(d))
+			return null;
+		
+		final double mx = (x[pa] + x[pb] + d*(t1x - t2x)) / 2;
+		final double my = (y[pa] + y[pb] + d*(t1y - t2y)) / 2;
+		
+		final Arc arc1 = arc(x[pa], y[pa], t1x, t1y, mx, my);
+		Arc arc2 = arc(x[pb], y[pb], -t2x, -t2y, mx, my);
+		// Arcs over a half circle mean the tangents don't suit these points
+		if(arc1==null || arc2==null || arc1.sweep >= Math.PI || arc2.sweep >= Math.PI)
+			return null;
+		arc2 = arc2.reverse();
+		
+		if(!fits(arc1, arc2, x, y, pa, pb))
+			return null;
+		return new Arc[] { arc1, arc2 };
+	}
+	
+	/**
+	 * Make an arc starting from (x0, y0) in the direction (tx, ty) and ending at (x1, y1)
+	 * @return arc, line or null if the end point is right behind the start point
+	 */
+	private Arc arc(double x0, double y0, double tx, double ty, double x1, double y1) {
+		final double dx = x1 - x0, dy = y1 - y0;
+		final double len2 = dx*dx + dy*dy;
+		if(len2==0)
+			return null;
+		
+		// The center is on the normal of the tangent
+		final double nx = -ty, ny = tx;
+		final double nd = nx*dx + ny*dy;
+		if(Math.abs(nd) < EPS * Math.sqrt(len2)) {
+			// End point is on the tangent line
+			if(tx*dx + ty*dy > 0)
+				return new Arc(x0, y0, x1, y1);
+			return null;
+		}
+		final double s = len2 / (2*nd);
+		return new Arc(x0, y0, x1, y1, x0 + s*nx, y0 + s*ny, s > 0);
+	}
+	
+	/**
+	 * Check that the lines between pa and pb are close enough to the arcs.
+	 * <p>The distance between a line and the arc is at most the larger distance of
+	 * the line's end points from the arc plus the arc's sagitta over the line.
+	 */
+	private boolean fits(Arc arc1, Arc arc2, double[] x, double[] y, int pa, int pb) {
+		final double tol = getTolerance() + EPS;
+		double prev = 0;
+		Arc prevarc = arc1;
+		for(int i=pa;i<pb;++i) {
+			double next = 0;
+			Arc nextarc = arc2!=null ? arc2 : arc1;
+			if(i+1<pb) {
+				next = arc1.distance(x[i+1], y[i+1]);
+				nextarc = arc1;
+				if(arc2!=null) {
+					final double d2 = arc2.distance(x[i+1], y[i+1]);
+					if(d2 < next) {
+						next = d2;
+						nextarc = arc2;
+					}
+				}
+				if(next > tol)
+					return false;
+			}
+			
+			double bulge = prevarc.sagitta(x[i], y[i], x[i+1], y[i+1]);
+			if(nextarc!=prevarc)
+				bulge = Math.max(bulge, nextarc.sagitta(x[i], y[i], x[i+1], y[i+1]));
+			if(Math.max(prev, next) + bulge > tol)
+				return false;
+			
+			prev = next;
+			prevarc = nextarc;
+		}
+		return true;
+	}
+	
+	private void line(double x, double y, double z) {
+		emit(new Segment(SType.LINE, point(x, y, z)));
+	}
+	
+	private NumericCoordinate point(double x, double y, double z) {
+		return new NumericCoordinate(x, y, isZKnown() ? z : null);
+	}
+	
+	/**
+	 * A circular arc or a line
+	 */
+	private final class Arc {
+		final double x0, y0, x1, y1;
+		/** Center. Not used for lines */
+		final double cx, cy, r;
+		/** Is this a line */
+		final boolean line;
+		final boolean ccw;
+		/** Start angle and sweep (always positive) */
+		final double a0, sweep;
+		
+		/** Make a line */
+		Arc(double x0, double y0, double x1, double y1) {
+			this.x0 = x0;
+			this.y0 = y0;
+			this.x1 = x1;
+			this.y1 = y1;
+			this.line = true;
+			this.cx = this.cy = this.r = this.a0 = this.sweep = 0;
+			this.ccw = false;
+		}
+		
+		Arc(double x0, double y0, double x1, double y1, double cx, double cy, boolean ccw) {
+			this.x0 = x0;
+			this.y0 = y0;
+			this.x1 = x1;
+			this.y1 = y1;
+			this.cx = cx;
+			this.cy = cy;
+			this.ccw = ccw;
+			this.line = false;
+			this.r = Math.hypot(x0 - cx, y0 - cy);
+			this.a0 = Math.atan2(y0 - cy, x0 - cx);
+			final double a1 = Math.atan2(y1 - cy, x1 - cx);
+			this.sweep = ccw ? angle(a1 - a0) : angle(a0 - a1);
+		}
+		
+		Arc reverse() {
+			if(line)
+				return new Arc(x1, y1, x0, y0);
+			return new Arc(x1, y1, x0, y0, cx, cy, !ccw);
+		}
+		
+		double distance(double px, double py) {
+			if(line) {
+				final double dx = x1 - x0, dy = y1 - y0;
+				final double len2 = dx*dx + dy*dy;
+				double t = 0;
+				if(len2 > 0)
+					t = Math.max(0, Math.min(1, ((px-x0)*dx + (py-y0)*dy) / len2));
+				return Math.hypot(px - x0 - t*dx, py - y0 - t*dy);
+			}
+			final double a = Math.atan2(py - cy, px - cx);
+			final double da = ccw ? angle(a - a0) : angle(a0 - a);
+			if(da <= sweep)
+				return Math.abs(Math.hypot(px - cx, py - cy) - r);
+			return Math.min(Math.hypot(px - x0, py - y0), Math.hypot(px - x1, py - y1));
+		}
+		
+		/**
+		 * Get the greatest distance between this arc and a chord whose end points
+		 * are near it.
+		 */
+		double sagitta(double px0, double py0, double px1, double py1) {
+			if(line)
+				return 0;
+			double da = Math.atan2(py1 - cy, px1 - cx) - Math.atan2(py0 - cy, px0 - cx);
+			da = Math.abs(angle(da + Math.PI) - Math.PI);
+			return r * (1 - Math.cos(da / 2));
+		}
+		
+		void emit(double z) {
+			if(line) {
+				line(x1, y1, z);
+			} else {
+				NumericCoordinate c = point(x1, y1, z);
+				c.set(Axis.I, cx - x0);
+				c.set(Axis.J, cy - y0);
+				ArcFitter.this.emit(new Segment(ccw ? SType.CCWARC : SType.CWARC, c));
+			}
+		}
+	}
+	
+	/**
+	 * Normalize an angle to 0..2pi
+	 */
+	static private double angle(double a) {
+		a %= 2*Math.PI;
+		if(a<0)
+			a += 2*Math.PI;
+		return a;
+	}
+}
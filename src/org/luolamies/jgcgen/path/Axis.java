@@ -36,11 +36,17 @@ public enum Axis {
 	 * @return axis or null if not found
 	 */
 	static public Axis get(char a) {
-		String ax = Character.toString(Character.toUpperCase(a));
-		try {
-			return valueOf(ax);
-		} catch(IllegalArgumentException e) {
-			return null;
+		switch(Character.toUpperCase(a)) {
+		case 'X': return X;
+		case 'Y': return Y;
+		case 'Z': return Z;
+		case 'A': return A;
+		case 'B': return B;
+		case 'C': return C;
+		case 'I': return I;
+		case 'J': return J;
+		case 'K': return K;
+		default: return null;
 		}
 	}
 	
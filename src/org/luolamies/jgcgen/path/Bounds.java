@@ -0,0 +1,216 @@
+/*
+ * This file is part of JGCGen.
+ *
+ * JGCGen is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JGCGen is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JGCGen.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.luolamies.jgcgen.path;
+
+import java.util.Arrays;
+
+/**
+ * The bounding box of a numeric path.
+ * <p>The minimum and maximum values are tracked separately for each axis.
+ * An axis is undefined if none of the path's points define it.
+ */
+public final class Bounds {
+	static private final Axis[] AXES = Axis.values();
+	
+	private final double[] min = new double[AXES.length], max = new double[AXES.length];
+	private boolean points;
+	private boolean symbolic;
+	
+	Bounds() {
+		Arrays.fill(min, Double.NaN);
+		Arrays.fill(max, Double.NaN);
+	}
+	
+	Bounds(Bounds copy) {
+		System.arraycopy(copy.min, 0, min, 0, min.length);
+		System.arraycopy(copy.max, 0, max, 0, max.length);
+		points = copy.points;
+		symbolic = copy.symbolic;
+	}
+	
+	/**
+	 * Is the axis defined in any point?
+	 * @param axis
+	 * @return true if the axis has bounds
+	 */
+	public boolean isDefined(Axis axis) {
+		return !Double.isNaN(min[axis.ordinal()]);
+	}
+	
+	/**
+	 * Get the smallest value on the given axis
+	 * @param axis
+	 * @return minimum or NaN if axis is not defined
+	 */
+	public double getMin(Axis axis) {
+		return min[axis.ordinal()];
+	}
+	
+	/**
+	 * Get the largest value on the given axis
+	 * @param axis
+	 * @return maximum or NaN if axis is not defined
+	 */
+	public double getMax(Axis axis) {
+		return max[axis.ordinal()];
+	}
+	
+	/**
+	 * Get the size of the bounding box on the given axis
+	 * @param axis
+	 * @return max - min or NaN if axis is not defined
+	 */
+	public double getSize(Axis axis) {
+		return max[axis.ordinal()] - min[axis.ordinal()];
+	}
+	
+	/**
+	 * Template friendly getMin
+	 * @param axis axis name
+	 */
+	public double getMin(String axis) {
+		return getMin(Axis.valueOf(axis.toUpperCase()));
+	}
+	
+	/**
+	 * Template friendly getMax
+	 * @param axis axis name
+	 */
+	public double getMax(String axis) {
+		return getMax(Axis.valueOf(axis.toUpperCase()));
+	}
+	
+	/**
+	 * Template friendly getSize
+	 * @param axis axis name
+	 */
+	public double getSize(String axis) {
+		return getSize(Axis.valueOf(axis.toUpperCase()));
+	}
+	
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder("Bounds(");
+		for(int a=0;a<AXES.length;++a) {
+			if(!Double.isNaN(min[a])) {
+				if(sb.length()>7)
+					sb.append(' ');
+				sb.append(AXES[a]).append(min[a]).append("..").append(max[a]);
+			}
+		}
+		return sb.append(')').toString();
+	}
+	
+	/**
+	 * Does the path have any points?
+	 */
+	boolean hasPoints() {
+		return points;
+	}
+	
+	/**
+	 * Does the path contain symbolic points? If so, the bounds are not valid.
+	 */
+	boolean isSymbolic() {
+		return symbolic;
+	}
+	
+	/**
+	 * Extend the bounds to include a point
+	 * @param c the point. May be null.
+	 */
+	void add(Coordinate c) {
+		if(c==null)
+			return;
+		if(!(c instanceof NumericCoordinate)) {
+			symbolic = true;
+			return;
+		}
+		points = true;
+		NumericCoordinate nc = (NumericCoordinate)c;
+		for(int a=0;a<AXES.length;++a) {
+			Double v = nc.getValue(AXES[a]);
+			if(v!=null)
+				add(a, v);
+		}
+	}
+	
+	/**
+	 * Extend the bounds to include a point. NaN means undefined.
+	 */
+	void add(double x, double y, double z) {
+		points = true;
+		if(!Double.isNaN(x))
+			add(0, x);
+		if(!Double.isNaN(y))
+			add(1, y);
+		if(!Double.isNaN(z))
+			add(2, z);
+	}
+	
+	/**
+	 * Extend the bounds to include another bounding box
+	 */
+	void add(Bounds b) {
+		points |= b.points;
+		symbolic |= b.symbolic;
+		for(int a=0;a<AXES.length;++a) {
+			if(!Double.isNaN(b.min[a])) {
+				add(a, b.min[a]);
+				add(a, b.max[a]);
+			}
+		}
+	}
+	
+	/**
+	 * Get the bounds of a transformed path.
+	 * <p>Transformations without rotations map each axis separately
+	 * and monotonously, so the new bounds can be calculated directly.
+	 * @param t the transformation
+	 * @return new bounds or null if they must be recalculated from the points
+	 */
+	Bounds transform(Transform t) {
+		if(t.rotates() || symbolic)
+			return null;
+		Bounds b = new Bounds();
+		if(!points)
+			return b;
+		b.points = true;
+		final double[] lo = new double[AXES.length], hi = new double[AXES.length];
+		t.apply(min, lo);
+		t.apply(max, hi);
+		for(int a=0;a<AXES.length;++a) {
+			if(!Double.isNaN(lo[a])) {
+				b.add(a, lo[a]);
+				b.add(a, hi[a]);
+			}
+		}
+		return b;
+	}
+	
+	/**
+	 * Extend the bounds of a single axis
+	 * @param a axis ordinal
+	 * @param v value
+	 */
+	private void add(int a, double v) {
+		if(Double.isNaN(min[a]) || v<min[a])
+			min[a] = v;
+		if(Double.isNaN(max[a]) || v>max[a])
+			max[a] = v;
+	}
+}
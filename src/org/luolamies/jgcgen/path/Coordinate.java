@@ -16,13 +16,29 @@
  */
 package org.luolamies.jgcgen.path;
 
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
 import java.util.EnumMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.Stack;
-import java.util.regex.Pattern;
 
 public abstract class Coordinate {
-	static private final Pattern isnumeric = Pattern.compile("-?\\d+(?:\\.\\d+)?");
+	static private final Axis[] AXES = Axis.values();
+	/** Maximum length of cached coordinate strings */
+	static private final int CACHEKEY = 40;
+	/** Number of cached coordinates */
+	static private final int CACHESIZE = 128;
+	
+	/** Recently parsed short coordinate strings */
+	static private final Map<String, Coordinate> cache = new LinkedHashMap<String, Coordinate>(CACHESIZE, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Coordinate> eldest) {
+			return size() > CACHESIZE;
+		}
+	};
+	
 	/**
 	 * Extract coordinates from a g-code fragment.
 	 * Coordinates can be in forms like:
@@ -35,119 +51,233 @@ public abstract class Coordinate {
 	 * <li>A[sin[#0]+#3]
 	 * <li>A-[-1]
 	 * </ul>
+	 * <p>Results for short strings are cached. A new copy is returned each time.
 	 * @param gcode
 	 */
 	static public Coordinate parse(String gcode) {
 		if(gcode.length()==0)
 			return new NumericCoordinate();
 		
-		EnumMap<Axis, String> coords = new EnumMap<Axis, String>(Axis.class);
+		if(gcode.length() > CACHEKEY)
+			return scan(gcode);
+		
+		Coordinate c;
+		synchronized(cache) {
+			c = cache.get(gcode);
+		}
+		if(c==null) {
+			c = scan(gcode);
+			synchronized(cache) {
+				cache.put(gcode, c);
+			}
+		}
+		return c.copy();
+	}
+	
+	/**
+	 * Parse a coordinate string.
+	 * <p>Whitespace is ignored. An axis value ends at the next axis letter,
+	 * or at the closing bracket or &gt; that ends it.
+	 */
+	static private Coordinate scan(String gcode) {
+		final int len = gcode.length();
+		
+		// Value of each axis: source range and whether it contains whitespace
+		final int[] from = new int[AXES.length], to = new int[AXES.length];
+		final boolean[] spaces = new boolean[AXES.length];
+		Arrays.fill(from, -1);
+		
 		Axis axis = null;
-		StringBuilder cb = new StringBuilder();
+		int start=-1, end=-1;
+		boolean ws=false, pendingws=false;
 		
 		/* states:
+		 * -1 - expect axis
 		 * 0 - expect variable or number or block start ([)
 		 * 1 - expect variable (numeric or named)
 		 * 2 - expect end of numeric constant
 		 * 3 - expect end of named variable (>)
+		 * 4 - expect end of parenthetical block (]), depth levels deep
 		 */
-		Stack<Integer> states = new Stack<Integer>();
+		int state = -1, depth = 0;
 		
-		int i=-1;
-		while(++i<gcode.length()) {
-			char chr = gcode.charAt(i);
-			if(Character.isWhitespace(chr))
+		for(int i=0;i<len;++i) {
+			final char chr = gcode.charAt(i);
+			if(Character.isWhitespace(chr)) {
+				if(start>=0 && state>=0)
+					pendingws = true;
 				continue;
+			}
 			
-			if(states.isEmpty()) {
+			if(state<0) {
 				if(axis!=null) {
-					char last = cb.charAt(cb.length()-1); 
-					if(last!=']' && last!='>')
-						cb.delete(cb.length()-1, cb.length());
-					coords.put(axis, cb.toString());
-					cb.delete(0, cb.length());
+					from[axis.ordinal()] = start;
+					to[axis.ordinal()] = end;
+					spaces[axis.ordinal()] = ws;
 				}
 				// Expect axis
-				Axis a = Axis.get(chr);
-				if(a!=null)
-					axis = a;
-				else
+				axis = Axis.get(chr);
+				if(axis==null)
 					throw new IllegalArgumentException(gcode + " (" + chr + "): Expected axis");
-				states.push(0);
-			} else {
-				cb.append(chr);
-				int state = states.peek();
-				switch(state) {
-				case 0:
-					states.pop();
-					// axis value start
-					if(chr=='[')
-						states.push(4);
-					else if(chr=='#')
-						states.push(1);
-					else if(Character.isDigit(chr) || chr=='-')
-						states.push(2);
-					else
-						throw new IllegalArgumentException(chr + ": Expected number, variable or parenthesis");
-					break;
-				case 1:
-					// Expect variable start
-					states.pop();
-					if(chr=='<')
-						states.push(3);
-					else if(Character.isDigit(chr))
-						states.push(2);
-					else
-						throw new IllegalArgumentException("Expected numeric constant or named variable");
-					break;
-				case 2:
-					// Expect end of numeric constant
-					if(!(chr=='-' || chr=='.' || Character.isDigit(chr))) {
-						states.pop();
-						// - sign can come before [ too
-						if(chr=='[' && gcode.charAt(i-1)=='-')
-							states.push(4);
-						else
-							--i;
-					}
-					break;
-				case 3:
-					// Expect end of named variable
-					if(chr=='>') {
-						states.pop();
-					}
-					break;
-				case 4:
-					// Expect end of parenthetical block (])
-					if(chr=='[')
-						states.push(4);
-					else if(chr==']') {
-						states.pop();
+				state = 0;
+				start = end = i+1;
+				ws = pendingws = false;
+				continue;
+			}
+			
+			switch(state) {
+			case 0:
+				// axis value start
+				start = i;
+				if(chr=='[') {
+					state = 4;
+					depth = 1;
+				} else if(chr=='#')
+					state = 1;
+				else if(Character.isDigit(chr) || chr=='-')
+					state = 2;
+				else
+					throw new IllegalArgumentException(chr + ": Expected number, variable or parenthesis");
+				break;
+			case 1:
+				// Expect variable start
+				if(chr=='<')
+					state = 3;
+				else if(Character.isDigit(chr))
+					state = 2;
+				else
+					throw new IllegalArgumentException("Expected numeric constant or named variable");
+				break;
+			case 2:
+				// Expect end of numeric constant
+				if(!(chr=='-' || chr=='.' || Character.isDigit(chr))) {
+					// - sign can come before [ too
+					if(chr=='[' && gcode.charAt(i-1)=='-') {
+						state = 4;
+						depth = 1;
+					} else {
+						// This character starts the next axis
+						state = -1;
+						--i;
+						continue;
 					}
-					break;
-				default: throw new RuntimeException("BUG: Unhandled state " + state);
 				}
+				break;
+			case 3:
+				// Expect end of named variable
+				if(chr=='>')
+					state = -1;
+				break;
+			case 4:
+				// Expect end of parenthetical block (])
+				if(chr=='[')
+					++depth;
+				else if(chr==']' && --depth==0)
+					state = -1;
+				break;
+			default: throw new RuntimeException("BUG: Unhandled state " + state);
 			}
+			if(pendingws && end>start)
+				ws = true;
+			pendingws = false;
+			end = i+1;
 		}
 		
 		// Add the last axis
-		coords.put(axis, cb.toString());
-
+		if(axis==null)
+			throw new IllegalArgumentException(gcode + ": Expected axis");
+		from[axis.ordinal()] = start;
+		to[axis.ordinal()] = end;
+		spaces[axis.ordinal()] = ws;
+		
+		// Try numeric values first
+		final double[] values = new double[AXES.length];
 		boolean allnumeric = true;
-		for(String s : coords.values()) {
-			if(!isnumeric.matcher(s).matches()) {
-				allnumeric = false;
-				break;
-			}
+		for(int a=0;a<AXES.length && allnumeric;++a) {
+			if(from[a]<0)
+				continue;
+			if(spaces[a]) {
+				String v = strip(gcode, from[a], to[a]);
+				values[a] = number(v, 0, v.length());
+			} else
+				values[a] = number(gcode, from[a], to[a]);
+			allnumeric = !Double.isNaN(values[a]);
 		}
 		
 		if(allnumeric) {
 			NumericCoordinate c = new NumericCoordinate();
-			for(Map.Entry<Axis, String> a : coords.entrySet())
-				c.set(a.getKey(), Double.valueOf(a.getValue()));
+			for(int a=0;a<AXES.length;++a)
+				if(from[a]>=0)
+					c.set(AXES[a], values[a]);
 			return c;
-		} else
+		} else {
+			EnumMap<Axis, String> coords = new EnumMap<Axis, String>(Axis.class);
+			for(int a=0;a<AXES.length;++a)
+				if(from[a]>=0)
+					coords.put(AXES[a], spaces[a] ? strip(gcode, from[a], to[a]) : gcode.substring(from[a], to[a]));
 			return new SymbolicCoordinate(coords);
+		}
+	}
+	
+	/**
+	 * Get a substring with whitespace removed
+	 */
+	static private String strip(String str, int from, int to) {
+		StringBuilder sb = new StringBuilder(to-from);
+		for(int i=from;i<to;++i)
+			if(!Character.isWhitespace(str.charAt(i)))
+				sb.append(str.charAt(i));
+		return sb.toString();
+	}
+	
+	static private final double[] POW10 = {
+		1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15
+	};
+	
+	/**
+	 * Parse a plain decimal number (-?\d+(\.\d+)?).
+	 * <p>Numbers of up to 15 digits are converted exactly without
+	 * creating a string, the rest with {@link Double#parseDouble(String)}.
+	 * @return the number or NaN if the string is not a plain number
+	 */
+	static private double number(String str, int from, int to) {
+		int i = from;
+		final boolean neg = i<to && str.charAt(i)=='-';
+		if(neg)
+			++i;
+		
+		long mantissa = 0;
+		int digits = 0, decimals = 0;
+		boolean point = false;
+		for(;i<to;++i) {
+			final char c = str.charAt(i);
+			if(c>='0' && c<='9') {
+				mantissa = mantissa * 10 + (c - '0');
+				++digits;
+				if(point)
+					++decimals;
+			} else if(c=='.' && !point && digits>0) {
+				point = true;
+			} else
+				return Double.NaN;
+		}
+		if(digits==0 || (point && decimals==0))
+			return Double.NaN;
+		
+		if(digits > 15)
+			return Double.parseDouble(str.substring(from, to));
+		
+		// Both the mantissa and the power of ten are exact, so the division
+		// is rounded the same way as parseDouble would.
+		double v = mantissa / POW10[decimals];
+		return neg ? -v : v;
+	}
+	
+	/**
+	 * Is the string a plain decimal number
+	 */
+	static private boolean isNumber(String str) {
+		return !Double.isNaN(number(str, 0, str.length()));
 	}
 	
 	/**
@@ -160,11 +290,7 @@ public abstract class Coordinate {
 	 * @return
 	 */
 	static public Coordinate xyz(String x, String y, String z) {
-		if(
-			isnumeric.matcher(x).matches() &&
-			isnumeric.matcher(y).matches() &&
-			isnumeric.matcher(z).matches()
-			)
+		if(isNumber(x) && isNumber(y) && isNumber(z))
 			return new NumericCoordinate(x, y, z);
 		else
 			return new SymbolicCoordinate(x, y, z);
@@ -314,6 +440,31 @@ public abstract class Coordinate {
 		return sb.toString();
 	}
 
+	/**
+	 * Write this coordinate set as G-code.
+	 * <p>This is the same as writing {@link #toGcode()}, except that
+	 * numeric values are formatted with the given formatter.
+	 * @param out the output
+	 * @param format number formatter
+	 * @throws IOException
+	 */
+	public void write(Writer out, NumberFormatter format) throws IOException {
+		out.write(toGcode());
+	}
+	
+	/**
+	 * Write the value of a single axis.
+	 * <p>This is the same as writing {@link #get(Axis)}, except that
+	 * numeric values are formatted with the given formatter.
+	 * @param out the output
+	 * @param axis the axis to write. Must be defined.
+	 * @param format number formatter
+	 * @throws IOException
+	 */
+	public void write(Writer out, Axis axis, NumberFormatter format) throws IOException {
+		out.write(get(axis));
+	}
+	
 	/**
 	 * Return a copy of this coordinate set.
 	 * @return copy of this
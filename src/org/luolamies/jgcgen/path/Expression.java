@@ -0,0 +1,780 @@
+/*
+ * This file is part of JGCGen.
+ *
+ * JGCGen is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JGCGen is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JGCGen.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.luolamies.jgcgen.path;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * G-code expression tree.
+ * <p>Symbolic coordinate values are parsed into a tree, which can then
+ * be simplified: numeric subterms are folded, sums are flattened and
+ * like terms combined, and the result is printed with as few brackets
+ * as the operator precedence allows. Named variables with known values
+ * can also be substituted.
+ * <p>Operations whose result depends on the machine state (comparisons,
+ * EXISTS, indirect parameters) and operations that would fail (division
+ * by zero, square root of a negative number) or overflow are left as they are.
+ */
+abstract class Expression {
+	static final int LOGICAL = 0, COMPARE = 1, ADD = 2, MUL = 3, POW = 4, PRIMARY = 5;
+	
+	static private final Pattern NUMBER = Pattern.compile("-?\\d*\\.?\\d+");
+	static private final List<String> FUNCTIONS = Arrays.asList(
+			"ABS", "ACOS", "ASIN", "ATAN", "COS", "EXP", "FIX", "FUP", "LN", "ROUND", "SIN", "SQRT", "TAN");
+	static private final List<String> OPERATORS = Arrays.asList(
+			"MOD", "EQ", "NE", "GT", "GE", "LT", "LE", "AND", "OR", "XOR");
+	
+	/**
+	 * Simplify a G-code value.
+	 * <p>The value is returned unchanged if it is a plain number, if it cannot
+	 * be parsed or if the simplified form is not shorter, unless known variables
+	 * were substituted.
+	 * @param value the value (e.g. <kbd>[#1+[10+-5]]</kbd>)
+	 * @param known values of named variables (lower case names without spaces) or null
+	 * @return simplified value
+	 */
+	static String simplify(String value, Map<String, Double> known) {
+		if(NUMBER.matcher(value).matches())
+			return value;
+		Expression e;
+		try {
+			e = new Parser(value).parse();
+		} catch(IllegalArgumentException ex) {
+			return value;
+		}
+		Context ctx = new Context(known);
+		String s = e.simplify(ctx).toValue();
+		return s.length() < value.length() || ctx.substituted ? s : value;
+	}
+	
+	/**
+	 * Parse a G-code value
+	 * @param value
+	 * @return expression tree
+	 * @throws IllegalArgumentException if the value could not be parsed
+	 */
+	static Expression parse(String value) {
+		return new Parser(value).parse();
+	}
+	
+	/** Simplification state */
+	static final class Context {
+		final Map<String, Double> known;
+		boolean substituted;
+		
+		Context(Map<String, Double> known) {
+			this.known = known;
+		}
+	}
+	
+	/**
+	 * @return operator precedence of the expression
+	 */
+	abstract int precedence();
+	
+	abstract void print(StringBuilder sb);
+	
+	/**
+	 * Get a simplified version of this expression
+	 * @param ctx
+	 * @return simplified expression
+	 */
+	abstract Expression simplify(Context ctx);
+	
+	/**
+	 * @return the value of a constant expression or null
+	 */
+	Double value() {
+		return null;
+	}
+	
+	/**
+	 * Print this expression so it can be used as an axis value
+	 * @return value string
+	 */
+	String toValue() {
+		if(this instanceof Num || this instanceof Var)
+			return toString();
+		return "[" + this + "]";
+	}
+	
+	/**
+	 * Print an operand, bracketed if its precedence is lower than required
+	 */
+	static void print(StringBuilder sb, Expression e, int precedence) {
+		if(e.precedence() < precedence) {
+			sb.append('[');
+			e.print(sb);
+			sb.append(']');
+		} else
+			e.print(sb);
+	}
+	
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		print(sb);
+		return sb.toString();
+	}
+	
+	/**
+	 * Can a folded value be used
+	 */
+	static boolean finite(double value) {
+		return !Double.isNaN(value) && !Double.isInfinite(value);
+	}
+	
+	/**
+	 * Format a number with no trailing zeros. Floating point noise
+	 * is rounded away at 9 decimals, but smaller values are kept exact.
+	 */
+	static String format(double value) {
+		final BigDecimal exact = BigDecimal.valueOf(value);
+		BigDecimal d = exact.setScale(9, RoundingMode.HALF_EVEN);
+		if(Math.abs(d.doubleValue() - value) > 1e-12 * Math.max(1, Math.abs(value)))
+			d = exact;
+		String s = d.stripTrailingZeros().toPlainString();
+		if(s.equals("-0"))
+			return "0";
+		return s;
+	}
+	
+	/** A numeric constant */
+	static final class Num extends Expression {
+		final double value;
+		Num(double value) {
+			this.value = value;
+		}
+		int precedence() {
+			return PRIMARY;
+		}
+		void print(StringBuilder sb) {
+			sb.append(format(value));
+		}
+		Expression simplify(Context ctx) {
+			return this;
+		}
+		Double value() {
+			return value;
+		}
+	}
+	
+	/** A numbered (#1) or named (#&lt;name&gt;) parameter */
+	static final class Var extends Expression {
+		final String text;
+		Var(String text) {
+			this.text = text;
+		}
+		int precedence() {
+			return PRIMARY;
+		}
+		void print(StringBuilder sb) {
+			sb.append(text);
+		}
+		Expression simplify(Context ctx) {
+			if(ctx.known!=null && text.startsWith("#<")) {
+				Double v = ctx.known.get(text.substring(2, text.length()-1).replaceAll("\\s", "").toLowerCase());
+				if(v!=null) {
+					ctx.substituted = true;
+					return new Num(v);
+				}
+			}
+			return this;
+		}
+	}
+	
+	/** An indirect parameter reference (e.g. ##1) */
+	static final class Indirect extends Expression {
+		final Expression index;
+		Indirect(Expression index) {
+			this.index = index;
+		}
+		int precedence() {
+			return PRIMARY;
+		}
+		void print(StringBuilder sb) {
+			sb.append('#');
+			print(sb, index, PRIMARY);
+		}
+		Expression simplify(Context ctx) {
+			return new Indirect(index.simplify(ctx));
+		}
+	}
+	
+	/** A unary function call */
+	static final class Func extends Expression {
+		final String name;
+		final Expression arg, arg2;
+		Func(String name, Expression arg, Expression arg2) {
+			this.name = name;
+			this.arg = arg;
+			this.arg2 = arg2;
+		}
+		int precedence() {
+			return PRIMARY;
+		}
+		void print(StringBuilder sb) {
+			sb.append(name).append('[');
+			arg.print(sb);
+			sb.append(']');
+			if(arg2!=null) {
+				sb.append("/[");
+				arg2.print(sb);
+				sb.append(']');
+			}
+		}
+		Expression simplify(Context ctx) {
+			Expression a = arg.simplify(ctx);
+			Expression b = arg2!=null ? arg2.simplify(ctx) : null;
+			Double v = a.value();
+			if(v!=null && (b==null || b.value()!=null)) {
+				Double r = eval(v, b!=null ? b.value() : null);
+				if(r!=null && finite(r))
+					return new Num(r);
+			}
+			return new Func(name, a, b);
+		}
+		/** Evaluate the function. Angles are in degrees. */
+		private Double eval(double x, Double y) {
+			if(name.equals("ABS"))
+				return Math.abs(x);
+			if(name.equals("SIN"))
+				return Math.sin(Math.toRadians(x));
+			if(name.equals("COS"))
+				return Math.cos(Math.toRadians(x));
+			if(name.equals("TAN"))
+				return Math.tan(Math.toRadians(x));
+			if(name.equals("ATAN"))
+				return Math.toDegrees(Math.atan2(x, y));
+			if(name.equals("ASIN") && Math.abs(x)<=1)
+				return Math.toDegrees(Math.asin(x));
+			if(name.equals("ACOS") && Math.abs(x)<=1)
+				return Math.toDegrees(Math.acos(x));
+			if(name.equals("SQRT") && x>=0)
+				return Math.sqrt(x);
+			if(name.equals("EXP"))
+				return Math.exp(x);
+			if(name.equals("LN") && x>0)
+				return Math.log(x);
+			if(name.equals("FIX"))
+				return Math.floor(x);
+			if(name.equals("FUP"))
+				return Math.ceil(x);
+			if(name.equals("ROUND"))
+				return x<0 ? -Math.floor(-x+0.5) : Math.floor(x+0.5);
+			return null;
+		}
+	}
+	
+	/** An expression that is kept as it is (e.g. EXISTS[#&lt;name&gt;]) */
+	static final class Raw extends Expression {
+		final String text;
+		Raw(String text) {
+			this.text = text;
+		}
+		int precedence() {
+			return PRIMARY;
+		}
+		void print(StringBuilder sb) {
+			sb.append(text);
+		}
+		Expression simplify(Context ctx) {
+			return this;
+		}
+	}
+	
+	/** A binary operation that is not part of a sum */
+	static final class Binary extends Expression {
+		final String op;
+		final Expression left, right;
+		Binary(String op, Expression left, Expression right) {
+			this.op = op;
+			this.left = left;
+			this.right = right;
+		}
+		int precedence() {
+			return precedence(op);
+		}
+		static int precedence(String op) {
+			if(op.equals("**"))
+				return POW;
+			if(op.equals("*") || op.equals("/") || op.equals("MOD"))
+				return MUL;
+			if(op.equals("+") || op.equals("-"))
+				return ADD;
+			if(op.equals("AND") || op.equals("OR") || op.equals("XOR"))
+				return LOGICAL;
+			return COMPARE;
+		}
+		void print(StringBuilder sb) {
+			final int p = precedence();
+			print(sb, left, p);
+			if(Character.isLetter(op.charAt(0)))
+				sb.append(' ').append(op).append(' ');
+			else
+				sb.append(op);
+			print(sb, right, p+1);
+		}
+		Expression simplify(Context ctx) {
+			if(op.equals("+") || op.equals("-") || op.equals("*")) {
+				Sum s = Sum.of(this, ctx);
+				if(s.finite())
+					return s.toExpression();
+			}
+			
+			final Expression l = left.simplify(ctx), r = right.simplify(ctx);
+			final Double a = l.value(), b = r.value();
+			if(a!=null && b!=null) {
+				Double v = null;
+				if(op.equals("/") && b!=0)
+					v = a / b;
+				else if(op.equals("**"))
+					v = Math.pow(a, b);
+				else if(op.equals("MOD") && b!=0) {
+					double m = a % b;
+					v = m < 0 ? m + Math.abs(b) : m;
+				}
+				if(v!=null && finite(v))
+					return new Num(v);
+			}
+			return new Binary(op, l, r);
+		}
+	}
+	
+	/**
+	 * A flattened sum of products.
+	 * <p>Each term is a constant coefficient multiplied by a list of factors.
+	 * Terms with the same factors are combined.
+	 */
+	static final class Sum extends Expression {
+		/** Terms keyed by their factors */
+		private final Map<String, Term> terms = new LinkedHashMap<String, Term>();
+		
+		static private final class Term {
+			double coef;
+			final List<Expression> factors;
+			Term(double coef, List<Expression> factors) {
+				this.coef = coef;
+				this.factors = factors;
+			}
+		}
+		
+		/**
+		 * Convert an expression to a sum, simplifying the operands
+		 */
+		static Sum of(Expression e, Context ctx) {
+			if(e instanceof Binary) {
+				final Binary b = (Binary)e;
+				if(b.op.equals("+") || b.op.equals("-")) {
+					Sum s = of(b.left, ctx);
+					s.add(of(b.right, ctx), b.op.equals("+") ? 1 : -1);
+					return s;
+				} else if(b.op.equals("*")) {
+					return of(b.left, ctx).multiply(of(b.right, ctx));
+				}
+			} else if(e instanceof Neg) {
+				Sum s = new Sum();
+				s.add(of(((Neg)e).arg, ctx), -1);
+				return s;
+			}
+			return wrap(e.simplify(ctx));
+		}
+		
+		/**
+		 * Wrap a simplified expression
+		 */
+		static private Sum wrap(Expression e) {
+			if(e instanceof Sum)
+				return (Sum)e;
+			Sum s = new Sum();
+			Double v = e.value();
+			if(v!=null)
+				s.addTerm(v, new ArrayList<Expression>());
+			else {
+				List<Expression> f = new ArrayList<Expression>();
+				f.add(e);
+				s.addTerm(1, f);
+			}
+			return s;
+		}
+		
+		/**
+		 * Is the coefficient zero at the printed precision
+		 */
+		static private boolean zero(double coef) {
+			return format(coef).equals("0");
+		}
+		
+		/**
+		 * Is the coefficient one (or minus one) at the printed precision
+		 */
+		static private boolean one(double coef) {
+			return format(Math.abs(coef)).equals("1");
+		}
+		
+		private void addTerm(double coef, List<Expression> factors) {
+			StringBuilder key = new StringBuilder();
+			for(Expression f : factors) {
+				f.print(key);
+				key.append('*');
+			}
+			Term t = terms.get(key.toString());
+			if(t==null)
+				terms.put(key.toString(), new Term(coef, factors));
+			else
+				t.coef += coef;
+		}
+		
+		private void add(Sum s, double sign) {
+			for(Term t : s.terms.values())
+				addTerm(sign * t.coef, t.factors);
+		}
+		
+		/**
+		 * Are all the coefficients (and the value of a constant sum) finite
+		 */
+		boolean finite() {
+			for(Term t : terms.values())
+				if(!Expression.finite(t.coef))
+					return false;
+			Double v = value();
+			return v==null || Expression.finite(v);
+		}
+		
+		/**
+		 * The value of a constant sum
+		 */
+		Double value() {
+			double v = 0;
+			for(Term t : terms.values()) {
+				if(zero(t.coef))
+					continue;
+				if(!t.factors.isEmpty())
+					return null;
+				v += t.coef;
+			}
+			return v;
+		}
+		
+		private Sum multiply(Sum s) {
+			final Double a = value(), b = s.value();
+			Sum r = new Sum();
+			if(a!=null)
+				r.add(s, a);
+			else if(b!=null)
+				r.add(this, b);
+			else {
+				final Term ta = asTerm(), tb = s.asTerm();
+				List<Expression> f = new ArrayList<Expression>(ta.factors);
+				f.addAll(tb.factors);
+				r.addTerm(ta.coef * tb.coef, f);
+			}
+			return r;
+		}
+		
+		/**
+		 * Get this sum as a single term. A sum of many terms becomes a factor.
+		 */
+		private Term asTerm() {
+			Term t = single();
+			if(t!=null)
+				return t;
+			List<Expression> f = new ArrayList<Expression>();
+			f.add(this);
+			return new Term(1, f);
+		}
+		
+		/**
+		 * Get the only nonzero term
+		 */
+		private Term single() {
+			Term single = null;
+			for(Term t : terms.values()) {
+				if(!zero(t.coef)) {
+					if(single!=null)
+						return null;
+					single = t;
+				}
+			}
+			return single;
+		}
+		
+		/**
+		 * Get the simplest expression for this sum
+		 */
+		Expression toExpression() {
+			Double v = value();
+			if(v!=null)
+				return new Num(v);
+			Term t = single();
+			if(t!=null && t.coef>0 && one(t.coef) && t.factors.size()==1)
+				return t.factors.get(0);
+			return this;
+		}
+		
+		int precedence() {
+			Term t = single();
+			if(t==null)
+				return ADD;
+			if(t.factors.size()==1 && one(t.coef) && t.factors.get(0).precedence()==PRIMARY)
+				return PRIMARY;
+			return MUL;
+		}
+		
+		void print(StringBuilder sb) {
+			boolean first = true;
+			for(Term t : terms.values()) {
+				if(zero(t.coef))
+					continue;
+				double c = t.coef;
+				// A leading unary minus binds tighter than **
+				final boolean unary = first && c<0;
+				if(c<0) {
+					sb.append('-');
+					c = -c;
+				} else if(!first)
+					sb.append('+');
+				first = false;
+				
+				if(t.factors.isEmpty()) {
+					sb.append(format(c));
+					continue;
+				}
+				boolean firstf = true;
+				if(!one(c)) {
+					sb.append(format(c));
+					firstf = false;
+				}
+				for(Expression f : t.factors) {
+					if(!firstf)
+						sb.append('*');
+					print(sb, f, unary && firstf ? PRIMARY : POW);
+					firstf = false;
+				}
+			}
+			if(first)
+				sb.append('0');
+		}
+		
+		Expression simplify(Context ctx) {
+			return this;
+		}
+	}
+	
+	/** Unary minus */
+	static final class Neg extends Expression {
+		final Expression arg;
+		Neg(Expression arg) {
+			this.arg = arg;
+		}
+		int precedence() {
+			return PRIMARY;
+		}
+		void print(StringBuilder sb) {
+			sb.append('-');
+			print(sb, arg, PRIMARY);
+		}
+		Expression simplify(Context ctx) {
+			Sum s = Sum.of(this, ctx);
+			if(s.finite())
+				return s.toExpression();
+			return new Neg(arg.simplify(ctx));
+		}
+	}
+	
+	/**
+	 * Parser for G-code values and expressions
+	 */
+	static private final class Parser {
+		private final String text;
+		private int pos;
+		
+		Parser(String text) {
+			this.text = text;
+		}
+		
+		Expression parse() {
+			Expression e = value();
+			skip();
+			if(pos<text.length())
+				throw error("Unexpected input");
+			return e;
+		}
+		
+		private IllegalArgumentException error(String msg) {
+			return new IllegalArgumentException(text + ": " + msg + " at " + pos);
+		}
+		
+		private void skip() {
+			while(pos<text.length() && Character.isWhitespace(text.charAt(pos)))
+				++pos;
+		}
+		
+		private char peek() {
+			skip();
+			if(pos>=text.length())
+				throw error("Unexpected end");
+			return text.charAt(pos);
+		}
+		
+		private void expect(char c) {
+			if(peek()!=c)
+				throw error("Expected " + c);
+			++pos;
+		}
+		
+		/**
+		 * Read a real value: a number, a parameter, a bracketed expression
+		 * or a function call, optionally preceded by a sign.
+		 */
+		private Expression value() {
+			final char c = peek();
+			if(c=='[') {
+				++pos;
+				Expression e = expression(LOGICAL);
+				expect(']');
+				return e;
+			} else if(c=='#') {
+				++pos;
+				skip();
+				if(pos<text.length() && text.charAt(pos)=='<') {
+					int end = text.indexOf('>', pos);
+					if(end<0)
+						throw error("Unterminated parameter name");
+					String name = text.substring(pos-1, end+1);
+					pos = end+1;
+					return new Var(name);
+				} else if(pos<text.length() && Character.isDigit(text.charAt(pos))) {
+					int start = pos;
+					while(pos<text.length() && Character.isDigit(text.charAt(pos)))
+						++pos;
+					return new Var("#" + text.substring(start, pos));
+				}
+				return new Indirect(value());
+			} else if(c=='-') {
+				++pos;
+				return new Neg(value());
+			} else if(c=='+') {
+				++pos;
+				return value();
+			} else if(Character.isDigit(c) || c=='.') {
+				int start = pos;
+				while(pos<text.length() && (Character.isDigit(text.charAt(pos)) || text.charAt(pos)=='.'))
+					++pos;
+				double v;
+				try {
+					v = Double.parseDouble(text.substring(start, pos));
+				} catch(NumberFormatException e) {
+					throw error("Invalid number");
+				}
+				if(!finite(v))
+					throw error("Number out of range");
+				return new Num(v);
+			} else if(Character.isLetter(c)) {
+				String name = word();
+				if(name.equals("EXISTS")) {
+					int start = pos;
+					expect('[');
+					int depth = 1;
+					while(depth>0) {
+						if(pos>=text.length())
+							throw error("Unterminated EXISTS");
+						char ch = text.charAt(pos++);
+						if(ch=='[')
+							++depth;
+						else if(ch==']')
+							--depth;
+					}
+					return new Raw(name + text.substring(start, pos).trim());
+				}
+				if(!FUNCTIONS.contains(name))
+					throw error("Unknown function " + name);
+				expect('[');
+				Expression arg = expression(LOGICAL);
+				expect(']');
+				Expression arg2 = null;
+				if(name.equals("ATAN")) {
+					expect('/');
+					expect('[');
+					arg2 = expression(LOGICAL);
+					expect(']');
+				}
+				return new Func(name, arg, arg2);
+			}
+			throw error("Expected value");
+		}
+		
+		/**
+		 * Read a binary expression using precedence climbing
+		 */
+		private Expression expression(int minprec) {
+			Expression left = value();
+			while(true) {
+				int save = pos;
+				String op = operator();
+				if(op==null || Binary.precedence(op) < minprec) {
+					pos = save;
+					return left;
+				}
+				Expression right = expression(Binary.precedence(op)+1);
+				left = new Binary(op, left, right);
+			}
+		}
+		
+		/**
+		 * Read a binary operator
+		 * @return operator or null if the next token is not one
+		 */
+		private String operator() {
+			skip();
+			if(pos>=text.length())
+				return null;
+			final char c = text.charAt(pos);
+			if(c=='*') {
+				++pos;
+				if(pos<text.length() && text.charAt(pos)=='*') {
+					++pos;
+					return "**";
+				}
+				return "*";
+			} else if(c=='/' || c=='+' || c=='-') {
+				++pos;
+				return String.valueOf(c);
+			} else if(Character.isLetter(c)) {
+				String w = word();
+				if(OPERATORS.contains(w))
+					return w;
+			}
+			return null;
+		}
+		
+		private String word() {
+			skip();
+			int start = pos;
+			while(pos<text.length() && Character.isLetter(text.charAt(pos)))
+				++pos;
+			return text.substring(start, pos).toUpperCase();
+		}
+	}
+}
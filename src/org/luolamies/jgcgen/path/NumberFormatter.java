@@ -0,0 +1,159 @@
+/*
+ * This file is part of JGCGen.
+ *
+ * JGCGen is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JGCGen is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JGCGen.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.luolamies.jgcgen.path;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Locale;
+
+/**
+ * Fixed precision number formatter for G-code output.
+ * <p>Numbers are formatted like <code>String.format("%.3f")</code> would,
+ * but always with a period as the decimal separator and without
+ * parsing a pattern or creating intermediate objects. Trailing zeros
+ * can optionally be trimmed. Negative numbers that round to zero are
+ * written without a sign.
+ * <p>The <code>write</code> methods reuse a buffer, so an instance should not
+ * be shared between threads when writing.
+ */
+public final class NumberFormatter {
+	static private final long[] POW10 = {
+		1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L, 10000000L, 100000000L, 1000000000L
+	};
+	/** Largest scaled value that can be rounded with plain arithmetic */
+	static private final double MAXSCALED = 1e15;
+	static private final int BUFFER = 32;
+	
+	private final int precision;
+	private final boolean trim;
+	private final double resolution;
+	private final char[] buffer = new char[BUFFER];
+	
+	/**
+	 * @param precision number of decimals (0-9)
+	 * @param trim trim trailing zeros
+	 */
+	public NumberFormatter(int precision, boolean trim) {
+		if(precision<0 || precision>=POW10.length)
+			throw new IllegalArgumentException("Precision must be between 0 and " + (POW10.length-1));
+		this.precision = precision;
+		this.trim = trim;
+		this.resolution = 1.0 / POW10[precision];
+	}
+	
+	/**
+	 * @return number of decimals
+	 */
+	public int getPrecision() {
+		return precision;
+	}
+	
+	/**
+	 * @return smallest nonzero absolute value (10^-precision)
+	 */
+	public double getResolution() {
+		return resolution;
+	}
+	
+	/**
+	 * Format a number
+	 * @param value
+	 * @return formatted number
+	 */
+	public String format(double value) {
+		char[] buf = new char[BUFFER];
+		int pos = format(value, buf);
+		if(pos<0)
+			return fallback(value);
+		return new String(buf, pos, BUFFER-pos);
+	}
+	
+	/**
+	 * Write a formatted number
+	 * @param out
+	 * @param value
+	 * @throws IOException
+	 */
+	public void write(Writer out, double value) throws IOException {
+		int pos = format(value, buffer);
+		if(pos<0)
+			out.write(fallback(value));
+		else
+			out.write(buffer, pos, BUFFER-pos);
+	}
+	
+	/**
+	 * Format a number to the end of a buffer
+	 * @param value
+	 * @param buf buffer of BUFFER characters
+	 * @return start of the number in the buffer or -1 if the number must be formatted the slow way
+	 */
+	private int format(double value, char[] buf) {
+		final double scaled = Math.abs(value) * POW10[precision];
+		if(!(scaled < MAXSCALED))
+			return -1;
+		
+		// Round half up. If the value is too close to halfway, the decimal
+		// representation of the double decides, as it does with String.format.
+		long n = (long)scaled;
+		final double frac = scaled - n;
+		if(Math.abs(frac - 0.5) <= 4 * Math.ulp(scaled))
+			return -1;
+		if(frac > 0.5)
+			++n;
+		final boolean negative = value<0 && n!=0;
+		
+		// Write the digits backwards from the end of the buffer
+		int pos = BUFFER;
+		boolean trimming = trim;
+		for(int i=0;i<precision;++i) {
+			final int d = (int)(n % 10);
+			n /= 10;
+			if(trimming && d==0)
+				continue;
+			trimming = false;
+			buf[--pos] = (char)('0' + d);
+		}
+		if(pos<BUFFER)
+			buf[--pos] = '.';
+		do {
+			buf[--pos] = (char)('0' + (n % 10));
+			n /= 10;
+		} while(n>0);
+		if(negative)
+			buf[--pos] = '-';
+		return pos;
+	}
+	
+	/**
+	 * Format a number using the standard formatter
+	 */
+	private String fallback(double value) {
+		String s = String.format(Locale.ROOT, "%." + precision + "f", value);
+		if(trim && s.indexOf('.')>=0) {
+			int end = s.length();
+			while(s.charAt(end-1)=='0')
+				--end;
+			if(s.charAt(end-1)=='.')
+				--end;
+			s = s.substring(0, end);
+		}
+		if(s.startsWith("-") && s.matches("-[0.]*"))
+			s = s.substring(1);
+		return s;
+	}
+}
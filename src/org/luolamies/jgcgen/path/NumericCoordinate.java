@@ -16,6 +16,8 @@
  */
 package org.luolamies.jgcgen.path;
 
+import java.io.IOException;
+import java.io.Writer;
 import java.util.EnumMap;
 import java.util.Map;
 
@@ -25,6 +27,9 @@ import java.util.Map;
  *
  */
 public final class NumericCoordinate extends Coordinate {
+	/** Formatter used by {@link #get(Axis)} */
+	static final NumberFormatter FORMAT = new NumberFormatter(3, false);
+	
 	private final EnumMap<Axis, Double> axes;
 
 	private NumericCoordinate(EnumMap<Axis, Double> axes) {
@@ -121,7 +126,31 @@ public final class NumericCoordinate extends Coordinate {
 		// normalize
 		if(Math.abs(d) < 0.001)
 			d = 0.0;
-		return String.format("%.3f", d);
+		return FORMAT.format(d);
+	}
+	
+	@Override
+	public void write(Writer out, NumberFormatter format) throws IOException {
+		boolean first = true;
+		for(Map.Entry<Axis, Double> e : axes.entrySet()) {
+			if(!first)
+				out.write(' ');
+			first = false;
+			out.write(e.getKey().toString());
+			write(out, e.getValue(), format);
+		}
+	}
+	
+	@Override
+	public void write(Writer out, Axis axis, NumberFormatter format) throws IOException {
+		write(out, axes.get(axis), format);
+	}
+	
+	static private void write(Writer out, double d, NumberFormatter format) throws IOException {
+		// normalize
+		if(Math.abs(d) < format.getResolution())
+			d = 0.0;
+		format.write(out, d);
 	}
 	
 	public boolean isDefined(Axis a) {
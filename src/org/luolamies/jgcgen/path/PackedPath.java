@@ -0,0 +1,71 @@
+/*
+ * This file is part of JGCGen.
+ *
+ * JGCGen is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JGCGen is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JGCGen.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.luolamies.jgcgen.path;
+
+import java.util.List;
+
+/**
+ * A path with compact storage.
+ * <p>The coordinates are stored in primitive arrays, one per axis, instead of
+ * coordinate and segment objects. This is meant for large generated paths, such
+ * as surface carving toolpaths. Points can be added without creating
+ * coordinate objects using {@link #addSegment(SType, double, double, double)}.
+ * <p>A packed path behaves exactly like a normal path. Segment objects
+ * are created on the fly when the segments are read.
+ */
+public class PackedPath extends Path implements SegmentSink {
+	private PackedSegments packed;
+
+	public PackedPath() {
+		this(new PackedSegments());
+	}
+
+	private PackedPath(PackedSegments packed) {
+		super(packed, new Bounds());
+		this.packed = packed;
+	}
+
+	/**
+	 * Add a new segment with numeric coordinates.
+	 * @param type segment type
+	 * @param x X coordinate or NaN if undefined
+	 * @param y Y coordinate or NaN if undefined
+	 * @param z Z coordinate or NaN if undefined
+	 */
+	public void addSegment(SType type, double x, double y, double z) {
+		edit();
+		packed.add(type, x, y, z, null);
+		extendBounds(x, y, z);
+	}
+
+	/**
+	 * Push the segments of this path to a sink.
+	 * <p>Only numeric points can be copied. Labels are not copied.
+	 * @param sink the sink
+	 * @throws IllegalStateException if the path contains symbolic coordinates or segments without a point
+	 */
+	public void copyTo(SegmentSink sink) {
+		packed.copyTo(sink);
+	}
+
+	@Override
+	List<Segment> copySegments(List<Segment> segments) {
+		packed = new PackedSegments(segments.size());
+		packed.addAll(segments);
+		return packed;
+	}
+}
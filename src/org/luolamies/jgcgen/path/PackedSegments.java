@@ -0,0 +1,295 @@
+/*
+ * This file is part of JGCGen.
+ *
+ * JGCGen is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JGCGen is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JGCGen.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.luolamies.jgcgen.path;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+
+import org.luolamies.jgcgen.path.Path.Segment;
+import org.luolamies.jgcgen.path.Path.SType;
+
+/**
+ * Column oriented segment storage.
+ * <p>Each axis is stored in its own array, with NaN meaning undefined. Columns
+ * are allocated when an axis is first used. Segment objects are created only when
+ * the list is read through the {@link List} interface.
+ * <p>Symbolic coordinates are stored as objects in a separate column.
+ */
+final class PackedSegments extends AbstractList<Segment> implements RandomAccess {
+	static private final SType[] TYPES = SType.values();
+	static private final Axis[] AXES = Axis.values();
+
+	/** Type flag: segment has no point */
+	static private final int NOPOINT = 0x40;
+	/** Type flag: segment point is in the symbolic column */
+	static private final int SYMBOLIC = 0x20;
+	static private final int TYPEMASK = 0x1f;
+
+	private int size;
+	private byte[] types;
+	private final double[][] axes = new double[AXES.length][];
+	private Coordinate[] symbolic;
+
+	/** Label indices (+1, so zero means no label) */
+	private int[] labels;
+	private final List<String> labeltable;
+	private final Map<String, Integer> labelids;
+
+	PackedSegments() {
+		this(16);
+	}
+
+	PackedSegments(int capacity) {
+		types = new byte[Math.max(capacity, 1)];
+		labeltable = new ArrayList<String>();
+		labelids = new HashMap<String, Integer>();
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public Segment get(int index) {
+		if(index<0 || index>=size)
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+
+		final int t = types[index];
+		final String label = labels!=null && labels[index]!=0 ? labeltable.get(labels[index]-1) : null;
+		final Coordinate point;
+		if((t & NOPOINT)!=0)
+			point = null;
+		else if((t & SYMBOLIC)!=0)
+			point = symbolic[index];
+		else
+			point = getPoint(index);
+		return new Segment(TYPES[t & TYPEMASK], point, label);
+	}
+
+	/**
+	 * Get a numeric point
+	 */
+	private NumericCoordinate getPoint(int index) {
+		NumericCoordinate c = new NumericCoordinate();
+		for(int a=0;a<axes.length;++a) {
+			if(axes[a]!=null) {
+				double v = axes[a][index];
+				if(!Double.isNaN(v))
+					c.set(AXES[a], v);
+			}
+		}
+		return c;
+	}
+
+	/**
+	 * Get the type of a segment
+	 */
+	SType getType(int index) {
+		return TYPES[types[index] & TYPEMASK];
+	}
+
+	/**
+	 * Get the values of a numeric point
+	 * @param index
+	 * @param out values of all axes. NaN means undefined.
+	 * @return false if the segment has no numeric point
+	 */
+	boolean getValues(int index, double[] out) {
+		if(index<0 || index>=size)
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+		if((types[index] & (NOPOINT|SYMBOLIC))!=0)
+			return false;
+		for(int a=0;a<axes.length;++a)
+			out[a] = axes[a]!=null ? axes[a][index] : Double.NaN;
+		return true;
+	}
+
+	@Override
+	public boolean add(Segment s) {
+		if(s.point==null)
+			addEmpty(s.type, s.label);
+		else if(s.point instanceof NumericCoordinate) {
+			final int i = append(s.type, 0, s.label);
+			final NumericCoordinate c = (NumericCoordinate)s.point;
+			for(int a=0;a<AXES.length;++a) {
+				Double v = c.getValue(AXES[a]);
+				if(v!=null)
+					column(a)[i] = v;
+			}
+		} else {
+			final int i = append(s.type, SYMBOLIC, s.label);
+			if(symbolic==null)
+				symbolic = new Coordinate[types.length];
+			symbolic[i] = s.point;
+		}
+		return true;
+	}
+
+	@Override
+	public boolean addAll(Collection<? extends Segment> c) {
+		if(!(c instanceof PackedSegments))
+			return super.addAll(c);
+
+		final PackedSegments p = (PackedSegments)c;
+		final int n = p.size;
+		if(n==0)
+			return false;
+		ensureCapacity(size + n);
+
+		System.arraycopy(p.types, 0, types, size, n);
+		for(int a=0;a<axes.length;++a) {
+			if(p.axes[a]!=null)
+				System.arraycopy(p.axes[a], 0, column(a), size, n);
+			else if(axes[a]!=null)
+				Arrays.fill(axes[a], size, size+n, Double.NaN);
+		}
+		if(p.symbolic!=null) {
+			if(symbolic==null)
+				symbolic = new Coordinate[types.length];
+			System.arraycopy(p.symbolic, 0, symbolic, size, n);
+		}
+		if(p.labels!=null) {
+			for(int i=0;i<n;++i)
+				if(p.labels[i]!=0)
+					setLabel(size+i, p.labeltable.get(p.labels[i]-1));
+		}
+		size += n;
+		return true;
+	}
+
+	/**
+	 * Add a segment with no point
+	 * @param type
+	 * @param label
+	 */
+	void addEmpty(SType type, String label) {
+		append(type, NOPOINT, label);
+	}
+
+	/**
+	 * Add a segment with a numeric XYZ point. NaN means the axis is undefined.
+	 * @param type
+	 * @param x
+	 * @param y
+	 * @param z
+	 * @param label may be null
+	 */
+	void add(SType type, double x, double y, double z, String label) {
+		final int i = append(type, 0, label);
+		if(!Double.isNaN(x))
+			column(0)[i] = x;
+		if(!Double.isNaN(y))
+			column(1)[i] = y;
+		if(!Double.isNaN(z))
+			column(2)[i] = z;
+	}
+
+	/**
+	 * Append a new empty row
+	 * @return index of the new row
+	 */
+	private int append(SType type, int flags, String label) {
+		ensureCapacity(size+1);
+		final int i = size++;
+		types[i] = (byte)(type.ordinal() | flags);
+		for(double[] col : axes)
+			if(col!=null)
+				col[i] = Double.NaN;
+		if(symbolic!=null)
+			symbolic[i] = null;
+		if(labels!=null)
+			labels[i] = 0;
+		if(label!=null)
+			setLabel(i, label);
+		return i;
+	}
+
+	private void setLabel(int i, String label) {
+		if(labels==null)
+			labels = new int[types.length];
+		Integer id = labelids.get(label);
+		if(id==null) {
+			labeltable.add(label);
+			id = labeltable.size();
+			labelids.put(label, id);
+		}
+		labels[i] = id;
+	}
+
+	/**
+	 * Get an axis column, allocating it if needed
+	 */
+	private double[] column(int a) {
+		if(axes[a]==null) {
+			double[] col = new double[types.length];
+			Arrays.fill(col, Double.NaN);
+			axes[a] = col;
+		}
+		return axes[a];
+	}
+
+	private void ensureCapacity(int capacity) {
+		if(capacity <= types.length)
+			return;
+
+		final int len = Math.max(capacity, types.length * 2);
+		types = Arrays.copyOf(types, len);
+		for(int a=0;a<axes.length;++a)
+			if(axes[a]!=null)
+				axes[a] = Arrays.copyOf(axes[a], len);
+		if(symbolic!=null)
+			symbolic = Arrays.copyOf(symbolic, len);
+		if(labels!=null)
+			labels = Arrays.copyOf(labels, len);
+	}
+
+	/**
+	 * Push the numeric rows to a sink
+	 * @param sink
+	 */
+	void copyTo(SegmentSink sink) {
+		final double[] x = axes[0], y = axes[1], z = axes[2];
+		for(int i=0;i<size;++i) {
+			final int t = types[i];
+			if((t & (NOPOINT|SYMBOLIC))!=0)
+				throw new IllegalStateException("Only numeric points can be copied to a segment sink!");
+			sink.addSegment(TYPES[t & TYPEMASK],
+					x!=null ? x[i] : Double.NaN,
+					y!=null ? y[i] : Double.NaN,
+					z!=null ? z[i] : Double.NaN);
+		}
+	}
+
+	/**
+	 * Does this list contain only numeric points?
+	 * @return true if there are no symbolic coordinates
+	 */
+	boolean isNumeric() {
+		if(symbolic!=null)
+			for(int i=0;i<size;++i)
+				if(symbolic[i]!=null)
+					return false;
+		return true;
+	}
+}
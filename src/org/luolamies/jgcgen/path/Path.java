@@ -18,7 +18,6 @@ package org.luolamies.jgcgen.path;
 
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.ListIterator;
@@ -109,22 +108,125 @@ public class Path implements PathGenerator {
 	}
 	
 	private List<Segment> segments;
+	/** Is the segment list shared with a transformed view */
+	private boolean shared;
+	/** Bounding box of the segments. Null if not yet calculated. */
+	private Bounds bounds;
 	
 	public Path() {
 		segments = new ArrayList<Segment>();
+		bounds = new Bounds();
 	}
 	
-	private Path(List<Segment> segments) {
+	Path(List<Segment> segments) {
 		this.segments = segments;
 	}
 	
+	Path(List<Segment> segments, Bounds bounds) {
+		this.segments = segments;
+		this.bounds = bounds;
+	}
+	
+	/**
+	 * Add a segment to the end of the list
+	 */
+	private void append(Segment s) {
+		edit().add(s);
+		if(bounds!=null)
+			bounds.add(s.point);
+	}
+	
+	/**
+	 * Extend the bounding box. This must be called when a point
+	 * is added without {@link #append(Segment)}.
+	 */
+	final void extendBounds(double x, double y, double z) {
+		if(bounds!=null)
+			bounds.add(x, y, z);
+	}
+	
+	/**
+	 * Get the bounding box, calculating it if necessary
+	 */
+	private Bounds bounds() {
+		if(bounds==null) {
+			Bounds b = new Bounds();
+			for(Segment s : segments)
+				b.add(s.point);
+			bounds = b;
+		}
+		return bounds;
+	}
+	
+	/**
+	 * Get the segment list for modification.
+	 * A list shared with a transformed view or another path is replaced first.
+	 * @return segment list
+	 */
+	final List<Segment> edit() {
+		if(shared || segments instanceof TransformedSegments) {
+			segments = copySegments(segments);
+			shared = false;
+		}
+		return segments;
+	}
+	
+	/**
+	 * Make a modifiable list with the same contents as a shared list.
+	 * <p>The shared list is linked as the first chunk of a new {@link SegmentRope},
+	 * so it is not copied.
+	 * @param segments
+	 * @return new list
+	 */
+	List<Segment> copySegments(List<Segment> segments) {
+		return new SegmentRope(segments);
+	}
+	
+	/**
+	 * Append another path's segments by reference if it is large enough.
+	 * The other path's list becomes shared.
+	 * @param path the other path
+	 * @param list the list to append (the other path's segments or a part of them)
+	 */
+	private void link(Path path, List<Segment> list) {
+		final List<Segment> segments = edit();
+		if(list.size() < SegmentRope.MINCHUNK || segments instanceof PackedSegments) {
+			segments.addAll(list);
+			return;
+		}
+		final SegmentRope rope;
+		if(segments instanceof SegmentRope)
+			rope = (SegmentRope)segments;
+		else
+			this.segments = rope = new SegmentRope(segments);
+		rope.link(list);
+		path.shared = true;
+	}
+	
+	/**
+	 * Get a lazily transformed view of this path
+	 * @param t the transformation
+	 * @return transformed path or null if this path is not numeric
+	 */
+	private Path transformed(Transform t) {
+		TransformedSegments view;
+		if(segments instanceof TransformedSegments)
+			view = ((TransformedSegments)segments).then(t);
+		else if(TransformedSegments.isNumeric(segments)) {
+			view = new TransformedSegments(segments, t, bounds!=null ? new Bounds(bounds) : null);
+			shared = true;
+		} else
+			return null;
+		return new Path(view, view.getBounds());
+	}
+	
 	/**
 	 * Add a new segment
 	 * @param type segment type
 	 * @param point segment coordinates
 	 */
 	public void addSegment(SType type, Coordinate point) {
-		segments.add(new Segment(type, point));
+		append(new Segment(type, point));
 	}
 	
 	/**
@@ -134,7 +236,7 @@ public class Path implements PathGenerator {
 	 * @param label
 	 */
 	public void addSegment(SType type, Coordinate point, String label) {
-		segments.add(new Segment(type, point, label));
+		append(new Segment(type, point, label));
 	}
 	
 	/**
@@ -143,7 +245,7 @@ public class Path implements PathGenerator {
 	 * @param point gcode coordinates
 	 */
 	public void addSegment(String type, String point) {
-		segments.add(new Segment(
+		append(new Segment(
 				SType.valueOf(type.toUpperCase()),
 				Coordinate.parse(point)
 				));
@@ -164,8 +266,10 @@ public class Path implements PathGenerator {
 			segments.get(segments.size()-1).type != SType.SEAM &&
 			path.segments.get(0).type!=SType.SEAM;
 		if(addseam)
-			segments.add(new Segment(SType.SEAM, null));
-		segments.addAll(path.segments);
+			append(new Segment(SType.SEAM, null));
+		link(path, path.segments);
+		if(bounds!=null)
+			bounds.add(path.bounds());
 	}
 
 	public void merge(PathGenerator pathg) {
@@ -175,14 +279,16 @@ public class Path implements PathGenerator {
 		if(path.getSize()==0)
 			return;
 		
-		Iterator<Segment> i = path.segments.iterator();
-		Segment s = i.next();
+		final List<Segment> other = path.segments;
+		final int n = other.size();
+		Segment s = other.get(0);
 		if(s.type==SType.MOVE) {
-			addSegment(SType.LINE, s.point);
+			edit().add(new Segment(SType.LINE, s.point));
 		} else
-			this.segments.add(s);
-		while(i.hasNext())
-			this.segments.add(i.next());
+			edit().add(s);
+		link(path, other.subList(1, n));
+		if(bounds!=null)
+			bounds.add(path.bounds());
 	}
 	
 	public List<Segment> getSegments() {
@@ -202,7 +308,7 @@ public class Path implements PathGenerator {
 					subpaths.add(sp);
 				sp = new Path();
 			} else
-				sp.segments.add(s);
+				sp.append(s);
 		}
 		if(!sp.isEmpty())
 			subpaths.add(sp);
@@ -229,7 +335,7 @@ public class Path implements PathGenerator {
 				}
 			}
 			
-			sp.segments.add(s);
+			sp.append(s);
 		}
 		if(!sp.isEmpty()) {
 			if(sp.segments.get(0).getType() == SType.SEAM) {
@@ -255,7 +361,7 @@ public class Path implements PathGenerator {
 				if(s.type==SType.SEAM)
 					break;
 				else
-					subpath.segments.add(s);
+					subpath.append(s);
 			} else {
 				if(s.type==SType.SEAM && name.equals(s.label))
 					include = true;
@@ -299,12 +405,18 @@ public class Path implements PathGenerator {
 	 * @return copy of this path with the offset
 	 */
 	public Path offset(Coordinate offset) {
+		if(offset instanceof NumericCoordinate) {
+			Path tp = transformed(Transform.offset((NumericCoordinate)offset));
+			if(tp!=null)
+				return tp;
+		}
+		
 		Path op = new Path();
 		for(Segment s : segments) {
 			if(s.point!=null)
-				op.segments.add(new Segment(s.type, s.point.offset(offset)));
+				op.append(new Segment(s.type, s.point.offset(offset)));
 			else
-				op.segments.add(s);
+				op.append(s);
 		}
 		return op;
 	}
@@ -324,12 +436,29 @@ public class Path implements PathGenerator {
 	 * @return scaled path
 	 */
 	public Path scale(String scale) {
+		Transform t = null;
+		String sc = scale.trim();
+		int i=0;
+		while(i<sc.length() && sc.charAt(i)=='-') ++i;
+		if(i<sc.length() && Character.isDigit(sc.charAt(i)))
+			t = Transform.scale(Double.parseDouble(sc));
+		else if(i==0 && sc.length()>0 && sc.charAt(0)!='#' && sc.charAt(0)!='[') {
+			Coordinate c = Coordinate.parse(sc);
+			if(c instanceof NumericCoordinate)
+				t = Transform.scale((NumericCoordinate)c);
+		}
+		if(t!=null) {
+			Path tp = transformed(t);
+			if(tp!=null)
+				return tp;
+		}
+		
 		Path op = new Path();
 		for(Segment s : segments) {
 			if(s.point!=null)
-				op.segments.add(new Segment(s.type, s.point.scale(scale)));
+				op.append(new Segment(s.type, s.point.scale(scale)));
 			else
-				op.segments.add(s);
+				op.append(s);
 		}
 		return op;
 	}
@@ -341,6 +470,12 @@ public class Path implements PathGenerator {
 	 */
 	public Path rotate(String rotation) {
 		Coordinate r = Coordinate.parse(rotation);
+		if(r instanceof NumericCoordinate) {
+			Path tp = transformed(Transform.rotate((NumericCoordinate)r));
+			if(tp!=null)
+				return tp;
+		}
+		
 		Path op = new Path();
 		Coordinate prev = null;
 		for(Segment s : segments) {
@@ -349,9 +484,9 @@ public class Path implements PathGenerator {
 				if(prev!=null)
 					p = p.fillIn(prev);
 				prev = p;
-				op.segments.add(new Segment(s.type, p.rotate(r)));
+				op.append(new Segment(s.type, p.rotate(r)));
 			} else
-				op.segments.add(s);
+				op.append(s);
 		}
 		return op;
 	}
@@ -369,36 +504,36 @@ public class Path implements PathGenerator {
 				if(prev!=null)
 					point = point.fillIn(prev);
 				prev = point;
-				p.segments.add(new Segment(s.type, point));
+				p.append(new Segment(s.type, point));
 			} else
-				p.segments.add(s);
+				p.append(s);
 		}
 		return p;
 	}
 	
+	/**
+	 * Get the bounding box of the path.
+	 * <p>The bounds are kept up to date as segments are added, so this is cheap to call.
+	 * @return bounds
+	 * @throws RenderException if the path is not numeric
+	 */
+	public Bounds getBounds() {
+		Bounds b = bounds();
+		if(b.isSymbolic())
+			throw new RenderException("Bounds can only be calculated for numeric paths!");
+		return new Bounds(b);
+	}
+	
 	/**
 	 * Get the dimension of the path on the given axis
 	 * @param axis
-	 * @return dimension
+	 * @return dimension or zero if no point defines the axis
 	 */
 	public double getDimension(Axis axis) {
-		double min = Double.MAX_VALUE, max = -Double.MAX_VALUE;
-		try {
-			for(Segment s : segments) {
-				if(s.point!=null) {
-					Double d = ((NumericCoordinate)s.point).getValue(axis);
-					if(d!=null) {
-						if(d<min)
-							min = d;
-						if(d>max)
-							max = d;
-					}
-				}
-			}
-		} catch(ClassCastException e) {
+		Bounds b = bounds();
+		if(b.isSymbolic())
 			throw new RenderException("getDimension can only be used with numeric paths!");
-		}
-		return max-min;
+		return b.isDefined(axis) ? b.getSize(axis) : 0;
 	}
 	
 	/**
@@ -442,52 +577,24 @@ public class Path implements PathGenerator {
 			}
 		}
 		
-		// Initialize bounds variables
-		Double[] min = new Double[3];
-		Double[] max = new Double[3];
-		
-		// Find path bounds
-		for(Segment s : segments) {
-			if(s.point!=null) {
-				NumericCoordinate nc = (NumericCoordinate)s.point;
-				for(int i=0;i<3;++i) {
-					Axis a = Axis.values()[i];
-					Double val = nc.getValue(a);
-					if(val!=null) {
-						if(min[i]==null)
-							min[i] = max[i] = val;
-						else if(val < min[i])
-							min[i] = val;
-						else if(val > max[i])
-							max[i] = val;
-					}
-				}
-			}
-		}
+		Bounds b = getBounds();
 		
 		// Calculate offset
 		NumericCoordinate offset = new NumericCoordinate();
 		for(int i=0;i<3;++i) {
-			if(align[i]!=null && min[i]!=null) {
-				Axis a = Axis.values()[i];
+			Axis a = Axis.values()[i];
+			if(align[i]!=null && b.isDefined(a)) {
+				double min = b.getMin(a), max = b.getMax(a);
 				if(align[i]<0)
-					offset.set(a, -min[i]);
+					offset.set(a, -min);
 				else if(align[i]>0)
-					offset.set(a, -max[i]);
+					offset.set(a, -max);
 				else
-					offset.set(a, -min[i] - (max[i]-min[i])/2.0);
+					offset.set(a, -min - (max-min)/2.0);
 			}
 		}
 		
-		// Apply offset
-		Path np = new Path();
-		for(Segment s : segments) {
-			if(s.point!=null)
-				np.addSegment(s.type, s.point.offset(offset));
-			else
-				np.segments.add(s);
-		}
-		return np;
+		return offset(offset);
 	}
 
 	/**
@@ -517,6 +624,12 @@ public class Path implements PathGenerator {
 			// Value is not numeric: numeric paths will be converted to symbolic.
 		}
 		
+		if(value==null || dv!=null) {
+			Path tp = transformed(Transform.set(a, dv));
+			if(tp!=null)
+				return tp;
+		}
+		
 		for(Segment s : segments) {
 			if(s.point!=null) {
 				Coordinate c;
@@ -538,9 +651,9 @@ public class Path implements PathGenerator {
 					else
 						((SymbolicCoordinate)c).set(a, value);
 				}
-				np.segments.add(new Segment(s.type, c));
+				np.append(new Segment(s.type, c));
 			} else
-				np.segments.add(s);
+				np.append(s);
 		}
 		
 		return np;
@@ -596,66 +709,84 @@ public class Path implements PathGenerator {
 	}
 
 	/**
-	 * Simplify this path. Note. This works only on numeric 3 axis paths.
-	 * <p>
-	 * Does the following changes:
-	 * <ul>
-	 * <li>Merge linear moves
-	 * </ul>
+	 * Simplify this path using the default tolerance of 0.001.
+	 * @see #reduce(double)
 	 */
 	public Path reduce() {
-		Path rp = new Path();
-		int i=0;
-		int start=-1;
-		
-		while(i<segments.size()) {
-			Segment s = segments.get(i);
-			if(s.type==SType.LINE) {
-				if(start<0) {
-					// Start a new line to reduce
-					start = i;
-					rp.segments.add(s);
-				} else {
-					if(i>start+1) {
-						// We don't have anything to reduce until at least three points: start - X* - current.
-						// Extrapolate a point based on two previous points and the distance to the current point.
-						// Print current point if not close enough to the extrapolated point.
-						NumericCoordinate p1 = (NumericCoordinate)segments.get(i-2).point;
-						NumericCoordinate p2 = (NumericCoordinate)segments.get(i-1).point;
-						NumericCoordinate p3 = (NumericCoordinate)segments.get(i).point;
-						
-						double dist12 = p1.distance(p2);
-						double dist23 = p2.distance(p3);
-						NumericCoordinate e = new NumericCoordinate(
-							p2.getValue(Axis.X) + (p2.getValue(Axis.X) - p1.getValue(Axis.X)) / dist12 * dist23, 
-							p2.getValue(Axis.Y) + (p2.getValue(Axis.Y) - p1.getValue(Axis.Y)) / dist12 * dist23,
-							p2.getValue(Axis.Z) + (p2.getValue(Axis.Z) - p1.getValue(Axis.Z)) / dist12 * dist23
-							);
-						if(p3.distance(e) > 0.001) {
-							rp.segments.add(segments.get(i-1));
-							start = i-1;
-						}
-					}
-				}
-			} else {
-				// Any other type in between resets the reduction.
-				if(start>=0) {
-					rp.segments.add(segments.get(i-1));
-					start = -1;
-				}
-				// We can treat rapids as line starting points
-				if(s.type==SType.MOVE)
-					start = i;
-				rp.segments.add(s);
+		return reduce(0.001);
+	}
+	
+	/**
+	 * Simplify this path.
+	 * <p>Runs of linear moves are simplified using the Douglas-Peucker
+	 * algorithm. Points are dropped only if they are no farther than the
+	 * tolerance from the simplified path.
+	 * Other segment types, seams, labeled segments and symbolic coordinates
+	 * are left as they are and split the runs.
+	 * @param tolerance maximum distance of a dropped point from the simplified path
+	 * @return simplified path
+	 */
+	public Path reduce(double tolerance) {
+		final Path rp = new Path();
+		SegmentReducer r = new SegmentReducer(tolerance) {
+			protected void emit(Segment s) {
+				rp.append(s);
 			}
-			++i;
-		}
-		if(start>=0)
-			rp.segments.add(segments.get(i-1));
-		
+		};
+		for(Segment s : segments)
+			r.add(s);
+		r.finish();
 		return rp;
 	}
 	
+	/**
+	 * Replace runs of linear moves with arcs in the XY plane.
+	 * <p>The lines are approximated with tangent continuous arcs
+	 * that stay within the tolerance of the original path.
+	 * Sharp corners are preserved. Like with {@link #reduce(double)},
+	 * other segment types, seams, labeled segments and symbolic coordinates
+	 * are left as they are. Lines that change the Z coordinate are not fitted.
+	 * @param tolerance maximum distance of the arcs from the original path
+	 * @return path with arcs
+	 */
+	public Path fitArcs(double tolerance) {
+		final Path ap = new Path();
+		SegmentReducer r = new ArcFitter(tolerance) {
+			protected void emit(Segment s) {
+				ap.append(s);
+			}
+		};
+		for(Segment s : segments)
+			r.add(s);
+		r.finish();
+		return ap;
+	}
+	
+	/**
+	 * Reorder the subpaths to shorten the rapid moves between them.
+	 * <p>Subpaths start at each MOVE. Flat open subpaths made of lines and arcs
+	 * may be reversed and flat closed loops may be started at any vertex.
+	 * Subpaths inside the bounding box of a closed subpath are cut before it.
+	 * The rapid distance before and after is reported in verbose mode.
+	 * @return reordered path
+	 * @throws RenderException if the path contains symbolic coordinates
+	 */
+	public Path optimizeOrder() {
+		return new PathOrderer(segments).optimize();
+	}
+	
+	/**
+	 * Calculate statistics of this path.
+	 * <p>The path is measured when the results are first read, so the
+	 * machine model can be set after calling this, e.g.
+	 * <code>#set($stats.feed = 800)</code>.
+	 * @return path statistics
+	 * @see PathStats
+	 */
+	public PathStats stats() {
+		return new PathStats(this);
+	}
+	
 	/**
 	 * @return this
 	 */
@@ -0,0 +1,517 @@
+/*
+ * This file is part of JGCGen.
+ *
+ * JGCGen is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JGCGen is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JGCGen.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.luolamies.jgcgen.path;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import org.luolamies.jgcgen.JGCGenerator;
+import org.luolamies.jgcgen.Logger;
+import org.luolamies.jgcgen.RenderException;
+import org.luolamies.jgcgen.path.Path.SType;
+import org.luolamies.jgcgen.path.Path.Segment;
+
+/**
+ * Subpath ordering to minimize rapid moves.
+ * <p>Each subpath is a node. The nodes are first ordered with a nearest
+ * neighbour search, starting from the origin, and the order is then refined
+ * with 2-opt moves. Flat open paths may be reversed and flat closed loops may
+ * be entered at any vertex. Loops are never reversed, since that would change
+ * the cutting direction.
+ * <p>A subpath whose bounding box is inside the bounding box of a closed
+ * subpath is always cut before it, so inner parts are not cut loose
+ * before they are finished.
+ */
+final class PathOrderer {
+	/** Maximum distance between the two segments swapped in a 2-opt move */
+	static private final int WINDOW = 1000;
+	/** Maximum number of 2-opt passes */
+	static private final int MAXPASSES = 20;
+	/** Minimum improvement accepted in a 2-opt move */
+	static private final double EPSILON = 1e-9;
+	
+	static private final class Node {
+		/** Index in the original order */
+		int id;
+		/** Labeled seams that precede the subpath */
+		final List<Segment> head = new ArrayList<Segment>();
+		final List<Segment> body = new ArrayList<Segment>();
+		/** XY coordinates of the body points */
+		double[] vx, vy;
+		/** The constant Z of a flat subpath or null */
+		Double z;
+		/** Can this loop be entered at any vertex */
+		boolean loop;
+		/** Can this open path be reversed */
+		boolean flip;
+		/** Is this a closed subpath (for inner/outer checks) */
+		boolean closed;
+		double minx, miny, maxx, maxy;
+		
+		/** Nodes that must be cut after this one */
+		final List<Integer> outer = new ArrayList<Integer>();
+		/** Number of nodes that must be cut before this one */
+		int inner;
+		
+		/** Chosen entry vertex (loops) */
+		int entry;
+		/** Is the path reversed */
+		boolean reversed;
+		
+		int last() {
+			return vx.length-1;
+		}
+		double entryX() {
+			return loop ? vx[entry] : reversed ? vx[last()] : vx[0];
+		}
+		double entryY() {
+			return loop ? vy[entry] : reversed ? vy[last()] : vy[0];
+		}
+		double exitX() {
+			return loop ? vx[entry] : reversed ? vx[0] : vx[last()];
+		}
+		double exitY() {
+			return loop ? vy[entry] : reversed ? vy[0] : vy[last()];
+		}
+		double area() {
+			return (maxx-minx) * (maxy-miny);
+		}
+	}
+	
+	private final Node[] nodes;
+	/** Is the first node fixed (it does not start with a rapid) */
+	private final boolean pinned;
+	/** Labeled seams at the end of the path */
+	private final List<Segment> tail = new ArrayList<Segment>();
+	
+	PathOrderer(List<Segment> segments) {
+		List<Node> list = new ArrayList<Node>();
+		List<Segment> seams = new ArrayList<Segment>();
+		Node node = new Node();
+		for(Segment s : segments) {
+			if(s.type==SType.SEAM) {
+				seams.add(s);
+				continue;
+			}
+			if(s.type==SType.MOVE && !node.body.isEmpty()) {
+				addNode(list, node);
+				node = new Node();
+			}
+			if(node.body.isEmpty()) {
+				// Seams are added between all subpaths in the result,
+				// so only labeled ones need to be kept.
+				for(Segment seam : seams)
+					if(seam.label!=null)
+						node.head.add(seam);
+			} else {
+				node.body.addAll(seams);
+			}
+			seams.clear();
+			node.body.add(s);
+		}
+		if(!node.body.isEmpty())
+			addNode(list, node);
+		for(Segment seam : seams)
+			if(seam.label!=null)
+				tail.add(seam);
+		
+		nodes = list.toArray(new Node[list.size()]);
+		pinned = nodes.length>0 && nodes[0].body.get(0).type!=SType.MOVE;
+		fillIn();
+		findInnerNodes();
+	}
+	
+	static private void addNode(List<Node> list, Node n) {
+		n.id = list.size();
+		list.add(n);
+	}
+	
+	/**
+	 * Calculate the XY coordinates of each point
+	 */
+	private void fillIn() {
+		double x = 0, y = 0;
+		for(Node n : nodes) {
+			n.vx = new double[n.body.size()];
+			n.vy = new double[n.body.size()];
+			for(int i=0;i<n.body.size();++i) {
+				Coordinate c = n.body.get(i).point;
+				if(c!=null) {
+					if(!(c instanceof NumericCoordinate))
+						throw new RenderException("optimizeOrder can only be used with numeric paths!");
+					NumericCoordinate nc = (NumericCoordinate)c;
+					x = nc.getValue(Axis.X, x);
+					y = nc.getValue(Axis.Y, y);
+				}
+				n.vx[i] = x;
+				n.vy[i] = y;
+			}
+			classify(n);
+		}
+	}
+	
+	/**
+	 * Check what can be done to a subpath
+	 */
+	static private void classify(Node n) {
+		n.minx = n.maxx = n.vx[0];
+		n.miny = n.maxy = n.vy[0];
+		for(int i=1;i<n.vx.length;++i) {
+			n.minx = Math.min(n.minx, n.vx[i]);
+			n.maxx = Math.max(n.maxx, n.vx[i]);
+			n.miny = Math.min(n.miny, n.vy[i]);
+			n.maxy = Math.max(n.maxy, n.vy[i]);
+		}
+		final int last = n.last();
+		n.closed = last>=2 && Math.abs(n.vx[0]-n.vx[last]) < EPSILON && Math.abs(n.vy[0]-n.vy[last]) < EPSILON;
+		
+		if(n.body.get(0).type!=SType.MOVE || last<1)
+			return;
+		
+		// Only flat paths of unlabeled lines and arcs can be rearranged
+		Double z = null;
+		for(int i=0;i<=last;++i) {
+			Segment s = n.body.get(i);
+			if(s.point==null || s.label!=null)
+				return;
+			if(i>0 && s.type!=SType.LINE && s.type!=SType.CWARC && s.type!=SType.CCWARC)
+				return;
+			NumericCoordinate c = (NumericCoordinate)s.point;
+			if(c.isDefined(Axis.A) || c.isDefined(Axis.B) || c.isDefined(Axis.C) || c.isDefined(Axis.K))
+				return;
+			Double cz = c.getValue(Axis.Z);
+			if(cz!=null) {
+				if(z==null)
+					z = cz;
+				else if(!z.equals(cz))
+					return;
+			}
+		}
+		n.z = z;
+		if(n.closed)
+			n.loop = true;
+		else
+			n.flip = true;
+	}
+	
+	/**
+	 * Find the subpaths that must be cut before the closed subpaths around them
+	 */
+	private void findInnerNodes() {
+		final int start = pinned ? 1 : 0;
+		
+		// Sort the nodes by their left edge, so only the nodes that start
+		// inside an outer node's bounding box need to be checked.
+		final Integer[] sorted = new Integer[nodes.length-start];
+		for(int i=0;i<sorted.length;++i)
+			sorted[i] = start + i;
+		Arrays.sort(sorted, new Comparator<Integer>() {
+			public int compare(Integer o1, Integer o2) {
+				return Double.compare(nodes[o1].minx, nodes[o2].minx);
+			}
+		});
+		final double[] left = new double[sorted.length];
+		for(int i=0;i<sorted.length;++i)
+			left[i] = nodes[sorted[i]].minx;
+		
+		for(int o=start;o<nodes.length;++o) {
+			final Node outer = nodes[o];
+			if(!outer.closed)
+				continue;
+			final double area = outer.area();
+			
+			int k = Arrays.binarySearch(left, outer.minx);
+			if(k<0)
+				k = -k - 1;
+			while(k>0 && left[k-1]==outer.minx)
+				--k;
+			for(;k<sorted.length && left[k]<=outer.maxx;++k) {
+				final int i = sorted[k];
+				final Node n = nodes[i];
+				if(i==o)
+					continue;
+				final double a = n.area();
+				if((a < area || (a==area && i<o)) &&
+						n.maxx <= outer.maxx &&
+						n.miny >= outer.miny && n.maxy <= outer.maxy) {
+					n.outer.add(o);
+					++outer.inner;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Find the new order
+	 * @return reordered path
+	 */
+	Path optimize() {
+		final double before = rapids(nodes);
+		
+		Node[] order = nearestNeighbour();
+		twoOpt(order);
+		chooseEntries(order);
+		
+		final double after = rapids(order);
+		Logger log = JGCGenerator.getLogger();
+		if(log!=null)
+			log.status("optimizeOrder: " + nodes.length + " subpaths. Rapids " + String.format("%.1f", before) + " -> " + String.format("%.1f", after));
+		
+		Path path = new Path();
+		for(Node n : order)
+			path.addPath(toPath(n));
+		for(Segment s : tail)
+			path.addSegment(s.type, s.point, s.label);
+		return path;
+	}
+	
+	/**
+	 * Calculate the total length of rapids between the subpaths, starting from the origin
+	 */
+	static private double rapids(Node[] order) {
+		double x = 0, y = 0, len = 0;
+		for(Node n : order) {
+			len += dist(n.entryX()-x, n.entryY()-y);
+			x = n.exitX();
+			y = n.exitY();
+		}
+		return len;
+	}
+	
+	/**
+	 * Greedy ordering: always go to the nearest available entry point.
+	 */
+	private Node[] nearestNeighbour() {
+		final int count = nodes.length;
+		final int[] ostart = new int[count+1];
+		for(int o=0;o<count;++o) {
+			final Node n = nodes[o];
+			ostart[o+1] = ostart[o] + (n.loop ? n.last() : n.flip ? 2 : 1);
+		}
+		final double[] px = new double[ostart[count]], py = new double[ostart[count]];
+		for(int o=0;o<count;++o) {
+			final Node n = nodes[o];
+			int p = ostart[o];
+			if(n.loop) {
+				for(int v=0;v<n.last();++v,++p) {
+					px[p] = n.vx[v];
+					py[p] = n.vy[v];
+				}
+			} else {
+				px[p] = n.vx[0];
+				py[p] = n.vy[0];
+				if(n.flip) {
+					px[p+1] = n.vx[n.last()];
+					py[p+1] = n.vy[n.last()];
+				}
+			}
+		}
+		final PointGrid grid = new PointGrid(px, py, ostart);
+		
+		final Node[] order = new Node[count];
+		int pos = 0;
+		double x = 0, y = 0;
+		if(pinned) {
+			order[pos++] = nodes[0];
+			grid.remove(0);
+			x = nodes[0].exitX();
+			y = nodes[0].exitY();
+		}
+		for(int o=pos;o<count;++o)
+			grid.setEnabled(o, nodes[o].inner==0);
+		
+		while(pos<count) {
+			final int p = grid.nearest(x, y);
+			final int o = grid.getOwner(p);
+			final Node n = nodes[o];
+			if(n.loop)
+				n.entry = p - ostart[o];
+			else
+				n.reversed = p != ostart[o];
+			grid.remove(o);
+			for(int v : n.outer)
+				if(--nodes[v].inner==0)
+					grid.setEnabled(v, true);
+			
+			order[pos++] = n;
+			x = n.exitX();
+			y = n.exitY();
+		}
+		return order;
+	}
+	
+	/**
+	 * Improve the order by reversing runs of subpaths
+	 */
+	private void twoOpt(Node[] order) {
+		final int count = order.length;
+		final int first = pinned ? 1 : 0;
+		final int[] position = new int[nodes.length];
+		final int[] fixed = new int[count+1];
+		// Nodes whose neighbours have not changed since they were last checked
+		final boolean[] checked = new boolean[nodes.length];
+		
+		for(int pass=0;pass<MAXPASSES;++pass) {
+			// Index the current order
+			for(int k=0;k<count;++k) {
+				position[order[k].id] = k;
+				fixed[k+1] = fixed[k] + (order[k].loop || order[k].flip ? 0 : 1);
+			}
+			
+			boolean improved = false;
+			for(int i=first;i<count;++i) {
+				if(checked[order[i].id])
+					continue;
+				checked[order[i].id] = true;
+				final double x0 = i>0 ? order[i-1].exitX() : 0, y0 = i>0 ? order[i-1].exitY() : 0;
+				final Node ni = order[i];
+				final double d0 = dist(ni.entryX()-x0, ni.entryY()-y0);
+				final int jmax = Math.min(count-1, i+WINDOW);
+				for(int j=i+1;j<=jmax;++j) {
+					if(fixed[j+1]-fixed[i] > 0)
+						break;
+					final Node nj = order[j];
+					double gain = d0 - dist(nj.exitX()-x0, nj.exitY()-y0);
+					if(j+1<count) {
+						final Node nn = order[j+1];
+						gain += dist(nn.entryX()-nj.exitX(), nn.entryY()-nj.exitY())
+							- dist(nn.entryX()-ni.entryX(), nn.entryY()-ni.entryY());
+					}
+					if(gain > EPSILON && canReverse(order, position, i, j)) {
+						if(i>0)
+							checked[order[i-1].id] = false;
+						checked[ni.id] = false;
+						checked[nj.id] = false;
+						if(j+1<count)
+							checked[order[j+1].id] = false;
+						reverse(order, i, j);
+						for(int k=i;k<=j;++k)
+							position[order[k].id] = k;
+						improved = true;
+						break;
+					}
+				}
+			}
+			if(!improved)
+				break;
+		}
+	}
+	
+	/**
+	 * Check that reversing a run does not cut an outer subpath before an inner one
+	 */
+	private boolean canReverse(Node[] order, int[] position, int i, int j) {
+		for(int k=i;k<=j;++k) {
+			for(int v : order[k].outer) {
+				final int p = position[v];
+				if(p>k && p<=j)
+					return false;
+			}
+		}
+		return true;
+	}
+	
+	static private void reverse(Node[] order, int i, int j) {
+		for(int k=i;k<=j;++k)
+			if(order[k].flip)
+				order[k].reversed = !order[k].reversed;
+		while(i<j) {
+			Node t = order[i];
+			order[i++] = order[j];
+			order[j--] = t;
+		}
+	}
+	
+	/**
+	 * Pick the best entry vertices for loops and directions for open paths
+	 * now that the neighbours are known.
+	 */
+	private void chooseEntries(Node[] order) {
+		double x = 0, y = 0;
+		for(int k=0;k<order.length;++k) {
+			final Node n = order[k];
+			final Node next = k+1<order.length ? order[k+1] : null;
+			if(n.loop) {
+				double best = Double.MAX_VALUE;
+				for(int v=0;v<n.last();++v) {
+					double d = dist(n.vx[v]-x, n.vy[v]-y);
+					if(next!=null)
+						d += dist(next.entryX()-n.vx[v], next.entryY()-n.vy[v]);
+					if(d < best) {
+						best = d;
+						n.entry = v;
+					}
+				}
+			} else if(n.flip) {
+				double d0 = dist(n.vx[0]-x, n.vy[0]-y), d1 = dist(n.vx[n.last()]-x, n.vy[n.last()]-y);
+				if(next!=null) {
+					d0 += dist(next.entryX()-n.vx[n.last()], next.entryY()-n.vy[n.last()]);
+					d1 += dist(next.entryX()-n.vx[0], next.entryY()-n.vy[0]);
+				}
+				n.reversed = d1 < d0;
+			}
+			x = n.exitX();
+			y = n.exitY();
+		}
+	}
+	
+	/**
+	 * Build the path of a subpath with the chosen entry and direction
+	 */
+	static private Path toPath(Node n) {
+		Path p = new Path();
+		for(Segment s : n.head)
+			p.addSegment(s.type, s.point, s.label);
+		
+		if(n.loop && n.entry>0) {
+			p.addSegment(SType.MOVE, point(n, n.entry));
+			for(int i=n.entry+1;i<=n.last();++i)
+				p.addSegment(n.body.get(i).type, n.body.get(i).point);
+			for(int i=1;i<=n.entry;++i)
+				p.addSegment(n.body.get(i).type, n.body.get(i).point);
+		} else if(n.flip && n.reversed) {
+			p.addSegment(SType.MOVE, point(n, n.last()));
+			for(int i=n.last();i>0;--i) {
+				final Segment s = n.body.get(i);
+				final NumericCoordinate c = point(n, i-1);
+				if(s.type==SType.LINE) {
+					p.addSegment(SType.LINE, c);
+				} else {
+					// The arc center relative to the new start point
+					final NumericCoordinate a = (NumericCoordinate)s.point;
+					c.set(Axis.I, n.vx[i-1] + a.getValue(Axis.I, 0) - n.vx[i]);
+					c.set(Axis.J, n.vy[i-1] + a.getValue(Axis.J, 0) - n.vy[i]);
+					p.addSegment(s.type==SType.CWARC ? SType.CCWARC : SType.CWARC, c);
+				}
+			}
+		} else {
+			for(Segment s : n.body)
+				p.addSegment(s.type, s.point, s.label);
+		}
+		return p;
+	}
+	
+	static private double dist(double dx, double dy) {
+		return Math.sqrt(dx*dx + dy*dy);
+	}
+	
+	static private NumericCoordinate point(Node n, int i) {
+		return new NumericCoordinate(n.vx[i], n.vy[i], n.z);
+	}
+}
@@ -0,0 +1,425 @@
+/*
+ * This file is part of JGCGen.
+ *
+ * JGCGen is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JGCGen is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JGCGen.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.luolamies.jgcgen.path;
+
+import java.util.Locale;
+
+import org.luolamies.jgcgen.RenderException;
+import org.luolamies.jgcgen.path.Path.SType;
+import org.luolamies.jgcgen.path.Path.Segment;
+
+/**
+ * Path statistics and machining time estimate.
+ * <p>The path is walked the way the 3axis router would cut it: rapids retract
+ * to safe Z, move over the next point and drop to near Z, followed by a plunge
+ * at the plunge feed rate. The machine model (feed rates, heights and acceleration)
+ * must be set before the results are read. Feed rates are in units per minute,
+ * the acceleration in units per second squared and times in seconds.
+ * <p>If the acceleration is zero, every move is assumed to run at full speed.
+ * Otherwise feed moves are planned with a trapezoidal velocity profile. Corner
+ * speeds are limited by the junction deviation and arc speeds by the centripetal
+ * acceleration. Rapids and plunges start and end at rest.
+ * <p>Unknown (NaN) heights are skipped: the vertical parts of rapids are not counted.
+ * An unknown feed rate makes the time estimate unknown too.
+ * <p>Segments can also be pushed to a stats object as a {@link SegmentSink}.
+ * Call {@link #finish()} after the last segment.
+ */
+public final class PathStats implements SegmentSink {
+	/** Number of feed moves the planner looks ahead */
+	static private final int WINDOW = 1024;
+	/** Cosines of the multiples of 90 degrees */
+	static private final double[] COS = { 1, 0, -1, 0 };
+	
+	// Machine model
+	private double feed = Double.NaN, plungefeed = Double.NaN, rapidfeed = 2000;
+	private double safez = Double.NaN, nearz = Double.NaN, offset = Double.NaN;
+	private boolean rapidnear;
+	private double accel, deviation = 0.01;
+	private int passes = 1;
+	
+	/** The path to measure on demand, or null if segments are pushed */
+	private final Path path;
+	private boolean started, finished;
+	
+	// Results
+	private double cutlen, rapidlen, minseg, seglen, time;
+	private long segments;
+	private Bounds bounds;
+	
+	// Current position and state
+	private double cx, cy, cz;
+	private boolean firstrapid, plunge;
+	
+	// Planner buffer of feed moves since the last stop
+	private final double[] len = new double[WINDOW], vmax = new double[WINDOW], vjunction = new double[WINDOW];
+	private final double[] ventry = new double[WINDOW+1];
+	private int n;
+	/** Exit direction of the previous feed move */
+	private double px, py, pz;
+	
+	/**
+	 * Create stats for pushed segments
+	 */
+	public PathStats() {
+		this.path = null;
+		reset();
+	}
+	
+	/**
+	 * Create stats for a path. The path is measured when the results are first read.
+	 * @param path
+	 */
+	PathStats(Path path) {
+		this.path = path;
+		reset();
+	}
+	
+	private void reset() {
+		cutlen = rapidlen = seglen = time = 0;
+		minseg = Double.NaN;
+		segments = 0;
+		bounds = new Bounds();
+		cx = cy = cz = Double.NaN;
+		firstrapid = true;
+		plunge = false;
+		n = 0;
+		started = finished = false;
+	}
+	
+	/**
+	 * Mark the results as invalid after the model was changed
+	 */
+	private void changed() {
+		if(path==null) {
+			if(started)
+				throw new IllegalStateException("The machine model must be set before segments are added!");
+		} else
+			reset();
+	}
+	
+	/** @param feed normal feed rate */
+	public void setFeed(double feed) { this.feed = feed; changed(); }
+	/** @param feed plunge feed rate */
+	public void setPlungeFeed(double feed) { this.plungefeed = feed; changed(); }
+	/** @param feed rapid rate (default 2000) */
+	public void setRapidFeed(double feed) { this.rapidfeed = feed; changed(); }
+	/** @param z safe Z height */
+	public void setSafeZ(double z) { this.safez = z; changed(); }
+	/** @param z near Z height */
+	public void setNearZ(double z) { this.nearz = z; changed(); }
+	/** @param rapidnear do rapids inside the path at near Z */
+	public void setRapidNear(boolean rapidnear) { this.rapidnear = rapidnear; changed(); }
+	/** @param offset Z offset like the offset parameter of #g, or NaN for none */
+	public void setOffset(double offset) { this.offset = offset; changed(); }
+	/** @param accel acceleration or zero for unlimited (default) */
+	public void setAcceleration(double accel) { this.accel = accel; changed(); }
+	/** @param deviation junction deviation for corner speeds (default 0.01) */
+	public void setDeviation(double deviation) { this.deviation = deviation; changed(); }
+	/** @param passes number of times the path is cut (default 1) */
+	public void setPasses(int passes) { this.passes = passes; changed(); }
+	
+	/**
+	 * Add the next segment
+	 * @param s
+	 * @throws RenderException if the segment has a symbolic point
+	 */
+	public void add(Segment s) {
+		if(s.point==null)
+			return;
+		if(!(s.point instanceof NumericCoordinate))
+			throw new RenderException("Stats can only be calculated for numeric paths!");
+		final NumericCoordinate c = (NumericCoordinate)s.point;
+		addSegment(s.type,
+				c.getValue(Axis.X, Double.NaN), c.getValue(Axis.Y, Double.NaN), c.getValue(Axis.Z, Double.NaN),
+				c.getValue(Axis.I, Double.NaN), c.getValue(Axis.J, Double.NaN));
+	}
+	
+	public void addSegment(SType type, double x, double y, double z) {
+		addSegment(type, x, y, z, Double.NaN, Double.NaN);
+	}
+	
+	/**
+	 * Finish the path: plan the remaining moves and retract to safe Z
+	 */
+	public void finish() {
+		if(finished)
+			return;
+		stop();
+		if(!Double.isNaN(cz) && cz < safez)
+			rapid(safez - cz);
+		finished = true;
+	}
+	
+	private void addSegment(SType type, double x, double y, double z, double i, double j) {
+		if(finished)
+			throw new IllegalStateException("Segment added after finish()");
+		started = true;
+		if(type!=SType.SEAM)
+			bounds.add(x, y, z);
+		if(!Double.isNaN(z) && !Double.isNaN(offset))
+			z += offset;
+		
+		switch(type) {
+		case SEAM: return;
+		case MOVE:
+		case POINT:
+			stop();
+			final double top = rapidnear && !firstrapid && !Double.isNaN(nearz) ? nearz : safez;
+			if(!Double.isNaN(top)) {
+				if(!Double.isNaN(cz) && cz < top)
+					rapid(top - cz);
+				cz = top;
+			}
+			if(!Double.isNaN(cx) && !Double.isNaN(cy))
+				rapid(Math.hypot(def(x, cx) - cx, def(y, cy) - cy));
+			cx = def(x, cx);
+			cy = def(y, cy);
+			if(!Double.isNaN(nearz) && !Double.isNaN(cz) && nearz < cz) {
+				rapid(cz - nearz);
+				cz = nearz;
+			}
+			firstrapid = false;
+			if(!Double.isNaN(z))
+				plunge(z);
+			else if(!Double.isNaN(offset))
+				plunge(offset);
+			else
+				plunge = true;
+			if(type==SType.POINT && !Double.isNaN(top) && cz < top) {
+				rapid(top - cz);
+				cz = top;
+			}
+			break;
+		case LINE:
+		case CWARC:
+		case CCWARC:
+			if(plunge && !Double.isNaN(z))
+				plunge(z);
+			plunge = false;
+			
+			final double nx = def(x, cx), ny = def(y, cy), nz = def(z, cz);
+			if(Double.isNaN(cx) || Double.isNaN(cy)) {
+				// Starting position not known
+				cx = nx; cy = ny; cz = nz;
+				return;
+			}
+			final double dz = Double.isNaN(cz) ? 0 : nz - cz;
+			if(type==SType.LINE || (Double.isNaN(i) && Double.isNaN(j))) {
+				final double l = Math.sqrt((nx-cx)*(nx-cx) + (ny-cy)*(ny-cy) + dz*dz);
+				segment(l);
+				if(l>0)
+					feedMove(l, feed / 60, (nx-cx)/l, (ny-cy)/l, dz/l, (nx-cx)/l, (ny-cy)/l, dz/l);
+			} else {
+				// A missing center offset is zero
+				final boolean cw = type==SType.CWARC;
+				final double ox = cx + def(i, 0), oy = cy + def(j, 0);
+				final double r = Math.hypot(ox - cx, oy - cy);
+				double sweep = cw ?
+						Math.atan2(cy-oy, cx-ox) - Math.atan2(ny-oy, nx-ox) :
+						Math.atan2(ny-oy, nx-ox) - Math.atan2(cy-oy, cx-ox);
+				if(sweep <= 0)
+					sweep += 2 * Math.PI;
+				final double arc = r * sweep;
+				final double l = Math.hypot(arc, dz);
+				
+				// Include the extreme points of the arc in the bounds
+				final double a0 = Math.atan2(cy-oy, cx-ox);
+				for(int k=0;k<4;++k) {
+					double d = cw ? a0 - k * Math.PI/2 : k * Math.PI/2 - a0;
+					d -= Math.floor(d / (2*Math.PI)) * 2*Math.PI;
+					if(d <= sweep)
+						bounds.add(ox + r * COS[k], oy + r * COS[(k+3) % 4], Double.NaN);
+				}
+
+				segment(l);
+				if(l>0 && r>0) {
+					// Unit tangents at the start and end points
+					final double s = (cw ? -1 : 1) * arc / l / r;
+					double v = feed / 60;
+					if(accel>0)
+						v = Math.min(v, Math.sqrt(accel * r));
+					feedMove(l, v, -(cy-oy)*s, (cx-ox)*s, dz/l, -(ny-oy)*s, (nx-ox)*s, dz/l);
+				}
+			}
+			cx = nx; cy = ny; cz = nz;
+			break;
+		default:
+			throw new RuntimeException("BUG! Unhandled segment type " + type);
+		}
+	}
+	
+	static private double def(double value, double current) {
+		return Double.isNaN(value) ? current : value;
+	}
+	
+	private void segment(double l) {
+		++segments;
+		seglen += l;
+		if(!(l >= minseg))
+			minseg = l;
+	}
+	
+	private void rapid(double l) {
+		rapidlen += l;
+		time += time(l, rapidfeed / 60, 0, 0);
+	}
+	
+	private void plunge(double z) {
+		if(!Double.isNaN(cz)) {
+			final double l = Math.abs(cz - z);
+			cutlen += l;
+			time += time(l, plungefeed / 60, 0, 0);
+		}
+		cz = z;
+		plunge = false;
+	}
+	
+	/**
+	 * Add a feed move to the planner
+	 * @param l length
+	 * @param v maximum speed
+	 * @param ux entry direction
+	 * @param ex exit direction
+	 */
+	private void feedMove(double l, double v, double ux, double uy, double uz, double ex, double ey, double ez) {
+		cutlen += l;
+		if(accel<=0) {
+			time += l / v;
+			return;
+		}
+		
+		double vj = 0;
+		if(n>0) {
+			// Junction speed from the junction deviation
+			final double cos = -(px*ux + py*uy + pz*uz);
+			if(cos < -0.999999)
+				vj = Double.POSITIVE_INFINITY;
+			else if(cos < 0.999999) {
+				final double sin = Math.sqrt(0.5 * (1 - cos));
+				vj = Math.sqrt(accel * deviation * sin / (1 - sin));
+			}
+			vj = Math.min(vj, Math.min(v, vmax[n-1]));
+		}
+		
+		if(n==WINDOW)
+			plan(WINDOW / 2);
+		len[n] = l;
+		vmax[n] = v;
+		vjunction[n] = vj;
+		++n;
+		px = ex; py = ey; pz = ez;
+	}
+	
+	/**
+	 * Plan the buffered feed moves, assuming the last one ends at rest.
+	 * @param count number of moves to finalize
+	 */
+	private void plan(int count) {
+		ventry[n] = 0;
+		for(int i=n-1;i>=0;--i)
+			ventry[i] = Math.min(vjunction[i], Math.sqrt(ventry[i+1]*ventry[i+1] + 2*accel*len[i]));
+		for(int i=0;i<n;++i)
+			ventry[i+1] = Math.min(ventry[i+1], Math.sqrt(ventry[i]*ventry[i] + 2*accel*len[i]));
+		for(int i=0;i<count;++i)
+			time += time(len[i], vmax[i], ventry[i], ventry[i+1]);
+		
+		n -= count;
+		System.arraycopy(len, count, len, 0, n);
+		System.arraycopy(vmax, count, vmax, 0, n);
+		System.arraycopy(vjunction, count, vjunction, 0, n);
+		if(n>0)
+			vjunction[0] = ventry[count];
+	}
+	
+	/**
+	 * Come to a stop: plan all buffered moves
+	 */
+	private void stop() {
+		if(n>0)
+			plan(n);
+	}
+	
+	/**
+	 * Time of a single move with a trapezoidal velocity profile
+	 * @param l length
+	 * @param v maximum speed
+	 * @param v0 entry speed
+	 * @param v1 exit speed
+	 * @return time in seconds
+	 */
+	private double time(double l, double v, double v0, double v1) {
+		if(l<=0)
+			return 0;
+		if(accel<=0)
+			return l / v;
+		final double vp = Math.min(v, Math.sqrt(accel*l + (v0*v0 + v1*v1) / 2));
+		final double d = (2*vp*vp - v0*v0 - v1*v1) / (2*accel);
+		return (2*vp - v0 - v1) / accel + Math.max(0, l - d) / vp;
+	}
+	
+	/**
+	 * Measure the path if not done yet
+	 */
+	private void measure() {
+		if(path!=null && !started) {
+			for(Segment s : path.getSegments())
+				add(s);
+			started = true;
+		}
+		finish();
+	}
+	
+	/** @return length of feed moves, including plunges */
+	public double getCutLength() { measure(); return cutlen * passes; }
+	/** @return length of rapid moves */
+	public double getRapidLength() { measure(); return rapidlen * passes; }
+	/** @return number of line and arc segments */
+	public long getSegments() { measure(); return segments * passes; }
+	/** @return length of the shortest line or arc segment or NaN if there are none */
+	public double getMinSegmentLength() { measure(); return minseg; }
+	/** @return mean length of line and arc segments or NaN if there are none */
+	public double getMeanSegmentLength() { measure(); return seglen / segments; }
+	/** @return bounding box of the path points */
+	public Bounds getBounds() { measure(); return new Bounds(bounds); }
+	/** @return estimated machining time in seconds or NaN if unknown */
+	public double getTime() { measure(); return time * passes; }
+	
+	/**
+	 * Get the estimated machining time as text
+	 * @return time as h:mm:ss or "unknown"
+	 */
+	public String getTimeString() {
+		final double t = getTime();
+		if(Double.isNaN(t) || Double.isInfinite(t))
+			return "unknown";
+		final long s = Math.round(t);
+		return String.format("%d:%02d:%02d", s / 3600, s / 60 % 60, s % 60);
+	}
+	
+	@Override
+	public String toString() {
+		measure();
+		StringBuilder sb = new StringBuilder(String.format(Locale.ROOT,
+				"cut %.3f, rapid %.3f, %d segments (min %.3f, mean %.3f),",
+				getCutLength(), getRapidLength(), getSegments(),
+				getMinSegmentLength(), getMeanSegmentLength()));
+		for(Axis a : Axis.XYZ)
+			if(bounds.isDefined(a))
+				sb.append(String.format(Locale.ROOT, " %s%.3f..%.3f", a, bounds.getMin(a), bounds.getMax(a)));
+		return sb.append(", time ").append(getTimeString()).toString();
+	}
+}
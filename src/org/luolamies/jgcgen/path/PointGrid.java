@@ -0,0 +1,196 @@
+/*
+ * This file is part of JGCGen.
+ *
+ * JGCGen is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JGCGen is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JGCGen.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.luolamies.jgcgen.path;
+
+/**
+ * A uniform grid of points for nearest point searches.
+ * <p>Each point belongs to an owner. The points of an owner are stored
+ * consecutively. Owners can be disabled temporarily or removed for good.
+ * The grid is rebuilt with larger cells as it empties.
+ */
+final class PointGrid {
+	private final double[] px, py;
+	/** Points of owner o are ostart[o]..ostart[o+1] */
+	private final int[] ostart;
+	private final int[] owner;
+	private final boolean[] removed, enabled;
+	private int remaining;
+
+	/** Grid geometry */
+	private double xmin, ymin, cell;
+	private int nx, ny;
+	/** Point indices sorted by cell. Cell c has entries start[c]..start[c+1] */
+	private int[] start, entries;
+	/** Point count when the grid was last built */
+	private int built;
+
+	/**
+	 * @param x point X coordinates
+	 * @param y point Y coordinates
+	 * @param ostart start index of each owner's points, followed by the point count
+	 */
+	PointGrid(double[] x, double[] y, int[] ostart) {
+		this.px = x;
+		this.py = y;
+		this.ostart = ostart;
+		final int owners = ostart.length-1;
+		this.owner = new int[x.length];
+		for(int o=0;o<owners;++o)
+			for(int p=ostart[o];p<ostart[o+1];++p)
+				owner[p] = o;
+		this.removed = new boolean[owners];
+		this.enabled = new boolean[owners];
+		this.remaining = x.length;
+		build();
+	}
+
+	/**
+	 * Enable or disable an owner's points. Owners are disabled initially.
+	 * @param o owner index
+	 * @param enable
+	 */
+	void setEnabled(int o, boolean enable) {
+		enabled[o] = enable;
+	}
+
+	/**
+	 * Remove all points of an owner
+	 * @param o owner index
+	 */
+	void remove(int o) {
+		if(!removed[o]) {
+			removed[o] = true;
+			remaining -= ostart[o+1] - ostart[o];
+			if(remaining>0 && remaining < built/4)
+				build();
+		}
+	}
+
+	/**
+	 * Get the owner of a point
+	 * @param p point index
+	 * @return owner index
+	 */
+	int getOwner(int p) {
+		return owner[p];
+	}
+
+	/**
+	 * Find the nearest point of an enabled owner.
+	 * If several points are equally near, the one with the lowest index is returned.
+	 * @param qx
+	 * @param qy
+	 * @return point index or -1 if there are no enabled points
+	 */
+	int nearest(double qx, double qy) {
+		if(remaining==0)
+			return -1;
+
+		final int cx = cellOf(qx / cell, xmin, nx), cy = cellOf(qy / cell, ymin, ny);
+		final int maxr = Math.max(Math.max(cx, nx-1-cx), Math.max(cy, ny-1-cy));
+
+		int best = -1;
+		double bestd = Double.MAX_VALUE;
+		for(int r=0;r<=maxr;++r) {
+			for(int y=cy-r;y<=cy+r;++y) {
+				if(y<0 || y>=ny)
+					continue;
+				final boolean edge = y==cy-r || y==cy+r;
+				for(int x=cx-r;x<=cx+r;x += (edge || r==0) ? 1 : 2*r) {
+					if(x<0 || x>=nx)
+						continue;
+					final int c = y*nx + x;
+					for(int e=start[c];e<start[c+1];++e) {
+						final int p = entries[e];
+						final int o = owner[p];
+						if(removed[o] || !enabled[o])
+							continue;
+						final double dx = qx - px[p], dy = qy - py[p];
+						final double d = dx*dx + dy*dy;
+						if(d < bestd || (d==bestd && p<best)) {
+							bestd = d;
+							best = p;
+						}
+					}
+				}
+			}
+			// Everything beyond this ring is at least r cells away
+			if(best>=0) {
+				final double gap = r * cell * (1 - 1e-9);
+				if(gap*gap > bestd)
+					break;
+			}
+		}
+		return best;
+	}
+
+	static private int cellOf(double v, double min, int n) {
+		int c = (int)Math.floor(v - min);
+		return c<0 ? 0 : c>=n ? n-1 : c;
+	}
+
+	/**
+	 * (Re)build the grid from the remaining points
+	 */
+	private void build() {
+		xmin = Double.MAX_VALUE;
+		ymin = Double.MAX_VALUE;
+		double xmax = -Double.MAX_VALUE, ymax = -Double.MAX_VALUE;
+		for(int p=0;p<px.length;++p) {
+			if(removed[owner[p]])
+				continue;
+			xmin = Math.min(xmin, px[p]);
+			xmax = Math.max(xmax, px[p]);
+			ymin = Math.min(ymin, py[p]);
+			ymax = Math.max(ymax, py[p]);
+		}
+		built = remaining;
+		if(remaining==0) {
+			xmin = xmax = ymin = ymax = 0;
+		}
+
+		// Aim for a couple of points per cell
+		final double xr = xmax-xmin, yr = ymax-ymin;
+		cell = Math.max(Math.sqrt(xr * yr / Math.max(1, remaining)), Math.max(xr, yr) / Math.max(1, remaining));
+		if(cell==0)
+			cell = 1;
+		nx = (int)(xr / cell) + 1;
+		ny = (int)(yr / cell) + 1;
+
+		// Store coordinates in cell units to make cell lookups cheap
+		xmin /= cell;
+		ymin /= cell;
+
+		start = new int[nx*ny + 1];
+		entries = new int[remaining];
+		final int[] cells = new int[px.length];
+		for(int p=0;p<px.length;++p) {
+			if(removed[owner[p]])
+				continue;
+			cells[p] = cellOf(py[p] / cell, ymin, ny) * nx + cellOf(px[p] / cell, xmin, nx);
+			++start[cells[p]+1];
+		}
+		for(int c=0;c<nx*ny;++c)
+			start[c+1] += start[c];
+		final int[] fill = new int[nx*ny];
+		for(int p=0;p<px.length;++p) {
+			if(removed[owner[p]])
+				continue;
+			entries[start[cells[p]] + fill[cells[p]]++] = p;
+		}
+	}
+}
@@ -0,0 +1,79 @@
+/*
+ * This file is part of JGCGen.
+ *
+ * JGCGen is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JGCGen is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JGCGen.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.luolamies.jgcgen.path;
+
+import org.luolamies.jgcgen.path.Path.SType;
+import org.luolamies.jgcgen.path.Path.Segment;
+
+/**
+ * A segment sink that simplifies the path before passing it on.
+ * <p>See {@link Path#reduce(double)}. Call {@link #finish()} after the
+ * last segment to flush the buffered points.
+ */
+public class ReducingSink implements SegmentSink {
+	private final SegmentReducer reducer;
+	
+	/**
+	 * @param sink the sink to pass the simplified path to
+	 * @param tolerance maximum distance of a dropped point from the simplified path
+	 */
+	public ReducingSink(final SegmentSink sink, double tolerance) {
+		this.reducer = new SegmentReducer(tolerance) {
+			protected void emit(Segment s) {
+				final NumericCoordinate c = (NumericCoordinate)s.point;
+				sink.addSegment(s.type,
+						c.getValue(Axis.X, Double.NaN),
+						c.getValue(Axis.Y, Double.NaN),
+						c.getValue(Axis.Z, Double.NaN));
+			}
+		};
+	}
+	
+	public void addSegment(SType type, double x, double y, double z) {
+		reducer.add(new Segment(type, new NumericCoordinate(
+				Double.isNaN(x) ? null : x,
+				Double.isNaN(y) ? null : y,
+				Double.isNaN(z) ? null : z)));
+	}
+	
+	/**
+	 * Pass the remaining buffered segments to the sink
+	 */
+	public void finish() {
+		reducer.finish();
+	}
+	
+	/**
+	 * Wrap a path generator so that its path is simplified
+	 * @param pathg the path generator
+	 * @param tolerance maximum distance of a dropped point from the simplified path
+	 * @return streaming path generator
+	 */
+	static public StreamingPathGenerator reduce(final StreamingPathGenerator pathg, final double tolerance) {
+		return new StreamingPathGenerator() {
+			public Path toPath() {
+				return pathg.toPath().reduce(tolerance);
+			}
+			
+			public void generate(SegmentSink sink) {
+				ReducingSink rs = new ReducingSink(sink, tolerance);
+				pathg.generate(rs);
+				rs.finish();
+			}
+		};
+	}
+}
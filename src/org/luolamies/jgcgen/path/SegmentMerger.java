@@ -0,0 +1,124 @@
+/*
+ * This file is part of JGCGen.
+ *
+ * JGCGen is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JGCGen is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JGCGen.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.luolamies.jgcgen.path;
+
+import java.util.List;
+
+import org.luolamies.jgcgen.path.Path.Segment;
+
+/**
+ * Merges short linear moves.
+ * <p>Lines shorter than the minimum length are merged with the following
+ * lines until the merged line is long enough, as long as no dropped point is farther
+ * than the tolerance from it. Lines that are long enough are kept as they are.
+ * This keeps the trajectory planner of the controller from starving on
+ * very fine toolpaths.
+ * <p>Like with {@link Path#reduce(double)}, only runs of unlabeled numeric lines
+ * are merged. Everything else is passed through as is.
+ * Segments are passed to {@link #emit(Segment)} in order.
+ */
+public abstract class SegmentMerger {
+	private final SegmentReducer reducer;
+	
+	/**
+	 * @param minlength minimum length of a merged line
+	 * @param tolerance maximum distance of a dropped point from the merged line
+	 */
+	public SegmentMerger(final double minlength, double tolerance) {
+		if(minlength<0 || Double.isNaN(minlength))
+			throw new IllegalArgumentException("Minimum length must be zero or greater!");
+		this.reducer = new SegmentReducer(tolerance) {
+			protected void emit(Segment s) {
+				SegmentMerger.this.emit(s);
+			}
+			
+			@Override
+			protected void reduceRun(List<Segment> run, double[] pts, int n) {
+				final boolean[] keep = new boolean[n];
+				merge(pts, n, minlength, getTolerance(), keep);
+				emitKept(run, pts, n, keep);
+			}
+		};
+	}
+	
+	/**
+	 * Output a segment
+	 * @param s
+	 */
+	protected abstract void emit(Segment s);
+	
+	/**
+	 * Add the next segment
+	 * @param s
+	 */
+	public void add(Segment s) {
+		reducer.add(s);
+	}
+	
+	/**
+	 * Output the remaining buffered segments
+	 */
+	public void finish() {
+		reducer.finish();
+	}
+	
+	/**
+	 * Mark the points to keep
+	 * @param pts point coordinates (x, y, z interleaved)
+	 * @param n number of points
+	 * @param minlength minimum length of a merged line
+	 * @param tolerance maximum distance of dropped points from the merged line
+	 * @param keep the kept points are marked here. The first and last points are always kept.
+	 */
+	static void merge(double[] pts, int n, double minlength, double tolerance, boolean[] keep) {
+		keep[0] = true;
+		keep[n-1] = true;
+		
+		final double min2 = minlength * minlength;
+		final double tol2 = tolerance * tolerance;
+		int from = 0;
+		for(int i=1;i<n-1;++i) {
+			// If the line to this point would leave a dropped point too far,
+			// the previous point must be kept even if its line is short.
+			if(!fits(pts, from, i, tol2)) {
+				keep[i-1] = true;
+				from = i-1;
+			}
+			if(distance2(pts, from, i) >= min2) {
+				keep[i] = true;
+				from = i;
+			}
+		}
+		if(!fits(pts, from, n-1, tol2))
+			keep[n-2] = true;
+	}
+	
+	/**
+	 * Are all points between from and to within the tolerance of the line between them?
+	 */
+	static private boolean fits(double[] pts, int from, int to, double tol2) {
+		for(int i=from+1;i<to;++i)
+			if(SegmentReducer.segmentDistance2(pts, i, from, to) > tol2)
+				return false;
+		return true;
+	}
+	
+	static private double distance2(double[] pts, int a, int b) {
+		final double dx = pts[3*b] - pts[3*a], dy = pts[3*b+1] - pts[3*a+1], dz = pts[3*b+2] - pts[3*a+2];
+		return dx*dx + dy*dy + dz*dz;
+	}
+}
@@ -0,0 +1,291 @@
+/*
+ * This file is part of JGCGen.
+ *
+ * JGCGen is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JGCGen is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JGCGen.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.luolamies.jgcgen.path;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.luolamies.jgcgen.path.Path.SType;
+import org.luolamies.jgcgen.path.Path.Segment;
+
+/**
+ * Douglas-Peucker line simplifier.
+ * <p>Runs of consecutive linear moves are replaced with fewer moves so that
+ * no dropped point is farther than the tolerance from the new path.
+ * Only unlabeled lines with numeric coordinates are reduced.
+ * Everything else (rapids, arcs, seams, labels, symbolic coordinates)
+ * ends the current run and is passed through as is.
+ * <p>Segments are passed to {@link #emit(Segment)} in order. At most
+ * {@value #MAXRUN} points are buffered, so the reducer can be used with
+ * streamed paths.
+ */
+abstract class SegmentReducer {
+	/** Maximum length of a buffered run */
+	static final int MAXRUN = 4096;
+	
+	static private final Axis[] XYZ = { Axis.X, Axis.Y, Axis.Z };
+	
+	private final double tolerance;
+	
+	/** Current position. NaN if unknown. */
+	private final double[] pos = { Double.NaN, Double.NaN, Double.NaN };
+	
+	/** Buffered run. The first point is the position the run starts from */
+	private final List<Segment> run = new ArrayList<Segment>();
+	private double[] runpts = new double[3 * 64];
+	/** Is the Z coordinate known for the current run */
+	private boolean runz;
+	
+	/**
+	 * @param tolerance maximum distance of a dropped point from the reduced path
+	 */
+	SegmentReducer(double tolerance) {
+		if(tolerance<0 || Double.isNaN(tolerance))
+			throw new IllegalArgumentException("Tolerance must be zero or greater!");
+		this.tolerance = tolerance;
+	}
+	
+	/**
+	 * Output a segment
+	 * @param s
+	 */
+	protected abstract void emit(Segment s);
+	
+	/**
+	 * Add the next segment
+	 * @param s
+	 */
+	void add(Segment s) {
+		if(isReducible(s)) {
+			if(run.isEmpty()) {
+				System.arraycopy(pos, 0, runpts, 0, 3);
+				runz = !Double.isNaN(pos[2]);
+			}
+			update(s);
+			// A run must start from a known XY position. Z may be unknown (e.g. in 2D paths),
+			// but then it must stay unknown for the whole run.
+			if(isKnown(runpts) && isKnown(pos) && runz==!Double.isNaN(pos[2])) {
+				final int i = 3 * (run.size()+1);
+				if(i+3 > runpts.length)
+					runpts = Arrays.copyOf(runpts, runpts.length*2);
+				runpts[i] = pos[0];
+				runpts[i+1] = pos[1];
+				runpts[i+2] = runz ? pos[2] : 0;
+				run.add(s);
+				if(run.size() >= MAXRUN)
+					flush();
+			} else {
+				flush();
+				emit(s);
+			}
+			return;
+		}
+		
+		flush();
+		emit(s);
+		update(s);
+		// A rapid without a Z coordinate plunges to the depth of the next move
+		// and a dab retracts after drilling.
+		if(s.type==SType.POINT || (s.type==SType.MOVE && s.point!=null && !s.point.isDefined(Axis.Z)))
+			pos[2] = Double.NaN;
+	}
+	
+	static private boolean isKnown(double[] p) {
+		return !Double.isNaN(p[0]) && !Double.isNaN(p[1]);
+	}
+	
+	/**
+	 * Output the remaining buffered segments
+	 */
+	void finish() {
+		flush();
+	}
+	
+	/**
+	 * Can the segment be part of a run
+	 */
+	private static boolean isReducible(Segment s) {
+		if(s.type!=SType.LINE || s.label!=null || !(s.point instanceof NumericCoordinate))
+			return false;
+		final Axis[] axes = Axis.values();
+		for(int a=3;a<axes.length;++a)
+			if(s.point.isDefined(axes[a]))
+				return false;
+		return true;
+	}
+	
+	/**
+	 * Update the current position
+	 */
+	private void update(Segment s) {
+		if(s.point==null)
+			return;
+		if(s.point instanceof NumericCoordinate) {
+			final NumericCoordinate c = (NumericCoordinate)s.point;
+			for(int a=0;a<3;++a) {
+				Double v = c.getValue(XYZ[a]);
+				if(v!=null)
+					pos[a] = v;
+			}
+		} else {
+			for(int a=0;a<3;++a)
+				if(s.point.isDefined(XYZ[a]))
+					pos[a] = Double.NaN;
+		}
+	}
+	
+	/**
+	 * Reduce and output the buffered run
+	 */
+	private void flush() {
+		if(run.isEmpty())
+			return;
+		reduceRun(run, runpts, run.size()+1);
+		run.clear();
+	}
+	
+	/**
+	 * Is the Z coordinate of the current run known. If not, the Z coordinates
+	 * passed to {@link #reduceRun(List, double[], int)} are zero.
+	 * @return true if Z is known
+	 */
+	protected final boolean isZKnown() {
+		return runz;
+	}
+	
+	/**
+	 * @return the tolerance
+	 */
+	protected final double getTolerance() {
+		return tolerance;
+	}
+	
+	/**
+	 * Reduce a run of linear moves and output the result.
+	 * @param run the line segments of the run
+	 * @param pts the positions (x, y, z interleaved) before the run (index 0) and after each segment.
+	 * @param n number of positions (one more than segments)
+	 */
+	protected void reduceRun(List<Segment> run, double[] pts, int n) {
+		final boolean[] keep = new boolean[n];
+		simplify(pts, n, tolerance, keep);
+		emitKept(run, pts, n, keep);
+	}
+	
+	/**
+	 * Output the kept segments of a run
+	 * @param run the line segments of the run
+	 * @param pts the positions before the run and after each segment
+	 * @param n number of positions
+	 * @param keep the points to keep. The first one is the starting position.
+	 */
+	protected final void emitKept(List<Segment> run, double[] pts, int n, boolean[] keep) {
+		// If dropped points defined axes the next kept point doesn't,
+		// those must be added to it.
+		boolean[] carried = new boolean[3];
+		for(int i=1;i<n;++i) {
+			final Segment s = run.get(i-1);
+			if(!keep[i]) {
+				for(int a=0;a<3;++a)
+					if(s.point.isDefined(XYZ[a]))
+						carried[a] = true;
+				continue;
+			}
+			
+			NumericCoordinate c = null;
+			for(int a=0;a<3;++a) {
+				if(carried[a] && !s.point.isDefined(XYZ[a])) {
+					if(c==null)
+						c = (NumericCoordinate)s.point.copy();
+					c.set(XYZ[a], pts[3*i+a]);
+				}
+				carried[a] = false;
+			}
+			emit(c!=null ? new Segment(s.type, c) : s);
+		}
+	}
+	
+	/**
+	 * Mark the points to keep
+	 * @param pts point coordinates (x, y, z interleaved)
+	 * @param n number of points
+	 * @param tolerance maximum distance of dropped points from the simplified line
+	 * @param keep the kept points are marked here. The first and last points are always kept.
+	 */
+	static void simplify(double[] pts, int n, double tolerance, boolean[] keep) {
+		keep[0] = true;
+		keep[n-1] = true;
+		if(n<3)
+			return;
+		
+		final double tol2 = tolerance * tolerance;
+		int[] stack = new int[64];
+		int sp = 0;
+		stack[sp++] = 0;
+		stack[sp++] = n-1;
+		while(sp>0) {
+			final int to = stack[--sp];
+			final int from = stack[--sp];
+			
+			// Find the point farthest from the line
+			int far = -1;
+			double fard = tol2;
+			for(int i=from+1;i<to;++i) {
+				double d = segmentDistance2(pts, i, from, to);
+				if(d > fard) {
+					fard = d;
+					far = i;
+				}
+			}
+			
+			if(far>=0) {
+				keep[far] = true;
+				if(sp+4 > stack.length)
+					stack = Arrays.copyOf(stack, stack.length*2);
+				if(far-from > 1) {
+					stack[sp++] = from;
+					stack[sp++] = far;
+				}
+				if(to-far > 1) {
+					stack[sp++] = far;
+					stack[sp++] = to;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Get the squared distance from point p to the line segment a-b
+	 */
+	static double segmentDistance2(double[] pts, int p, int a, int b) {
+		final int pi = 3*p, ai = 3*a, bi = 3*b;
+		final double dx = pts[bi] - pts[ai], dy = pts[bi+1] - pts[ai+1], dz = pts[bi+2] - pts[ai+2];
+		final double px = pts[pi] - pts[ai], py = pts[pi+1] - pts[ai+1], pz = pts[pi+2] - pts[ai+2];
+		final double len2 = dx*dx + dy*dy + dz*dz;
+		double t = 0;
+		if(len2 > 0) {
+			t = (px*dx + py*dy + pz*dz) / len2;
+			if(t<0)
+				t = 0;
+			else if(t>1)
+				t = 1;
+		}
+		final double ex = px - t*dx, ey = py - t*dy, ez = pz - t*dz;
+		return ex*ex + ey*ey + ez*ez;
+	}
+}
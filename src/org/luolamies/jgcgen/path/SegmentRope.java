@@ -0,0 +1,156 @@
+/*
+ * This file is part of JGCGen.
+ *
+ * JGCGen is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JGCGen is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JGCGen.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.luolamies.jgcgen.path;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.RandomAccess;
+
+import org.luolamies.jgcgen.path.Path.Segment;
+
+/**
+ * A segment list made of linked chunks.
+ * <p>Other segment lists can be appended by reference, without copying
+ * their contents. The linked lists must not be modified afterwards.
+ * Small lists are copied, so the chunks do not get too fragmented.
+ * New segments are added to a private tail chunk.
+ * <p>Iteration walks through the chunks in order. Random access finds
+ * the chunk with a binary search.
+ */
+final class SegmentRope extends AbstractList<Segment> implements RandomAccess {
+	/** Lists smaller than this are copied instead of linked */
+	static final int MINCHUNK = 64;
+	
+	private final List<List<Segment>> chunks = new ArrayList<List<Segment>>();
+	/** End index (exclusive) of each chunk */
+	private int[] ends = new int[8];
+	private int size;
+	/** The last chunk, if it belongs to this rope */
+	private ArrayList<Segment> tail;
+	
+	SegmentRope() {
+	}
+	
+	/**
+	 * Create a rope that starts with the given segments
+	 * @param segments segments to link or copy
+	 */
+	SegmentRope(List<Segment> segments) {
+		link(segments);
+	}
+	
+	/**
+	 * Append a list by reference. The list must not be modified after this.
+	 * @param list
+	 * @return true if the list was linked, false if it was copied
+	 */
+	boolean link(List<Segment> list) {
+		if(list.size() < MINCHUNK) {
+			addAll(list);
+			return false;
+		}
+		if(list instanceof SegmentRope) {
+			// Link the chunks directly to avoid nested ropes
+			SegmentRope r = (SegmentRope)list;
+			for(List<Segment> c : new ArrayList<List<Segment>>(r.chunks))
+				addChunk(c);
+		} else
+			addChunk(list);
+		return true;
+	}
+	
+	private void addChunk(List<Segment> chunk) {
+		final int n = chunk.size();
+		if(n==0)
+			return;
+		if(chunks.size()==ends.length)
+			ends = Arrays.copyOf(ends, ends.length*2);
+		chunks.add(chunk);
+		size += n;
+		ends[chunks.size()-1] = size;
+		tail = null;
+	}
+	
+	@Override
+	public boolean add(Segment s) {
+		if(tail==null) {
+			tail = new ArrayList<Segment>();
+			if(chunks.size()==ends.length)
+				ends = Arrays.copyOf(ends, ends.length*2);
+			chunks.add(tail);
+		}
+		tail.add(s);
+		ends[chunks.size()-1] = ++size;
+		return true;
+	}
+	
+	@Override
+	public boolean addAll(Collection<? extends Segment> c) {
+		if(c==this)
+			c = new ArrayList<Segment>(this);
+		return super.addAll(c);
+	}
+	
+	@Override
+	public int size() {
+		return size;
+	}
+	
+	@Override
+	public Segment get(int index) {
+		if(index<0 || index>=size)
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+		
+		int c = Arrays.binarySearch(ends, 0, chunks.size(), index);
+		// An exact match means the index is the first one of the next chunk
+		c = c<0 ? -c-1 : c+1;
+		return chunks.get(c).get(c>0 ? index-ends[c-1] : index);
+	}
+	
+	@Override
+	public Iterator<Segment> iterator() {
+		return new Iterator<Segment>() {
+			int chunk = 0;
+			Iterator<Segment> current = chunks.isEmpty() ? null : chunks.get(0).iterator();
+			
+			public boolean hasNext() {
+				while(current!=null && !current.hasNext()) {
+					if(++chunk < chunks.size())
+						current = chunks.get(chunk).iterator();
+					else
+						current = null;
+				}
+				return current!=null;
+			}
+			
+			public Segment next() {
+				if(!hasNext())
+					throw new NoSuchElementException();
+				return current.next();
+			}
+			
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+}
@@ -0,0 +1,33 @@
+/*
+ * This file is part of JGCGen.
+ *
+ * JGCGen is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JGCGen is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JGCGen.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.luolamies.jgcgen.path;
+
+/**
+ * Receiver for path segments with numeric coordinates.
+ * <p>Path generators can push segments to a sink as they are generated
+ * instead of building a complete {@link Path} first.
+ */
+public interface SegmentSink {
+	/**
+	 * Add a new segment
+	 * @param type segment type
+	 * @param x X coordinate or NaN if undefined
+	 * @param y Y coordinate or NaN if undefined
+	 * @param z Z coordinate or NaN if undefined
+	 */
+	void addSegment(Path.SType type, double x, double y, double z);
+}
@@ -0,0 +1,31 @@
+/*
+ * This file is part of JGCGen.
+ *
+ * JGCGen is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JGCGen is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JGCGen.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.luolamies.jgcgen.path;
+
+/**
+ * Interface for path generators that can stream their output.
+ * <p>Streaming generators push the segments to a {@link SegmentSink} as
+ * they are generated, so the whole path never needs to be in memory at once.
+ */
+public interface StreamingPathGenerator extends PathGenerator {
+	/**
+	 * Generate the path, pushing the segments to the sink in order.
+	 * The result must be the same as with {@link #toPath()}.
+	 * @param sink segment sink
+	 */
+	void generate(SegmentSink sink);
+}
@@ -137,7 +137,7 @@ public final class SymbolicCoordinate extends Coordinate {
 	}
 
 	protected SymbolicCoordinate scaleNumeric(double scale) {
-		return scaleSymbolic(String.format("%.3f", scale));
+		return scaleSymbolic(NumericCoordinate.FORMAT.format(scale));
 	}
 
 	protected SymbolicCoordinate scaleSymbolic(String scale) {
@@ -186,6 +186,29 @@ public final class SymbolicCoordinate extends Coordinate {
 		c.set(b, "[[" + x + "] * SIN[" + theta + "] + [" + y + "] * COS[" + theta + "]]");
 	}
 
+	/**
+	 * Get a copy of this coordinate with simplified expressions.
+	 * <p>Numeric subterms are folded and redundant brackets removed.
+	 * Axis values are replaced only if the result is shorter.
+	 * @return simplified coordinate
+	 */
+	public SymbolicCoordinate simplify() {
+		return simplify(null);
+	}
+	
+	/**
+	 * Get a copy of this coordinate with simplified expressions.
+	 * <p>References to the given named variables are replaced with their values.
+	 * @param known variable values. Names are in lower case without the #&lt;&gt;.
+	 * @return simplified coordinate
+	 */
+	public SymbolicCoordinate simplify(Map<String, Double> known) {
+		EnumMap<Axis, String> c = new EnumMap<Axis, String>(Axis.class);
+		for(Map.Entry<Axis, String> e : axes.entrySet())
+			c.put(e.getKey(), Expression.simplify(e.getValue(), known));
+		return new SymbolicCoordinate(c);
+	}
+	
 	@Override
 	public SymbolicCoordinate fillIn(Coordinate c) {
 		SymbolicCoordinate nc = new SymbolicCoordinate(this);
@@ -0,0 +1,214 @@
+/*
+ * This file is part of JGCGen.
+ *
+ * JGCGen is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JGCGen is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JGCGen.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.luolamies.jgcgen.path;
+
+import java.util.Arrays;
+
+/**
+ * A chain of numeric path transformations.
+ * <p>The transformations have the same semantics as the corresponding
+ * {@link Coordinate} methods: offsets and scales affect only defined axes,
+ * rotations treat undefined axes as zero. The operations are applied to each
+ * point one at a time in the same order and with the same arithmetic as the
+ * coordinate methods, so the results are identical to transforming the path
+ * step by step, without the intermediate copies.
+ * <p>Transforms are immutable.
+ */
+final class Transform {
+	static private final Axis[] AXES = Axis.values();
+	static private final int N = AXES.length;
+	
+	private final Op[] ops;
+	private final boolean rotates;
+	
+	private Transform(Op[] ops) {
+		this.ops = ops;
+		boolean r = false;
+		for(Op op : ops)
+			if(op instanceof Rotate)
+				r = true;
+		rotates = r;
+	}
+	
+	/**
+	 * Get a transformation that offsets the defined axes
+	 * @param offset
+	 */
+	static Transform offset(NumericCoordinate offset) {
+		return new Transform(new Op[] { new Offset(values(offset)) });
+	}
+	
+	/**
+	 * Get a transformation that scales all axes
+	 * @param scale
+	 */
+	static Transform scale(double scale) {
+		double[] s = new double[N];
+		Arrays.fill(s, scale);
+		return new Transform(new Op[] { new Scale(s) });
+	}
+	
+	/**
+	 * Get a transformation that scales each axis separately
+	 * @param scale scale factors. Undefined axes are not scaled.
+	 */
+	static Transform scale(NumericCoordinate scale) {
+		return new Transform(new Op[] { new Scale(values(scale)) });
+	}
+	
+	/**
+	 * Get a rotation around the origin
+	 * @param angle rotation angles (in degrees) around the X, Y and Z axes
+	 */
+	static Transform rotate(NumericCoordinate angle) {
+		return new Transform(new Op[] { new Rotate(values(angle)) });
+	}
+	
+	/**
+	 * Get a transformation that sets an axis to a constant value
+	 * @param axis
+	 * @param value new value or null to make the axis undefined
+	 */
+	static Transform set(Axis axis, Double value) {
+		return new Transform(new Op[] { new Set(axis.ordinal(), value) });
+	}
+	
+	/**
+	 * Get a transformation that applies this transformation and then the next one
+	 * @param next
+	 * @return combined transformation
+	 */
+	Transform then(Transform next) {
+		Op[] o = Arrays.copyOf(ops, ops.length + next.ops.length);
+		System.arraycopy(next.ops, 0, o, ops.length, next.ops.length);
+		return new Transform(o);
+	}
+	
+	/**
+	 * Does this transformation contain a rotation?
+	 * <p>Rotations fill in undefined X, Y and Z axes from the previous point.
+	 */
+	boolean rotates() {
+		return rotates;
+	}
+	
+	/**
+	 * Transform a point
+	 * @param in input values. NaN means undefined.
+	 * @param out output values. NaN means undefined. This may be the same array as in.
+	 */
+	void apply(double[] in, double[] out) {
+		if(in!=out)
+			System.arraycopy(in, 0, out, 0, N);
+		for(Op op : ops)
+			op.apply(out);
+	}
+	
+	/**
+	 * Get the values of a coordinate as an array
+	 */
+	static private double[] values(NumericCoordinate c) {
+		double[] v = new double[N];
+		for(int a=0;a<N;++a) {
+			Double d = c.getValue(AXES[a]);
+			v[a] = d!=null ? d : Double.NaN;
+		}
+		return v;
+	}
+	
+	/** A single transformation */
+	static private abstract class Op {
+		/**
+		 * Transform a point in place
+		 * @param v values. NaN means undefined.
+		 */
+		abstract void apply(double[] v);
+	}
+	
+	static private final class Offset extends Op {
+		final double[] offset;
+		Offset(double[] offset) { this.offset = offset; }
+		
+		void apply(double[] v) {
+			for(int a=0;a<N;++a)
+				if(!Double.isNaN(v[a]) && !Double.isNaN(offset[a]))
+					v[a] += offset[a];
+		}
+	}
+	
+	static private final class Scale extends Op {
+		final double[] scale;
+		Scale(double[] scale) { this.scale = scale; }
+		
+		void apply(double[] v) {
+			for(int a=0;a<N;++a)
+				if(!Double.isNaN(v[a]) && !Double.isNaN(scale[a]))
+					v[a] *= scale[a];
+		}
+	}
+	
+	static private final class Rotate extends Op {
+		final double[] angle;
+		/** Sines and cosines of the angles */
+		final double[] sin = new double[3], cos = new double[3];
+		
+		Rotate(double[] angle) {
+			this.angle = angle;
+			for(int a=0;a<3;++a) {
+				final double theta = Math.toRadians(angle[a]);
+				sin[a] = Math.sin(theta);
+				cos[a] = Math.cos(theta);
+			}
+		}
+		
+		void apply(double[] v) {
+			final int x = Axis.X.ordinal(), y = Axis.Y.ordinal(), z = Axis.Z.ordinal();
+			if(!Double.isNaN(angle[x]))
+				rotate(v, y, z, x);
+			if(!Double.isNaN(angle[y]))
+				rotate(v, x, z, y);
+			if(!Double.isNaN(angle[z])) {
+				rotate(v, x, y, z);
+				final int i = Axis.I.ordinal(), j = Axis.J.ordinal();
+				if(!Double.isNaN(v[i]) || !Double.isNaN(v[j]))
+					rotate(v, i, j, z);
+			}
+		}
+		
+		/** Rotate axes a and b by the angle around axis r */
+		private void rotate(double[] v, int a, int b, int r) {
+			final double st = sin[r], ct = cos[r];
+			double x = v[a], y = v[b];
+			if(Double.isNaN(x))
+				x = 0;
+			if(Double.isNaN(y))
+				y = 0;
+			v[a] = x * ct - y * st;
+			v[b] = x * st + y * ct;
+		}
+	}
+	
+	static private final class Set extends Op {
+		final int axis;
+		final double value;
+		Set(int axis, Double value) { this.axis = axis; this.value = value!=null ? value : Double.NaN; }
+		
+		void apply(double[] v) {
+			v[axis] = value;
+		}
+	}
+}
@@ -0,0 +1,184 @@
+/*
+ * This file is part of JGCGen.
+ *
+ * JGCGen is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JGCGen is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JGCGen.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.luolamies.jgcgen.path;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+
+import org.luolamies.jgcgen.path.Path.Segment;
+
+/**
+ * A read only view of a numeric segment list with a transformation applied.
+ * <p>Segments are transformed when they are read. The source list must not be
+ * modified while the view is in use. Like the eager transformations, the
+ * view drops the labels of segments that have a point.
+ * <p>If the transformation contains a rotation, undefined X, Y and Z axes
+ * are filled in from the preceding points. Sequential reads are fast,
+ * random access may need to scan backwards. The view is not thread safe.
+ */
+final class TransformedSegments extends AbstractList<Segment> implements RandomAccess {
+	static private final Axis[] AXES = Axis.values();
+	
+	private final List<Segment> source;
+	private final PackedSegments packed;
+	private final Transform transform;
+	private final Bounds sourcebounds;
+	
+	/** The filled in XYZ position before segment <i>fillindex</i> */
+	private final double[] fill = new double[3];
+	private int fillindex = -1;
+	
+	private final double[] in = new double[AXES.length], out = new double[AXES.length];
+	
+	/**
+	 * @param source the source segments
+	 * @param transform the transformation
+	 * @param sourcebounds bounds of the source segments or null if not known
+	 */
+	TransformedSegments(List<Segment> source, Transform transform, Bounds sourcebounds) {
+		this.source = source;
+		this.packed = source instanceof PackedSegments ? (PackedSegments)source : null;
+		this.transform = transform;
+		this.sourcebounds = sourcebounds;
+	}
+	
+	/**
+	 * Can the list be transformed lazily?
+	 * @param list
+	 * @return true if the list contains only numeric coordinates
+	 */
+	static boolean isNumeric(List<Segment> list) {
+		if(list instanceof TransformedSegments)
+			return true;
+		if(list instanceof PackedSegments)
+			return ((PackedSegments)list).isNumeric();
+		for(Segment s : list)
+			if(s.point!=null && !(s.point instanceof NumericCoordinate))
+				return false;
+		return true;
+	}
+	
+	/**
+	 * Get a view with another transformation applied after this one.
+	 * @param next
+	 * @return new view of the same source
+	 */
+	TransformedSegments then(Transform next) {
+		return new TransformedSegments(source, transform.then(next), sourcebounds);
+	}
+	
+	/**
+	 * Get the bounds of the transformed segments, if they can be derived from the source bounds
+	 * @return bounds or null
+	 */
+	Bounds getBounds() {
+		return sourcebounds!=null ? sourcebounds.transform(transform) : null;
+	}
+	
+	@Override
+	public int size() {
+		return source.size();
+	}
+	
+	@Override
+	public Segment get(int index) {
+		final Segment s;
+		if(packed!=null) {
+			if(!packed.getValues(index, in))
+				return skip(packed.get(index), index);
+			s = null;
+		} else {
+			s = source.get(index);
+			if(s.point==null)
+				return skip(s, index);
+			NumericCoordinate c = (NumericCoordinate)s.point;
+			for(int a=0;a<AXES.length;++a) {
+				Double v = c.getValue(AXES[a]);
+				in[a] = v!=null ? v : Double.NaN;
+			}
+		}
+		
+		if(transform.rotates())
+			fillIn(index);
+		transform.apply(in, out);
+		
+		NumericCoordinate p = new NumericCoordinate();
+		for(int a=0;a<AXES.length;++a)
+			if(!Double.isNaN(out[a]))
+				p.set(AXES[a], out[a]);
+		return new Segment(s!=null ? s.type : packed.getType(index), p);
+	}
+	
+	/**
+	 * Pass through a segment without a point
+	 */
+	private Segment skip(Segment s, int index) {
+		if(fillindex==index)
+			++fillindex;
+		return s;
+	}
+	
+	/**
+	 * Fill in undefined XYZ values of the current input from the preceding points
+	 * @param index
+	 */
+	private void fillIn(int index) {
+		if(index != fillindex) {
+			// Not a sequential read: find the last defined values
+			Arrays.fill(fill, Double.NaN);
+			int found = 0;
+			final double[] prev = new double[AXES.length];
+			for(int i=index-1;i>=0 && found<3;--i) {
+				if(!values(i, prev))
+					continue;
+				for(int a=0;a<3;++a) {
+					if(Double.isNaN(fill[a]) && !Double.isNaN(prev[a])) {
+						fill[a] = prev[a];
+						++found;
+					}
+				}
+			}
+		}
+		
+		for(int a=0;a<3;++a) {
+			if(Double.isNaN(in[a]))
+				in[a] = fill[a];
+			else
+				fill[a] = in[a];
+		}
+		fillindex = index+1;
+	}
+	
+	/**
+	 * Get the untransformed values of a source point
+	 * @return false if the segment has no point
+	 */
+	private boolean values(int index, double[] v) {
+		if(packed!=null)
+			return packed.getValues(index, v);
+		Coordinate c = source.get(index).point;
+		if(c==null)
+			return false;
+		for(int a=0;a<3;++a) {
+			Double d = ((NumericCoordinate)c).getValue(AXES[a]);
+			v[a] = d!=null ? d : Double.NaN;
+		}
+		return true;
+	}
+}
@@ -18,16 +18,23 @@ package org.luolamies.jgcgen.routers;
 
 import java.io.IOException;
 import java.io.Writer;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
-import java.util.ListIterator;
+import java.util.Map;
 
 import org.apache.velocity.VelocityContext;
 import org.luolamies.jgcgen.RenderException;
 import org.luolamies.jgcgen.Subroutines;
 import org.luolamies.jgcgen.path.Axis;
 import org.luolamies.jgcgen.path.Coordinate;
+import org.luolamies.jgcgen.path.NumberFormatter;
+import org.luolamies.jgcgen.path.NumericCoordinate;
 import org.luolamies.jgcgen.path.Path;
+import org.luolamies.jgcgen.path.SegmentMerger;
+import org.luolamies.jgcgen.path.SegmentSink;
+import org.luolamies.jgcgen.path.StreamingPathGenerator;
 import org.luolamies.jgcgen.path.SymbolicCoordinate;
 import org.luolamies.jgcgen.path.Path.SType;
 
@@ -41,6 +48,13 @@ import org.luolamies.jgcgen.path.Path.SType;
  * <li>$normal_f
  * <li>$passdepth
  * <li>$r3singlepass</li>
+ * <li>$inline_vars</li>
+ * <li>$decimals</li>
+ * <li>$trimzeros</li>
+ * <li>$compact</li>
+ * <li>$min_segment</li>
+ * <li>$chord_tol</li>
+ * <li>$blend</li>
  * </ul>
  * <p>{@link #toGcode(Path, String)} will cut the path in multiple passes (ceil(z/passdepth))
  * if z is not null. This is useful for cutting out 2D shapes.
@@ -48,6 +62,17 @@ import org.luolamies.jgcgen.path.Path.SType;
  * complex geometries, generate the tool path &mdash; passes included &mdash; yourself and use a null offset.
  * <p>
  * Pass generation can be disabled by setting the variable $r3singlepass to <code>true</code>.
+ * <p>Streamed paths are converted segment by segment when no offset is given.
+ * <p>Symbolic coordinates are simplified before they are written. Named
+ * parameters listed in $inline_vars are replaced with the values of the
+ * variables of the same name.
+ * <p>Numeric coordinates are written with $decimals decimal places (3 by default).
+ * If $trimzeros is <code>true</code>, trailing zeros are left out.
+ * <p>If $compact is <code>true</code>, words that would not change the modal state
+ * of the controller (motion mode, feed rate and axis positions) are left out.
+ * <p>If $min_segment is set, lines shorter than it are merged as long as the merged
+ * line stays within $chord_tol of the dropped points. See {@link SegmentMerger}.
+ * If $blend is set, the path is preceded by <code>G64 P$blend</code>.
  */
 public class R3axis extends Router {
 	
@@ -55,13 +80,90 @@ public class R3axis extends Router {
 		super(ctx);
 	}
 	
+	/**
+	 * Get the values of the variables listed in $inline_vars
+	 * @return variable values or null if none are listed
+	 */
+	private Map<String, Double> inlineVars() {
+		String list = var("inline_vars");
+		if(list==null || list.trim().length()==0)
+			return null;
+		Map<String, Double> vars = new HashMap<String, Double>();
+		for(String name : list.split("[\\s,]+")) {
+			if(name.length()==0)
+				continue;
+			if(name.startsWith("#<") && name.endsWith(">"))
+				name = name.substring(2, name.length()-1);
+			String value = var(name);
+			if(value==null)
+				throw new RenderException("$inline_vars: variable $" + name + " is not set!");
+			try {
+				vars.put(name.toLowerCase(), Double.valueOf(value.trim()));
+			} catch(NumberFormatException e) {
+				throw new RenderException("$inline_vars: variable $" + name + " is not a number: " + value);
+			}
+		}
+		return vars;
+	}
+	
+	/**
+	 * Get the number formatter for numeric coordinates
+	 * @return formatter as set by $decimals and $trimzeros
+	 */
+	private NumberFormatter numberFormat() {
+		int decimals = 3;
+		String d = var("decimals");
+		if(d!=null && d.trim().length()>0) {
+			try {
+				decimals = Integer.parseInt(d.trim());
+			} catch(NumberFormatException e) {
+				throw new RenderException("$decimals must be an integer: " + d);
+			}
+		}
+		try {
+			return new NumberFormatter(decimals, Boolean.parseBoolean(var("trimzeros")));
+		} catch(IllegalArgumentException e) {
+			throw new RenderException("$decimals: " + e.getMessage());
+		}
+	}
+	
+	/**
+	 * Get a non-negative numeric variable
+	 * @param name variable name
+	 * @param def default value
+	 * @return value or the default if the variable is not set
+	 */
+	private double numberVar(String name, double def) {
+		String v = var(name);
+		if(v==null || v.trim().length()==0)
+			return def;
+		try {
+			double d = Double.parseDouble(v.trim());
+			if(d>=0)
+				return d;
+		} catch(NumberFormatException e) { }
+		throw new RenderException("$" + name + " must be a non-negative number: " + v);
+	}
+	
+	/**
+	 * Simplify a symbolic coordinate for output
+	 */
+	static private Coordinate simplify(Coordinate c, Map<String, Double> known) {
+		if(c instanceof SymbolicCoordinate)
+			return ((SymbolicCoordinate)c).simplify(known);
+		return c;
+	}
+	
 	@Override
 	public void toGcode(Writer out, Path path, String zoffset) throws IOException {		
+		final Map<String, Double> known = inlineVars();
+		final NumberFormatter fmt = numberFormat();
+		
 		// Safe height for rapids
-		final Coordinate safez = Coordinate.parse("z" + var("safe_z"));
+		final Coordinate safez = simplify(Coordinate.parse("z" + var("safe_z")), known);
 		final Coordinate nearz;
 		if(!var("safe_z").equals("near_z"))
-			nearz = Coordinate.parse("z" + var("near_z"));
+			nearz = simplify(Coordinate.parse("z" + var("near_z")), known);
 		else
 			nearz = null;
 		
@@ -87,10 +189,6 @@ public class R3axis extends Router {
 			zpass = zpassc.get(Axis.Z);
 		}
 		
-		// Have we set the plunge rate? We must remember to set the normal feed
-		// rate afterwards.
-		boolean fplungeset=false;
-		
 		List<Path.Segment> segments = path.getSegments();
 		Coordinate firstpoint = segments.get(0).point;
 		Coordinate lastpoint = null;
@@ -109,7 +207,6 @@ public class R3axis extends Router {
 		boolean skipfirstrapid = false;
 		String loopn=null;	// the number for the loop O word
 		String zvar=null;	// The variable for the Z position
-		Coordinate zvarc = null;
 		if(zpassc!=null) {
 			// If the first move is a rapid and has the same X and Y coordinates
 			// as the last point, move it outside the loop.
@@ -120,9 +217,9 @@ public class R3axis extends Router {
 			
 			if(skipfirstrapid) {
 				out.write("G00 ");
-				out.write(safez.toGcode());
+				safez.write(out, fmt);
 				out.write("\n\t");
-				out.write(firstpoint.toGcode());
+				simplify(firstpoint, known).write(out, fmt);
 				if(segments.get(0).label!=null) {
 					out.write(" (");
 					out.write(segments.get(0).label);
@@ -131,7 +228,7 @@ public class R3axis extends Router {
 					
 				if(nearz!=null) {
 					out.write("\n\t");
-					out.write(nearz.toGcode());
+					nearz.write(out, fmt);
 				}
 				out.write('\n');
 			}
@@ -140,7 +237,6 @@ public class R3axis extends Router {
 			loopn = Subroutines.getNextOnumber();
 			String ifn = Subroutines.getNextOnumber();
 			zvar = "#<o" + loopn + '>';
-			zvarc = new SymbolicCoordinate(null, null, zvar);
 			out.write(zvar + " = 0\n");
 			out.write('o' + loopn + " while [" + zvar + " gt " + zoff + "]\n");
 			out.write(zvar + " = [" + zvar + " - " + zpass + "]\n");
@@ -150,13 +246,263 @@ public class R3axis extends Router {
 		}
 		
 		// Convert path segments to G codes
-		Path.Segment prev = null;
-		boolean firstrapid = segments.get(0).type==SType.MOVE;
-		for(ListIterator<Path.Segment> i=segments.listIterator();i.hasNext();) {
-			Path.Segment s = i.next();
+		Emitter emitter = new Emitter(out, safez, nearz, rapidnear, zoffc, zoff, zvar, skipfirstrapid, known, fmt, Boolean.parseBoolean(var("compact")));
+		for(Path.Segment s : segments)
+			emitter.add(s);
+		emitter.finish();
+		
+		if(loopn!=null) {
+			out.write('o');
+			out.write(loopn);
+			out.write(" endwhile\n");
+		}
+		
+		out.write("G00 ");
+		safez.write(out, fmt);
+		out.write('\n');
+	}
+	
+	@Override
+	public void toGcode(Writer out, StreamingPathGenerator pathg, String zoffset) throws IOException {
+		// Multipass cutting needs the first and last points before
+		// the path can be written
+		if(zoffset!=null) {
+			super.toGcode(out, pathg, zoffset);
+			return;
+		}
+		
+		final Map<String, Double> known = inlineVars();
+		final NumberFormatter fmt = numberFormat();
+		final Coordinate safez = simplify(Coordinate.parse("z" + var("safe_z")), known);
+		final Coordinate nearz;
+		if(!var("safe_z").equals("near_z"))
+			nearz = simplify(Coordinate.parse("z" + var("near_z")), known);
+		else
+			nearz = null;
+		final boolean rapidnear = nearz!=null && Boolean.parseBoolean(var("rapidnear"));
+		
+		final Emitter emitter = new Emitter(out, safez, nearz, rapidnear, null, null, null, false, known, fmt, Boolean.parseBoolean(var("compact")));
+		try {
+			pathg.generate(new SegmentSink() {
+				public void addSegment(SType type, double x, double y, double z) {
+					NumericCoordinate c = new NumericCoordinate();
+					if(!Double.isNaN(x))
+						c.set(Axis.X, x);
+					if(!Double.isNaN(y))
+						c.set(Axis.Y, y);
+					if(!Double.isNaN(z))
+						c.set(Axis.Z, z);
+					try {
+						emitter.add(new Path.Segment(type, c));
+					} catch(IOException e) {
+						throw new StreamException(e);
+					}
+				}
+			});
+		} catch(StreamException e) {
+			throw (IOException)e.getCause();
+		}
+		emitter.finish();
+		
+		// Like with a complete path, nothing is written if there were no points
+		if(emitter.hasPoints()) {
+			out.write("G00 ");
+			safez.write(out, fmt);
+			out.write('\n');
+		}
+	}
+	
+	/**
+	 * Wrapper for passing output errors through a segment sink
+	 */
+	static private final class StreamException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+		
+		StreamException(IOException cause) {
+			super(cause);
+		}
+	}
+	
+	/**
+	 * Segment to G-code converter.
+	 * <p>Segments are converted as soon as they are added, except when the
+	 * code depends on the following segments. Those are held back until
+	 * enough is known.
+	 */
+	private final class Emitter {
+		private final Writer out;
+		private final Coordinate safez, nearz;
+		private final boolean rapidnear;
+		private final Coordinate zoffc, zvarc;
+		/** The Z level plunges are relative to */
+		private final Coordinate zbase;
+		private final String zoff, zvar;
+		private final boolean skipfirstrapid;
+		/** Values of inlined variables */
+		private final Map<String, Double> known;
+		private final NumberFormatter fmt;
+		/** Leave out words that don't change the modal state */
+		private final boolean compact;
+		/** Merges short lines before conversion. Null if not enabled. */
+		private final SegmentMerger merger;
+		/** Path blending tolerance to set before the first segment */
+		private String blend;
+		
+		/** Segments waiting for the following segments */
+		private final LinkedList<Path.Segment> pending = new LinkedList<Path.Segment>();
+		
+		/** The previous converted segment */
+		private Path.Segment prev;
+		/** Have we set the plunge rate? We must remember to set the normal feed rate afterwards. */
+		private boolean fplungeset;
+		/** Is the next rapid the first one of the path */
+		private boolean firstrapid;
+		private boolean started, points;
+		
+		/** Modal state for compact output: current motion mode and feed rate */
+		private String motion, feed;
+		/** Modal state for compact output: last written axis values. Null if not known. */
+		private final Object[] position = new Object[AXES.length];
+		
+		Emitter(Writer out, Coordinate safez, Coordinate nearz, boolean rapidnear, Coordinate zoffc, String zoff, String zvar, boolean skipfirstrapid, Map<String, Double> known, NumberFormatter fmt, boolean compact) {
+			this.out = out;
+			this.safez = safez;
+			this.nearz = nearz;
+			this.rapidnear = rapidnear;
+			this.zoffc = zoffc;
+			this.zoff = zoff;
+			this.zvar = zvar;
+			this.zvarc = zvar!=null ? new SymbolicCoordinate(null, null, zvar) : null;
+			this.zbase = zoffc!=null ? Coordinate.parse("z" + (zvar!=null ? zvar : zoff)) : null;
+			this.skipfirstrapid = skipfirstrapid;
+			this.known = known;
+			this.fmt = fmt;
+			this.compact = compact;
+			
+			final double minsegment = numberVar("min_segment", 0);
+			if(minsegment>0) {
+				this.merger = new SegmentMerger(minsegment, numberVar("chord_tol", 0.01)) {
+					protected void emit(Path.Segment s) {
+						try {
+							queue(s);
+						} catch(IOException e) {
+							throw new StreamException(e);
+						}
+					}
+				};
+			} else
+				this.merger = null;
+			
+			final String b = var("blend");
+			this.blend = b!=null && b.trim().length()>0 ? b.trim() : null;
+		}
+		
+		/**
+		 * Have any segments with a point been added
+		 * @return true if there were points
+		 */
+		boolean hasPoints() {
+			return points;
+		}
+		
+		/**
+		 * Add the next segment
+		 * @param s
+		 */
+		void add(Path.Segment s) throws IOException {
+			if(merger!=null) {
+				try {
+					merger.add(s);
+				} catch(StreamException e) {
+					throw (IOException)e.getCause();
+				}
+			} else
+				queue(s);
+		}
+		
+		/**
+		 * Queue a segment for conversion
+		 * @param s
+		 */
+		private void queue(Path.Segment s) throws IOException {
+			if(!started) {
+				firstrapid = s.type==SType.MOVE;
+				started = true;
+			}
+			if(s.point!=null)
+				points = true;
+			pending.add(s);
+			flush(false);
+		}
+		
+		/**
+		 * Convert the remaining segments
+		 */
+		void finish() throws IOException {
+			if(merger!=null) {
+				try {
+					merger.finish();
+				} catch(StreamException e) {
+					throw (IOException)e.getCause();
+				}
+			}
+			flush(true);
+		}
+		
+		private void flush(boolean end) throws IOException {
+			while(!pending.isEmpty()) {
+				final Path.Segment s = pending.getFirst();
+				final boolean hasnext = pending.size()>1;
+				Path.Segment targ = null;
+				if(s.type==SType.MOVE) {
+					// If a Z value is defined for the move, use it.
+					// Otherwise we use the Z value of the next non rapid move.
+					if(s.point.isDefined(Axis.Z))
+						targ = s;
+					else {
+						targ = findNext(pending);
+						if(targ==null && !end)
+							return;
+					}
+				} else if(s.type==SType.POINT && !hasnext && !end)
+					return;
+				
+				if(compact && s.type==SType.MOVE) {
+					// A rapid followed directly by another rapid needs no plunge,
+					// unless it has a depth of its own (a dab.)
+					final Path.Segment next = nextMotion(pending);
+					if(next==null && !end)
+						return;
+					if(next!=null && next.type==SType.MOVE && s.label==null && !s.point.isDefined(Axis.Z) && !(skipfirstrapid && firstrapid)) {
+						pending.removeFirst();
+						continue;
+					}
+				}
+				
+				pending.removeFirst();
+				if(blend!=null && s.type!=SType.SEAM) {
+					out.write("G64 P");
+					out.write(blend);
+					out.write('\n');
+					blend = null;
+				}
+				if(compact)
+					convertCompact(s, targ, hasnext);
+				else
+					convert(s, targ, hasnext);
+			}
+		}
+		
+		/**
+		 * Convert a single segment
+		 * @param s the segment
+		 * @param targ the segment whose depth a rapid plunges to
+		 * @param hasnext is this not the last segment
+		 */
+		private void convert(Path.Segment s, Path.Segment targ, boolean hasnext) throws IOException {
 			switch(s.type) {
 			// Seam are just markers.
-			case SEAM: continue;
+			case SEAM: return;
 			// Rapid move
 			// Go to safe Z height, move over the target point and plunge down
 			case MOVE:
@@ -164,9 +510,9 @@ public class R3axis extends Router {
 				// and the end point is the same as the starting point.
 				if(!skipfirstrapid || !firstrapid) {
 					out.write("G00 ");
-					out.write((rapidnear && !firstrapid ? nearz : safez).toGcode());
+					(rapidnear && !firstrapid ? nearz : safez).write(out, fmt);
 					out.write("\n\t");
-					out.write(s.point.undefined(Axis.Z).toGcode());
+					simplify(s.point.undefined(Axis.Z), known).write(out, fmt);
 					if(s.label!=null) {
 						out.write(" (");
 						out.write(s.label);
@@ -175,19 +521,12 @@ public class R3axis extends Router {
 					out.write('\n');
 				}
 				
-				Path.Segment targ;
-				// If a Z value is defined for the move, use it.
-				// Otherwise we use the Z value of the next non rapid move.
-				if(s.point.isDefined(Axis.Z))
-					targ = s;
-				else
-					targ = findNext(segments, i.nextIndex());
 				if(targ!=null) {
 					// Plunge down to target depth
 					// If near_z is not the same as safe_z, rapid there first
 					if(!skipfirstrapid && nearz!=null) {
 						out.write("G00 ");
-						out.write(nearz.toGcode());
+						nearz.write(out, fmt);
 						out.write('\n');
 					}
 					out.write("G01");
@@ -198,10 +537,10 @@ public class R3axis extends Router {
 					if(zoffc==null) {
 						if(!s.point.isDefined(Axis.Z))
 							throw new RenderException("No Z coordinate defined! This may be a 2D path. Make sure the initial move has a Z value or use an offset.");
-						out.write(targ.point.get(Axis.Z));
+						simplify(targ.point, known).write(out, Axis.Z, fmt);
 					} else {
 						// Otherwise plunge to Z offset + target depth
-						out.write(Coordinate.parse("z" + (zvar!=null ? zvar : zoff)).offset(targ.point).get(Axis.Z));
+						simplify(zbase.offset(targ.point), known).write(out, Axis.Z, fmt);
 					}
 					out.write('\n');
 					fplungeset=true;
@@ -212,13 +551,13 @@ public class R3axis extends Router {
 			case POINT:
 				// Move over the target point
 				out.write("G00 ");
-				out.write((rapidnear ? nearz : safez).toGcode());
+				(rapidnear ? nearz : safez).write(out, fmt);
 				out.write("\n\t");
-				out.write(s.point.undefined(Axis.Z).toGcode());
+				simplify(s.point.undefined(Axis.Z), known).write(out, fmt);
 				// Plunge down to target depth
 				if(nearz!=null) {
 					out.write("\n\t ");
-					out.write(nearz.toGcode());
+					nearz.write(out, fmt);
 				}
 				out.write("\nG01");
 				out.write(" F");
@@ -228,9 +567,9 @@ public class R3axis extends Router {
 				if(zoffc==null) {
 					if(!s.point.isDefined(Axis.Z))
 						throw new RenderException("No Z coordinate defined! Use an offset.");
-					out.write(s.point.get(Axis.Z));
+					simplify(s.point, known).write(out, Axis.Z, fmt);
 				} else // Otherwise plunge to Z offset + depth of point
-					out.write(Coordinate.parse("z" + (zvar!=null ? zvar : zoff)).offset(s.point).get(Axis.Z));
+					simplify(zbase.offset(s.point), known).write(out, Axis.Z, fmt);
 				
 				if(s.label!=null) {
 					out.write(" (");
@@ -240,9 +579,9 @@ public class R3axis extends Router {
 				
 				out.write('\n');
 				// Retract back to safety (if this is not the last entry)
-				if(i.hasNext()) {
+				if(hasnext) {
 					out.write("G00 ");
-					out.write((rapidnear ? nearz : safez).toGcode());
+					(rapidnear ? nearz : safez).write(out, fmt);
 					out.write('\n');
 				}
 				break;
@@ -262,10 +601,11 @@ public class R3axis extends Router {
 					out.write(' ');
 					fplungeset = false;
 				}
-				Coordinate point = s.point;
-				if(zoffc!=null)
-					point = point.offset(zvarc!=null ? zvarc : zoffc);
-				out.write(point.toGcode());
+				if(zoffc!=null) {
+					final Coordinate offset = zvarc!=null ? zvarc : zoffc;
+					writeAxes(simplify(s.point.offset(offset), known), s.point, offset, ALL);
+				} else
+					simplify(s.point, known).write(out, fmt);
 				if(s.label!=null) {
 					out.write(" (");
 					out.write(s.label);
@@ -279,25 +619,227 @@ public class R3axis extends Router {
 			prev = s;
 		}
 		
-		if(loopn!=null) {
-			out.write('o');
-			out.write(loopn);
-			out.write(" endwhile\n");
+		/**
+		 * Convert a single segment, leaving out words that don't change the modal state
+		 * @param s the segment
+		 * @param targ the segment whose depth a rapid plunges to
+		 * @param hasnext is this not the last segment
+		 */
+		private void convertCompact(Path.Segment s, Path.Segment targ, boolean hasnext) throws IOException {
+			switch(s.type) {
+			case SEAM: return;
+			case MOVE:
+				if(!skipfirstrapid || !firstrapid) {
+					final Coordinate rz = rapidnear && !firstrapid ? nearz : safez;
+					move("G00", null, rz, rz, null, null, ALL);
+					final Coordinate xy = s.point.undefined(Axis.Z);
+					move("G00", null, simplify(xy, known), xy, null, s.label, ALL);
+				}
+				
+				if(targ!=null) {
+					if(!skipfirstrapid && nearz!=null)
+						move("G00", null, nearz, nearz, null, null, ALL);
+					plunge(targ.point, null);
+				}
+				firstrapid = false;
+				break;
+			case POINT:
+				final Coordinate rz = rapidnear ? nearz : safez;
+				move("G00", null, rz, rz, null, null, ALL);
+				final Coordinate xy = s.point.undefined(Axis.Z);
+				move("G00", null, simplify(xy, known), xy, null, null, ALL);
+				if(nearz!=null)
+					move("G00", null, nearz, nearz, null, null, ALL);
+				if(zoffc==null && !s.point.isDefined(Axis.Z))
+					throw new RenderException("No Z coordinate defined! Use an offset.");
+				plunge(s.point, s.label);
+				if(hasnext)
+					move("G00", null, rz, rz, null, null, ALL);
+				break;
+			case LINE:
+			case CWARC:
+			case CCWARC:
+				// The normal feed rate must be restored after a plunge
+				final String f = feed!=null ? var("default_f") : null;
+				if(zoffc!=null) {
+					final Coordinate offset = zvarc!=null ? zvarc : zoffc;
+					move(s.type.gcode, f, simplify(s.point.offset(offset), known), s.point, offset, s.label, ALL);
+				} else
+					move(s.type.gcode, f, simplify(s.point, known), s.point, null, s.label, ALL);
+				break;
+			default:
+				throw new RuntimeException("BUG! Unhandled segment type " + s.type);
+			}
+			prev = s;
 		}
 		
-		out.write("G00 ");
-		out.write(safez.toGcode());
-		out.write('\n');
+		/**
+		 * Plunge down to the depth of a point
+		 * @param point
+		 * @param label
+		 */
+		private void plunge(Coordinate point, String label) throws IOException {
+			if(zoffc==null) {
+				if(!point.isDefined(Axis.Z))
+					throw new RenderException("No Z coordinate defined! This may be a 2D path. Make sure the initial move has a Z value or use an offset.");
+				move("G01", var("plunge_f"), simplify(point, known), point, null, label, bit(Axis.Z));
+			} else
+				move("G01", var("plunge_f"), simplify(zbase.offset(point), known), point, zbase, label, bit(Axis.Z));
+		}
+		
+		/**
+		 * Write a motion command, leaving out the words the controller already has.
+		 * If nothing would move, only the label is written.
+		 * @param code motion mode G-code
+		 * @param f feed rate or null if it doesn't need to be set
+		 * @param c the target point
+		 * @param point the point before offsetting (and simplification)
+		 * @param offset the offset that was applied or null
+		 * @param label optional label
+		 * @param mask the axes to write
+		 */
+		private void move(String code, String f, Coordinate c, Coordinate point, Coordinate offset, String label, int mask) throws IOException {
+			final boolean arc = !"G00".equals(code) && !"G01".equals(code);
+			int words = 0;
+			for(Axis a : AXES) {
+				final int b = bit(a);
+				if((mask & b)==0 || !c.isDefined(a))
+					continue;
+				if((b & NONMODAL)!=0 || (arc && (b & PLANE)!=0) || !same(position[a.ordinal()], value(c, point, offset, a)))
+					words |= b;
+			}
+			
+			if(words==0) {
+				if(label!=null) {
+					out.write('(');
+					out.write(label);
+					out.write(")\n");
+				}
+				return;
+			}
+			
+			if(code.equals(motion))
+				out.write('\t');
+			else {
+				out.write(code);
+				out.write(' ');
+				motion = code;
+			}
+			if(f!=null && !f.equals(feed)) {
+				out.write('F');
+				out.write(f);
+				out.write(' ');
+				feed = f;
+			}
+			writeAxes(c, point, offset, words);
+			for(Axis a : AXES)
+				if((words & bit(a) & ~NONMODAL)!=0)
+					position[a.ordinal()] = value(c, point, offset, a);
+			if(label!=null) {
+				out.write(" (");
+				out.write(label);
+				out.write(')');
+			}
+			out.write('\n');
+		}
+		
+		/**
+		 * Get the value of an axis for comparison.
+		 * @return a Double for numeric values or a String for symbolic ones
+		 */
+		private Object value(Coordinate c, Coordinate point, Coordinate offset, Axis a) {
+			final Coordinate from = source(c, point, offset, a);
+			if(from instanceof NumericCoordinate)
+				return ((NumericCoordinate)from).getValue(a);
+			return from.get(a);
+		}
+		
+		/**
+		 * Would the two values be written the same?
+		 */
+		private boolean same(Object last, Object value) {
+			if(last==null)
+				return false;
+			if(last instanceof Double && value instanceof Double) {
+				final double a = (Double)last, b = (Double)value;
+				if(a==b)
+					return true;
+				return Math.abs(a-b) < fmt.getResolution() && fmt.format(a).equals(fmt.format(b));
+			}
+			return last.equals(value);
+		}
+		
+		/**
+		 * Write the axis words of a point
+		 * @param c the point to write
+		 * @param point the point before offsetting
+		 * @param offset the offset that was applied or null
+		 * @param mask the axes to write
+		 */
+		private void writeAxes(Coordinate c, Coordinate point, Coordinate offset, int mask) throws IOException {
+			boolean first = true;
+			for(Axis a : AXES) {
+				if((mask & bit(a))==0 || !c.isDefined(a))
+					continue;
+				if(!first)
+					out.write(' ');
+				first = false;
+				out.write(a.toString());
+				source(c, point, offset, a).write(out, a, fmt);
+			}
+		}
+	}
+	
+	static private final Axis[] AXES = Axis.values();
+	static private final int ALL = -1;
+	/** Arc center offsets are not modal */
+	static private final int NONMODAL = bit(Axis.I) | bit(Axis.J) | bit(Axis.K);
+	/** Arc end point axes are always written */
+	static private final int PLANE = bit(Axis.X) | bit(Axis.Y);
+	
+	static private int bit(Axis a) {
+		return 1 << a.ordinal();
+	}
+	
+	/**
+	 * Get the coordinate an axis value should be written from.
+	 * <p>Offsetting a numeric point with a symbolic offset makes all its
+	 * axes symbolic. Axes not touched by the offset are written from the
+	 * original point so they are formatted like numeric coordinates.
+	 * @param c the point to write
+	 * @param point the point before offsetting
+	 * @param offset the offset that was applied or null
+	 * @param a the axis
+	 * @return c or point
+	 */
+	static private Coordinate source(Coordinate c, Coordinate point, Coordinate offset, Axis a) {
+		if(point instanceof NumericCoordinate && (offset==null || !offset.isDefined(a)))
+			return point;
+		return c;
+	}
+	
+	/**
+	 * Find the next segment after the first one, skipping seams.
+	 * @param list
+	 * @return the segment or null if not found
+	 */
+	static private Path.Segment nextMotion(List<Path.Segment> list) {
+		Iterator<Path.Segment> ii = list.listIterator(1);
+		while(ii.hasNext()) {
+			Path.Segment s = ii.next();
+			if(s.type!=SType.SEAM)
+				return s;
+		}
+		return null;
 	}
 	
 	/**
-	 * Find the next non-rapid motion command.
+	 * Find the next non-rapid motion command after the first segment.
 	 * @param list
-	 * @param from
-	 * @return
+	 * @return the segment or null if not found
 	 */
-	static private Path.Segment findNext(List<Path.Segment> list, int from) {
-		Iterator<Path.Segment> ii = list.listIterator(from);
+	static private Path.Segment findNext(List<Path.Segment> list) {
+		Iterator<Path.Segment> ii = list.listIterator(1);
 		while(ii.hasNext()) {
 			Path.Segment s = ii.next();
 			if(s.type != Path.SType.MOVE && s.type != Path.SType.SEAM)
@@ -24,6 +24,7 @@ import java.util.Stack;
 
 import org.apache.velocity.VelocityContext;
 import org.luolamies.jgcgen.path.Path;
+import org.luolamies.jgcgen.path.StreamingPathGenerator;
 
 public abstract class Router {
 	protected final VelocityContext ctx;
@@ -98,4 +99,19 @@ public abstract class Router {
 	 * @param offset cutting depth offset
 	 */
 	public abstract void toGcode(Writer out, Path path, String offset) throws IOException;
+	
+	/**
+	 * Convert a streamed path to G-code.
+	 * <p>Routers that can convert the segments one at a time should override this
+	 * to avoid keeping the whole path in memory. The default implementation generates
+	 * the complete path first.
+	 * @param out the output
+	 * @param pathg path generator
+	 * @param offset cutting depth offset
+	 */
+	public void toGcode(Writer out, StreamingPathGenerator pathg, String offset) throws IOException {
+		Path path = pathg.toPath();
+		if(path.getSize()>0)
+			toGcode(out, path, offset);
+	}
 }
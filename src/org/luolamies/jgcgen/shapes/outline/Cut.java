@@ -2,12 +2,12 @@ package org.luolamies.jgcgen.shapes.outline;
 
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
 
 import org.luolamies.jgcgen.RenderException;
 import org.luolamies.jgcgen.path.Axis;
+import org.luolamies.jgcgen.path.Bounds;
 import org.luolamies.jgcgen.path.NumericCoordinate;
 import org.luolamies.jgcgen.path.Path;
 import org.luolamies.jgcgen.path.PathGenerator;
@@ -66,44 +66,15 @@ public class Cut implements PathGenerator {
 		// get cut first.
 		if(sources.size()>1) {
 			Collections.sort(sources, new Comparator<Path>() {
-				IdentityHashMap<Path, Double> areacache = new IdentityHashMap<Path, Double>(sources.size());
-				
 				@Override
 				public int compare(Path p1, Path p2) {
-					double a1 = calcArea(p1);
-					double a2 = calcArea(p2);
-					return Double.compare(a1, a2);
+					return Double.compare(calcArea(p1), calcArea(p2));
 				}
 				
 				/** Calculate the area of a path bounding rectangle */
 				private double calcArea(Path p) {
-					if(areacache.containsKey(p))
-						return areacache.get(p);
-					
-					double minx=Double.MAX_VALUE, maxx=-Double.MAX_VALUE;
-					double miny=Double.MAX_VALUE, maxy=-Double.MAX_VALUE;
-					for(Path.Segment s : p.getSegments()) {
-						if(s.point!=null) {
-							Double x = ((NumericCoordinate)s.point).getValue(Axis.X);
-							Double y = ((NumericCoordinate)s.point).getValue(Axis.Y);
-							if(x!=null) {
-								if(x<minx)
-									minx = x;
-								if(x>maxx)
-									maxx = x;
-							}
-							if(y!=null) {
-								if(y<miny)
-									miny = y;
-								if(y>maxy)
-									maxy = y;
-							}
-						}
-					}
-					
-					double area = (maxx-minx) * (maxy-miny);
-					areacache.put(p, area);
-					return area;
+					Bounds b = p.getBounds();
+					return b.isDefined(Axis.X) && b.isDefined(Axis.Y) ? b.getSize(Axis.X) * b.getSize(Axis.Y) : 0;
 				}
 			});
 		}
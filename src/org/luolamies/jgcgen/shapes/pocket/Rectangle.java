@@ -2,6 +2,7 @@ package org.luolamies.jgcgen.shapes.pocket;
 
 import org.luolamies.jgcgen.RenderException;
 import org.luolamies.jgcgen.path.Axis;
+import org.luolamies.jgcgen.path.Bounds;
 import org.luolamies.jgcgen.path.NumericCoordinate;
 import org.luolamies.jgcgen.path.Path;
 import org.luolamies.jgcgen.path.PathGenerator;
@@ -90,36 +91,13 @@ public class Rectangle implements PathGenerator {
 	 * @return this
 	 */
 	public Rectangle bounds(PathGenerator path, double offset) {
-		double minx = Double.MAX_VALUE, miny = Double.MAX_VALUE;
-		double maxx = -Double.MAX_EXPONENT, maxy = -Double.MAX_VALUE;
-		
-		try {
-			for(Path.Segment s : path.toPath().getSegments()) {
-				if(s.point!=null) {
-					NumericCoordinate nc = (NumericCoordinate) s.point;
-					Double x = nc.getValue(Axis.X);
-					Double y = nc.getValue(Axis.Y);
-					if(x!=null) {
-						if(x<minx)
-							minx = x;
-						if(x>maxx)
-							maxx = x;
-					}
-					if(y!=null) {
-						if(y<miny)
-							miny = y;
-						if(y>maxy)
-							maxy = y;
-					}
-				}
-			}
-		} catch(ClassCastException e) {
-			throw new RenderException("Only numeric paths are supported!");
-		}
-		
-		if(miny==-Double.MAX_VALUE || minx==-Double.MAX_VALUE)
+		Bounds b = path.toPath().getBounds();
+		if(!b.isDefined(Axis.X) || !b.isDefined(Axis.Y))
 			throw new RenderException("X and Y coordinates in path not defined!");
 		
+		final double minx = b.getMin(Axis.X), maxx = b.getMax(Axis.X);
+		final double miny = b.getMin(Axis.Y), maxy = b.getMax(Axis.Y);
+		
 		x = minx-offset;
 		y = miny-offset;
 		w = maxx-minx+2*offset;
@@ -0,0 +1,236 @@
+package org.luolamies.jgcgen.shapes.surface;
+
+import org.nfunk.jep.ASTConstant;
+import org.nfunk.jep.ASTFunNode;
+import org.nfunk.jep.ASTVarNode;
+import org.nfunk.jep.JEP;
+import org.nfunk.jep.Node;
+import org.nfunk.jep.Operator;
+import org.nfunk.jep.OperatorSet;
+
+/**
+ * A JEP expression of <var>x</var> and <var>y</var> compiled into a tree of
+ * primitive evaluators.
+ * <p>Only real valued arithmetic, comparisons, <code>if</code> and the common
+ * elementary functions are supported. Where JEP would return a complex
+ * number (e.g. square root of a negative number), the compiled expression
+ * returns NaN, so the caller can fall back to JEP for the exact behaviour.
+ * Variables other than x and y are treated as constants with the values they
+ * had when the expression was compiled.
+ */
+abstract class CompiledExpression {
+	static private final double LOG10 = Math.log(10);
+
+	/**
+	 * Evaluate the expression
+	 * @param x
+	 * @param y
+	 * @return value or NaN
+	 */
+	abstract double eval(double x, double y);
+
+	/**
+	 * Compile an expression
+	 * @param jep the parser that parsed the expression
+	 * @param node the parsed expression
+	 * @return compiled expression or null if the expression uses unsupported features
+	 */
+	static CompiledExpression compile(JEP jep, Node node) {
+		if(node instanceof ASTConstant) {
+			final Object val = ((ASTConstant)node).getValue();
+			if(!(val instanceof Double))
+				return null;
+			return constant((Double)val);
+
+		} else if(node instanceof ASTVarNode) {
+			final String name = ((ASTVarNode)node).getName();
+			if("x".equals(name)) {
+				return new CompiledExpression() {
+					double eval(double x, double y) { return x; }
+				};
+			} else if("y".equals(name)) {
+				return new CompiledExpression() {
+					double eval(double x, double y) { return y; }
+				};
+			}
+			final Object val = ((ASTVarNode)node).getVar().getValue();
+			if(!(val instanceof Double))
+				return null;
+			return constant((Double)val);
+
+		} else if(node instanceof ASTFunNode) {
+			final ASTFunNode fn = (ASTFunNode)node;
+			final int argc = fn.jjtGetNumChildren();
+			final CompiledExpression[] args = new CompiledExpression[argc];
+			for(int i=0;i<argc;++i) {
+				args[i] = compile(jep, fn.jjtGetChild(i));
+				if(args[i]==null)
+					return null;
+			}
+
+			if(fn.isOperator())
+				return operator(jep.getOperatorSet(), fn.getOperator(), args);
+			else
+				return function(fn.getName(), args);
+		}
+		return null;
+	}
+
+	static private CompiledExpression constant(final double c) {
+		return new CompiledExpression() {
+			double eval(double x, double y) { return c; }
+		};
+	}
+
+	static private CompiledExpression operator(OperatorSet ops, Operator op, final CompiledExpression[] args) {
+		if(args.length==1) {
+			final CompiledExpression a = args[0];
+			if(op==ops.getUMinus()) {
+				return new CompiledExpression() {
+					double eval(double x, double y) { return -a.eval(x, y); }
+				};
+			}
+			return null;
+		}
+
+		if(args.length!=2)
+			return null;
+		final CompiledExpression a = args[0], b = args[1];
+
+		if(op==ops.getAdd()) {
+			return new CompiledExpression() {
+				double eval(double x, double y) { return a.eval(x, y) + b.eval(x, y); }
+			};
+		} else if(op==ops.getSubtract()) {
+			return new CompiledExpression() {
+				double eval(double x, double y) { return a.eval(x, y) - b.eval(x, y); }
+			};
+		} else if(op==ops.getMultiply()) {
+			return new CompiledExpression() {
+				double eval(double x, double y) { return a.eval(x, y) * b.eval(x, y); }
+			};
+		} else if(op==ops.getDivide()) {
+			return new CompiledExpression() {
+				double eval(double x, double y) { return a.eval(x, y) / b.eval(x, y); }
+			};
+		} else if(op==ops.getPower()) {
+			return new CompiledExpression() {
+				double eval(double x, double y) {
+					final double base = a.eval(x, y), exp = b.eval(x, y);
+					// Negative base with a fractional exponent gives a complex result
+					if(base<0 && exp!=(int)exp)
+						return Double.NaN;
+					return Math.pow(base, exp);
+				}
+			};
+		} else if(op==ops.getLT()) {
+			return new CompiledExpression() {
+				double eval(double x, double y) { return a.eval(x, y) < b.eval(x, y) ? 1 : 0; }
+			};
+		} else if(op==ops.getGT()) {
+			return new CompiledExpression() {
+				double eval(double x, double y) { return a.eval(x, y) > b.eval(x, y) ? 1 : 0; }
+			};
+		} else if(op==ops.getLE()) {
+			return new CompiledExpression() {
+				double eval(double x, double y) { return a.eval(x, y) <= b.eval(x, y) ? 1 : 0; }
+			};
+		} else if(op==ops.getGE()) {
+			return new CompiledExpression() {
+				double eval(double x, double y) { return a.eval(x, y) >= b.eval(x, y) ? 1 : 0; }
+			};
+		}
+		return null;
+	}
+
+	static private CompiledExpression function(String name, final CompiledExpression[] args) {
+		if("if".equals(name)) {
+			if(args.length==3) {
+				final CompiledExpression c = args[0], a = args[1], b = args[2];
+				return new CompiledExpression() {
+					double eval(double x, double y) {
+						final double cond = c.eval(x, y);
+						if(Double.isNaN(cond))
+							return Double.NaN;
+						return cond>0 ? a.eval(x, y) : b.eval(x, y);
+					}
+				};
+			}
+			return null;
+		}
+
+		if(args.length!=1)
+			return null;
+		final CompiledExpression a = args[0];
+
+		if("sin".equals(name)) {
+			return new CompiledExpression() {
+				double eval(double x, double y) { return Math.sin(a.eval(x, y)); }
+			};
+		} else if("cos".equals(name)) {
+			return new CompiledExpression() {
+				double eval(double x, double y) { return Math.cos(a.eval(x, y)); }
+			};
+		} else if("tan".equals(name)) {
+			return new CompiledExpression() {
+				double eval(double x, double y) { return Math.tan(a.eval(x, y)); }
+			};
+		} else if("atan".equals(name)) {
+			return new CompiledExpression() {
+				double eval(double x, double y) { return Math.atan(a.eval(x, y)); }
+			};
+		} else if("asin".equals(name)) {
+			return new CompiledExpression() {
+				double eval(double x, double y) {
+					final double v = a.eval(x, y);
+					return v<-1 || v>1 ? Double.NaN : Math.asin(v);
+				}
+			};
+		} else if("acos".equals(name)) {
+			return new CompiledExpression() {
+				double eval(double x, double y) {
+					final double v = a.eval(x, y);
+					return v<-1 || v>1 ? Double.NaN : Math.acos(v);
+				}
+			};
+		} else if("exp".equals(name)) {
+			return new CompiledExpression() {
+				double eval(double x, double y) { return Math.exp(a.eval(x, y)); }
+			};
+		} else if("sqrt".equals(name)) {
+			return new CompiledExpression() {
+				double eval(double x, double y) {
+					final double v = a.eval(x, y);
+					return v<0 ? Double.NaN : Math.sqrt(v);
+				}
+			};
+		} else if("ln".equals(name)) {
+			return new CompiledExpression() {
+				double eval(double x, double y) {
+					final double v = a.eval(x, y);
+					return v<0 ? Double.NaN : Math.log(v);
+				}
+			};
+		} else if("log".equals(name)) {
+			return new CompiledExpression() {
+				double eval(double x, double y) {
+					final double v = a.eval(x, y);
+					return v<0 ? Double.NaN : Math.log(v) / LOG10;
+				}
+			};
+		} else if("abs".equals(name)) {
+			return new CompiledExpression() {
+				double eval(double x, double y) { return Math.abs(a.eval(x, y)); }
+			};
+		} else if("floor".equals(name)) {
+			return new CompiledExpression() {
+				double eval(double x, double y) { return Math.floor(a.eval(x, y)); }
+			};
+		} else if("ceil".equals(name)) {
+			return new CompiledExpression() {
+				double eval(double x, double y) { return Math.ceil(a.eval(x, y)); }
+			};
+		}
+		return null;
+	}
+}
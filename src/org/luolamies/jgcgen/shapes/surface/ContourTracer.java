@@ -0,0 +1,248 @@
+package org.luolamies.jgcgen.shapes.surface;
+
+import java.util.BitSet;
+
+import org.luolamies.jgcgen.path.Path;
+import org.luolamies.jgcgen.path.SegmentSink;
+
+/**
+ * Trace the outlines of the set regions of a {@link Plane} bitmap.
+ * <p>The outlines follow the pixel edges. Each outline is a closed loop
+ * that keeps the set pixels on its right side, so outer boundaries are
+ * clockwise and holes counterclockwise. Diagonally touching set pixels
+ * are treated as separate regions.
+ * <p>Pixel centers are located at the plane sample points.
+ */
+final class ContourTracer {
+	/** Directions (in bitmap coordinates, Y grows downwards) */
+	static private final int E=0, S=1, W=2, N=3;
+	static private final int[] DX = {1, 0, -1, 0};
+	static private final int[] DY = {0, 1, 0, -1};
+
+	private final long[] bitmap;
+	private final int w, h;
+	private final double cx, cy;
+	private final double tolerance;
+
+	/** Horizontal edges that have already been traced */
+	private final BitSet visited;
+
+	/**
+	 * @param plane the plane whose geometry to use
+	 * @param bitmap the packed bitmap to trace
+	 * @param tolerance simplification tolerance. If zero, only collinear points are removed
+	 */
+	ContourTracer(Plane plane, long[] bitmap, double tolerance) {
+		this.bitmap = bitmap;
+		this.w = plane.getBitmapWidth();
+		this.h = plane.getBitmapHeight();
+		this.cx = plane.getPixelWidth();
+		this.cy = plane.getPixelHeight();
+		this.tolerance = tolerance;
+		this.visited = new BitSet(w * (h+1));
+	}
+
+	/**
+	 * Trace all outlines
+	 * @param z the Z coordinate of the outlines
+	 * @param sink the outline segments are pushed here
+	 */
+	void trace(double z, SegmentSink sink) {
+		int[] loop = new int[64];
+		for(int y=0;y<=h;++y) {
+			for(int x=0;x<w;++x) {
+				if(!visited.get(y*w + x) && isEdge(E, x, y)) {
+					loop = follow(x, y, loop);
+					emit(sink, loop, z);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Is the given pixel set? Pixels outside the plane are unset.
+	 */
+	private boolean px(int x, int y) {
+		if(x<0 || y<0 || x>=w || y>=h)
+			return false;
+		final int i = y*w + x;
+		return (bitmap[i>>6] & (1L<<i)) != 0;
+	}
+
+	/**
+	 * Is there an edge starting from vertex (x,y) going in the given direction?
+	 * The set pixel must be on the right side.
+	 */
+	private boolean isEdge(int dir, int x, int y) {
+		switch(dir) {
+		case E: return !px(x, y-1) && px(x, y);
+		case S: return px(x-1, y) && !px(x, y);
+		case W: return px(x-1, y-1) && !px(x-1, y);
+		case N: return !px(x-1, y-1) && px(x, y-1);
+		default: throw new RuntimeException("BUG: Unhandled direction " + dir);
+		}
+	}
+
+	/**
+	 * Follow a loop starting from the given east going edge.
+	 * @param x0 starting vertex X
+	 * @param y0 starting vertex Y
+	 * @param buf buffer for the loop corners
+	 * @return loop corners as x,y pairs. The first element is the number of corners.
+	 */
+	private int[] follow(int x0, int y0, int[] buf) {
+		int n=0;
+		int x=x0, y=y0, dir=E;
+		boolean startcorner;
+		while(true) {
+			// Mark horizontal edges as visited
+			if(dir==E)
+				visited.set(y*w + x);
+			else if(dir==W)
+				visited.set(y*w + x - 1);
+
+			x += DX[dir];
+			y += DY[dir];
+
+			// Prefer turning right, then straight and then left
+			int next;
+			if(isEdge((dir+1)&3, x, y))
+				next = (dir+1)&3;
+			else if(isEdge(dir, x, y))
+				next = dir;
+			else
+				next = (dir+3)&3;
+
+			if(x==x0 && y==y0 && next==E) {
+				startcorner = dir!=E;
+				break;
+			}
+
+			if(next!=dir) {
+				if(2*n+3 > buf.length) {
+					int[] nb = new int[buf.length*2];
+					System.arraycopy(buf, 0, nb, 0, buf.length);
+					buf = nb;
+				}
+				buf[1+2*n] = x;
+				buf[2+2*n] = y;
+				++n;
+			}
+			dir = next;
+		}
+
+		if(startcorner) {
+			if(2*n+3 > buf.length) {
+				int[] nb = new int[buf.length*2];
+				System.arraycopy(buf, 0, nb, 0, buf.length);
+				buf = nb;
+			}
+			System.arraycopy(buf, 1, buf, 3, 2*n);
+			buf[1] = x0;
+			buf[2] = y0;
+			++n;
+		}
+		buf[0] = n;
+		return buf;
+	}
+
+	/**
+	 * Add a loop to the path
+	 */
+	private void emit(SegmentSink sink, int[] loop, double z) {
+		final int n = loop[0];
+		boolean[] keep = new boolean[n];
+		if(tolerance>0) {
+			// Split the loop at the first point and the farthest point from it
+			// and simplify both halves.
+			int far = 0;
+			double fard = -1;
+			for(int i=1;i<n;++i) {
+				double dx = loop[1+2*i] - loop[1], dy = loop[2+2*i] - loop[2];
+				double d = dx*dx + dy*dy;
+				if(d>fard) {
+					fard = d;
+					far = i;
+				}
+			}
+			keep[0] = true;
+			keep[far] = true;
+			simplify(loop, keep, 0, far);
+			simplify(loop, keep, far, n);
+		} else {
+			for(int i=0;i<n;++i)
+				keep[i] = true;
+		}
+
+		boolean first = true;
+		for(int i=0;i<n;++i) {
+			if(keep[i]) {
+				addPoint(sink, first ? Path.SType.MOVE : Path.SType.LINE, loop, i, z);
+				first = false;
+			}
+		}
+		addPoint(sink, Path.SType.LINE, loop, 0, z);
+	}
+
+	private void addPoint(SegmentSink sink, Path.SType type, int[] loop, int i, double z) {
+		sink.addSegment(type,
+				(loop[1+2*i] - 0.5) * cx,
+				-(loop[2+2*i] - 0.5) * cy,
+				z);
+	}
+
+	/**
+	 * Douglas-Peucker simplification of the loop points between <i>from</i> and <i>to</i> (exclusive).
+	 * Index <i>to</i> may be equal to the loop length, in which case it refers to the first point.
+	 */
+	private void simplify(int[] loop, boolean[] keep, int from, int to) {
+		final int n = loop[0];
+		
+		// Explicit stack of (from, to) ranges. Pixel outlines can be long enough to
+		// overflow the call stack with a recursive implementation.
+		int[] stack = new int[32];
+		int sp = 0;
+		stack[sp++] = from;
+		stack[sp++] = to;
+		
+		while(sp>0) {
+			to = stack[--sp];
+			from = stack[--sp];
+			if(to-from < 2)
+				continue;
+
+			final double x0 = (loop[1+2*from] - 0.5) * cx, y0 = (loop[2+2*from] - 0.5) * cy;
+			final double x1 = (loop[1+2*(to%n)] - 0.5) * cx, y1 = (loop[2+2*(to%n)] - 0.5) * cy;
+			final double lx = x1-x0, ly = y1-y0;
+			final double len = Math.sqrt(lx*lx + ly*ly);
+
+			int far = -1;
+			double fard = tolerance;
+			for(int i=from+1;i<to;++i) {
+				double px = (loop[1+2*i] - 0.5) * cx - x0, py = (loop[2+2*i] - 0.5) * cy - y0;
+				double d;
+				if(len==0)
+					d = Math.sqrt(px*px + py*py);
+				else
+					d = Math.abs(px*ly - py*lx) / len;
+				if(d>fard) {
+					fard = d;
+					far = i;
+				}
+			}
+
+			if(far>=0) {
+				keep[far] = true;
+				if(sp+4 > stack.length) {
+					int[] ns = new int[stack.length*2];
+					System.arraycopy(stack, 0, ns, 0, sp);
+					stack = ns;
+				}
+				stack[sp++] = from;
+				stack[sp++] = far;
+				stack[sp++] = far;
+				stack[sp++] = to;
+			}
+		}
+	}
+}
@@ -7,11 +7,17 @@ import org.luolamies.jgcgen.RenderException;
 import org.luolamies.jgcgen.path.Axis;
 import org.luolamies.jgcgen.path.Coordinate;
 import org.luolamies.jgcgen.path.NumericCoordinate;
+import org.luolamies.jgcgen.path.PackedPath;
 import org.luolamies.jgcgen.path.Path;
-import org.luolamies.jgcgen.path.PathGenerator;
+import org.luolamies.jgcgen.path.ReducingSink;
+import org.luolamies.jgcgen.path.SegmentSink;
+import org.luolamies.jgcgen.path.StreamingPathGenerator;
+import org.luolamies.jgcgen.shapes.Shapes;
 import org.luolamies.jgcgen.tools.Tool;
 
-public class Image implements PathGenerator {
+public class Image implements StreamingPathGenerator {
+	private final Shapes shapes;
+	
 	// Configuration
 	private NumericCoordinate topleft = new NumericCoordinate(0.0, 0.0, 0.0);
 	private String filename;
@@ -19,6 +25,7 @@ public class Image implements PathGenerator {
 	private boolean invert, normalize, flip, mirror, rotate;
 	private double xsize=-1, ysize=-1, zscale=1.0;
 	private String stepover="";
+	private double reduce;
 	private Tool tool;
 	
 	// Computed values
@@ -27,6 +34,10 @@ public class Image implements PathGenerator {
 	
 	private Surface imgcache;
 
+	public Image(Shapes shapes) {
+		this.shapes = shapes;
+	}
+	
 	/**
 	 * Get the configured tool
 	 * @return tool
@@ -215,6 +226,20 @@ public class Image implements PathGenerator {
 		return this;
 	}
 	
+	/**
+	 * Simplify the generated toolpath. Linear moves are merged as long as
+	 * no point is dropped farther than the tolerance from the path.
+	 * See {@link Path#reduce(double)}.
+	 * @param tolerance maximum deviation. Zero disables simplification.
+	 * @return
+	 */
+	public Image reduce(double tolerance) {
+		if(tolerance<0)
+			throw new IllegalArgumentException("Tolerance must be zero or greater!");
+		this.reduce = tolerance;
+		return this;
+	}
+	
 	/**
 	 * Set carving strategy
 	 * @param strategy
@@ -249,6 +274,22 @@ public class Image implements PathGenerator {
 		return dstepover;
 	}
 
+	/**
+	 * Get the number of worker threads to use for path generation.
+	 * This is set with the variable <var>$threads</var>. Zero means one
+	 * thread per available processor.
+	 * @return thread count
+	 */
+	protected final int getThreads() {
+		Object threads = shapes.ctx.get("threads");
+		int t = 0;
+		if(threads!=null)
+			t = Integer.parseInt(threads.toString().trim());
+		if(t<=0)
+			t = Runtime.getRuntime().availableProcessors();
+		return t;
+	}
+	
 	/**
 	 * Get the image surface
 	 * @return image surface
@@ -283,6 +324,26 @@ public class Image implements PathGenerator {
 	}
 	
 	public Path toPath() {
+		PackedPath path = new PackedPath();
+		generate(getStrategy(), path);
+		return path.offset(topleft);
+	}
+	
+	public void generate(final SegmentSink sink) {
+		final ImageStrategy is = getStrategy();
+		final double ox = topleft.getValue(Axis.X), oy = topleft.getValue(Axis.Y), oz = topleft.getValue(Axis.Z);
+		generate(is, new SegmentSink() {
+			public void addSegment(Path.SType type, double x, double y, double z) {
+				sink.addSegment(type, x + ox, y + oy, z + oz);
+			}
+		});
+	}
+	
+	/**
+	 * Select the carving strategy and prepare the surface
+	 * @return strategy
+	 */
+	private ImageStrategy getStrategy() {
 		if(tool==null)
 			throw new RenderException("Tool not set!");
 		
@@ -309,6 +370,11 @@ public class Image implements PathGenerator {
 		// Make sure the image is loaded
 		getSurface();
 		
+		// Tool surface cache size (in megabytes)
+		Object cachesize = shapes.ctx.get("surfacecache");
+		if(cachesize!=null)
+			ToolSurface.setBudget((long)(Double.parseDouble(cachesize.toString()) * 1024 * 1024));
+		
 		// Calculate the gap between rows or columns.
 		if(stepover.length()==0) {
 			// Zero stepover means the stategy will use some default value
@@ -321,12 +387,23 @@ public class Image implements PathGenerator {
 				dstepover = Double.parseDouble(stepover);
 		}
 		
-		// Generate toolpath
+		return is;
+	}
+	
+	/**
+	 * Generate the toolpath, relative to the origin
+	 * @param is carving strategy
+	 * @param sink
+	 */
+	private void generate(ImageStrategy is, SegmentSink sink) {
 		long time = System.currentTimeMillis();
-		Path path = is.toPath(imgcache);
+		if(reduce>0) {
+			ReducingSink rs = new ReducingSink(sink, reduce);
+			is.generate(imgcache, rs);
+			rs.finish();
+		} else
+			is.generate(imgcache, sink);
 		time = System.currentTimeMillis() - time;
 		JGCGenerator.getLogger().status(is.getClass().getSimpleName() + " finished. Took " + String.format("%.2f", time/1000.0) + " seconds.");
-		
-		return path;//.reduce();
 	}
 }
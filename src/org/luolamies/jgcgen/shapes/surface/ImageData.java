@@ -5,11 +5,13 @@ import java.awt.image.BufferedImage;
 import java.awt.image.ColorConvertOp;
 import java.awt.image.Raster;
 import java.io.IOException;
+import java.util.Arrays;
 
 import javax.imageio.ImageIO;
 
 import org.luolamies.jgcgen.Files;
 import org.luolamies.jgcgen.JGCGenerator;
+import org.luolamies.jgcgen.tools.Tool;
 
 /**
  * A heightmap image
@@ -21,6 +23,10 @@ final class ImageData extends Surface {
 	
 	private double xyscale, zscale;
 	
+	/** Minimum and maximum pyramids. Level 0 is the image itself and each
+	 * level above it is half the size of the one below. */
+	private float[][] minpyramid, maxpyramid;
+	
 	ImageData(String filename, boolean normalize, boolean invert, boolean flip, boolean mirror, boolean rotate) throws IOException {
 		BufferedImage img = ImageIO.read(Files.get(filename));
 		if(rotate) {
@@ -87,8 +93,12 @@ final class ImageData extends Surface {
 	}
 	
 	public void setTargetSize(double w, double h, double d) {
-		xyscale = Math.min(w / (width-1), h / (height-1));
+		final double scale = Math.min(w / (width-1), h / (height-1));
+		if(scale==xyscale && d==zscale)
+			return;
+		xyscale = scale;
 		zscale = d;
+		changed();
 		JGCGenerator.getLogger().status("ImageData " + w + "x" + h + ", xyscale=" + xyscale + ", zscale=" + zscale);
 	}
 	
@@ -142,4 +152,170 @@ final class ImageData extends Surface {
 		// Nearest neighbor interpolation (this is only good for testing really)
 		//return zscale * data[((int)Math.round(sy) * width + (int)Math.round(sx))];
 	}
+	
+	/**
+	 * Tool depth lookup that samples the pixel data directly.
+	 * <p>This visits exactly the same samples as {@link Surface#getDepthAt(double, double, Tool)}
+	 * and gives bit for bit the same result. Every row of the footprint has the same
+	 * X coordinates, so the column terms (pixel index, interpolation weight and squared
+	 * distance) are computed once per call instead of once per sample.
+	 */
+	@Override
+	public double getDepthAt(double cx, double cy, Tool tool) {
+		final double rad = tool.getRadius();
+		final double res = getSampleStep(tool);
+		final double minx = cx-rad, miny = cy-rad;
+		final double maxx = cx+rad, maxy = cy+rad;
+		final double radrad = rad*rad;
+		
+		final Columns c = columns.get();
+		int n=0;
+		for(double x=minx;x<maxx;x+=res,++n) {
+			if(n==c.ix.length)
+				c.grow();
+			final double sx = x / xyscale;
+			int ix = (int)Math.floor(sx);
+			c.fx[n] = sx-ix;
+			if(ix<0)
+				ix = 0;
+			else if(ix>width-2)
+				ix = width-2;
+			c.ix[n] = ix;
+			c.dxx[n] = (x-cx)*(x-cx);
+		}
+		
+		final int[] cix = c.ix;
+		final double[] cfx = c.fx, cdxx = c.dxx;
+		final float[] data = this.data;
+		final int width = this.width;
+		
+		double maxz = -zscale;
+		for(double y=miny;y<maxy;y+=res) {
+			final double dyy = (y-cy)*(y-cy);
+			final double sy = -y / xyscale;
+			int iy = (int)Math.floor(sy);
+			final double fy = sy-iy;
+			if(iy<0)
+				iy = 0;
+			else if(iy>height-2)
+				iy = height-2;
+			final int row = width * iy;
+			final double fy1 = 1.0-fy;
+			
+			for(int k=0;k<n;++k) {
+				final double rr = cdxx[k] + dyy;
+				if(rr <= radrad) {
+					final int yy = row + cix[k];
+					final double fx = cfx[k];
+					final double fx1 = 1.0-fx;
+					final double v = zscale * (
+							data[yy] * (fx1 * fy1) +
+							data[yy + 1] * (fx * fy1) +
+							data[yy + width] * (fx1 * fy) +
+							data[yy + width + 1] * (fx*fy)
+							) - tool.getProfile(rr);
+					if(v>maxz)
+						maxz = v;
+				}
+			}
+		}
+		return maxz;
+	}
+	
+	/** Per thread column terms for the tool depth lookup */
+	static private final ThreadLocal<Columns> columns = new ThreadLocal<Columns>() {
+		@Override
+		protected Columns initialValue() {
+			return new Columns();
+		}
+	};
+	
+	static private final class Columns {
+		int[] ix = new int[64];
+		double[] fx = new double[64], dxx = new double[64];
+		
+		void grow() {
+			ix = Arrays.copyOf(ix, ix.length*2);
+			fx = Arrays.copyOf(fx, fx.length*2);
+			dxx = Arrays.copyOf(dxx, dxx.length*2);
+		}
+	}
+	
+	/**
+	 * Build the min/max pyramids
+	 */
+	private synchronized void buildPyramids() {
+		if(maxpyramid!=null)
+			return;
+		
+		int levels = 1;
+		for(int w=width,h=height;w>1 || h>1;w=(w+1)>>1,h=(h+1)>>1)
+			++levels;
+		
+		final float[][] min = new float[levels][];
+		final float[][] max = new float[levels][];
+		min[0] = data;
+		max[0] = data;
+		int w = width, h = height;
+		for(int l=1;l<levels;++l) {
+			final int pw = (w+1)>>1, ph = (h+1)>>1;
+			final float[] lmin = new float[pw*ph], lmax = new float[pw*ph];
+			for(int y=0;y<ph;++y) {
+				final int y0 = 2*y, y1 = Math.min(2*y+1, h-1);
+				for(int x=0;x<pw;++x) {
+					final int x0 = 2*x, x1 = Math.min(2*x+1, w-1);
+					final float[] bmin = min[l-1], bmax = max[l-1];
+					lmin[y*pw+x] = Math.min(Math.min(bmin[y0*w+x0], bmin[y0*w+x1]), Math.min(bmin[y1*w+x0], bmin[y1*w+x1]));
+					lmax[y*pw+x] = Math.max(Math.max(bmax[y0*w+x0], bmax[y0*w+x1]), Math.max(bmax[y1*w+x0], bmax[y1*w+x1]));
+				}
+			}
+			min[l] = lmin;
+			max[l] = lmax;
+			w = pw;
+			h = ph;
+		}
+		minpyramid = min;
+		maxpyramid = max;
+	}
+	
+	/**
+	 * Depth bounds from the min/max pyramids. The pixels that can contribute to the
+	 * interpolated values inside the rectangle are covered by at most 2x2 cells
+	 * on a suitable pyramid level.
+	 */
+	@Override
+	boolean getDepthBounds(double x0, double y0, double x1, double y1, double[] bounds) {
+		if(maxpyramid==null)
+			buildPyramids();
+		
+		// Pixel ranges, clamped like in getDepthAt
+		int c0 = (int)Math.floor(x0 / xyscale), c1 = (int)Math.floor(x1 / xyscale);
+		int r0 = (int)Math.floor(-y1 / xyscale), r1 = (int)Math.floor(-y0 / xyscale);
+		c0 = Math.max(0, Math.min(c0, width-2));
+		c1 = Math.max(0, Math.min(c1, width-2)) + 1;
+		r0 = Math.max(0, Math.min(r0, height-2));
+		r1 = Math.max(0, Math.min(r1, height-2)) + 1;
+		
+		int l = 0, w = width;
+		while((c1>>l) - (c0>>l) > 1 || (r1>>l) - (r0>>l) > 1) {
+			++l;
+			w = (w+1)>>1;
+		}
+		c0 >>= l;
+		c1 >>= l;
+		r0 >>= l;
+		r1 >>= l;
+		
+		final float[] lmin = minpyramid[l], lmax = maxpyramid[l];
+		float min = Float.MAX_VALUE, max = -Float.MAX_VALUE;
+		for(int y=r0;y<=r1;++y) {
+			for(int x=c0;x<=c1;++x) {
+				min = Math.min(min, lmin[y*w+x]);
+				max = Math.max(max, lmax[y*w+x]);
+			}
+		}
+		bounds[0] = Math.min(zscale * min, zscale * max);
+		bounds[1] = Math.max(zscale * min, zscale * max);
+		return true;
+	}
 }
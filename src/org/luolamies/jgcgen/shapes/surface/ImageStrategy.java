@@ -1,7 +1,12 @@
 package org.luolamies.jgcgen.shapes.surface;
 
-import org.luolamies.jgcgen.path.Path;
+import org.luolamies.jgcgen.path.SegmentSink;
 
 interface ImageStrategy {
-	Path toPath(Surface img);
+	/**
+	 * Generate the toolpath. The coordinates are relative to the image origin.
+	 * @param img the surface to carve
+	 * @param sink the generated segments are pushed here in order
+	 */
+	void generate(Surface img, SegmentSink sink);
 }
@@ -1,11 +1,21 @@
 package org.luolamies.jgcgen.shapes.surface;
 
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import org.luolamies.jgcgen.JGCGenerator;
 import org.luolamies.jgcgen.Logger;
-import org.luolamies.jgcgen.path.Path;
+import org.luolamies.jgcgen.RenderException;
+import org.luolamies.jgcgen.path.PackedPath;
+import org.luolamies.jgcgen.path.SegmentSink;
 
 /**
  * Trace waterlevel outlines
@@ -15,26 +25,29 @@ class OutlineStrategy implements ImageStrategy {
 	private final Image image;
 	private final double minpass, maxpass;
 	private final double resolution;
+	private final double tolerance;
 	
 	public OutlineStrategy(Image image) {
 		this.image = image;
 		this.minpass = 0;
 		this.maxpass = 0;
 		this.resolution = 0;
+		this.tolerance = 0;
 	}
 	
 	/**
 	 * Outline strategy with parameters.
-	 * Parameters are: <code>pass depth</code> <code>[resolution]</code>.
+	 * Parameters are: <code>pass depth</code> <code>[resolution]</code> <code>[tolerance]</code>.
 	 * Pass depth can be a range: e.g. 0.05-2. In this case, 0.05 is the minimum pass depth and 2 is the largest pass that will be taken.
+	 * Tolerance is the maximum distance the simplified outline may deviate from the traced pixel edges.
 	 * @param image
 	 * @param params
 	 */
 	public OutlineStrategy(Image image, String params) {
 		this.image = image;
 		String[] param = params.split(" ");
-		if(param.length!=1 && param.length!=2)
-			throw new IllegalArgumentException("RoughStrategy takes 0, 1 or 2 parameters!");
+		if(param.length<1 || param.length>3)
+			throw new IllegalArgumentException("OutlineStrategy takes 0, 1, 2 or 3 parameters!");
 
 		Matcher passdepth = passpattern.matcher(param[0]);
 		if(passdepth.matches()) {
@@ -50,32 +63,101 @@ class OutlineStrategy implements ImageStrategy {
 		} else
 			throw new IllegalArgumentException("Invalid pass depth!");
 		
-		if(param.length==2) {
+		if(param.length>=2) {
 			resolution = Double.parseDouble(param[1]);
 			if(resolution<0)
 				throw new IllegalArgumentException("Resolution must be positive!");
 		} else
 			resolution = 0;
+		
+		if(param.length==3) {
+			tolerance = Double.parseDouble(param[2]);
+			if(tolerance<0)
+				throw new IllegalArgumentException("Tolerance must be positive!");
+		} else
+			tolerance = 0;
 	}
 	
 	static private final Pattern passpattern = Pattern.compile("(\\d+(?:\\.\\d+)?)(?:\\s*-\\s*(\\d+(?:\\.\\d+)?))?");
 	
-	public Path toPath(Surface img) {
+	public void generate(Surface img, SegmentSink sink) {
 		double res = resolution;
 		if(res==0)
 			res = img.getResolution();
 		
+		final Logger log = JGCGenerator.getLogger();
+		
+		final Plane plane = new Plane(img, image.getTool(), image.getWidth(), image.getHeight(), res);
+		
+		// Decide which levels to trace first. The identical plane
+		// skipping is the only thing that depends on the previous level
+		// and it needs only the depth order, not the bitmaps.
+		final List<Double> levels = planLevels(plane, img, res);
+		
+		final int threads = image.getThreads();
+		
+		if(threads<2 || levels.size()<2) {
+			for(int l=0;l<levels.size();++l) {
+				log.progress("OutlineStrategy", l, levels.size());
+				final double z = levels.get(l);
+				plane.trace(plane.getBitmap(z), z, tolerance, sink);
+			}
+		} else {
+			// Trace the levels in parallel and join them in the original order.
+			// The bitmaps are made in order, since each one is derived from the previous,
+			// and only a few levels are kept in flight to bound memory use.
+			ExecutorService pool = Executors.newFixedThreadPool(threads);
+			try {
+				LinkedList<Future<PackedPath>> pending = new LinkedList<Future<PackedPath>>();
+				int done = 0;
+				for(final double z : levels) {
+					final long[] bitmap = plane.getBitmap(z);
+					pending.add(pool.submit(new Callable<PackedPath>() {
+						public PackedPath call() {
+							PackedPath path = new PackedPath();
+							plane.trace(bitmap, z, tolerance, path);
+							return path;
+						}
+					}));
+					
+					if(pending.size() > threads * 2) {
+						log.progress("OutlineStrategy", done++, levels.size());
+						pending.removeFirst().get().copyTo(sink);
+					}
+				}
+				
+				while(!pending.isEmpty()) {
+					log.progress("OutlineStrategy", done++, levels.size());
+					pending.removeFirst().get().copyTo(sink);
+				}
+			} catch(InterruptedException e) {
+				throw new RenderException("Interrupted while tracing outlines", e);
+			} catch(ExecutionException e) {
+				if(e.getCause() instanceof RuntimeException)
+					throw (RuntimeException)e.getCause();
+				throw new RenderException("Error while tracing outlines", e.getCause());
+			} finally {
+				pool.shutdownNow();
+			}
+		}
+	}
+	
+	/**
+	 * Find the Z levels whose outlines should be traced.
+	 * @param plane
+	 * @param img
+	 * @param res
+	 * @return levels from top to bottom
+	 */
+	private List<Double> planLevels(Plane plane, Surface img, double res) {
 		double mind = minpass, maxd = maxpass;
 		if(mind==0)
 			mind = res;
 		if(maxd==0)
 			maxd = image.getTool().getRadius();
 		
-		Path path = new Path();
-		
 		final Logger log = JGCGenerator.getLogger();
-		
-		Plane plane = new Plane(img, image.getTool(), image.getWidth(), image.getHeight(), res);
+		List<Double> levels = new ArrayList<Double>();
 		
 		final double minz = -img.getMaxZ();
 		double z=0;
@@ -84,7 +166,7 @@ class OutlineStrategy implements ImageStrategy {
 			z -= mind;
 			if(z<minz)
 				z = minz;
-			log.progress("OutlineStrategy", -z, -minz);
+			log.progress("OutlineStrategy: planning", -z, -minz);
 			if(plane.init(z)) {
 				// Encountered last plane?
 				if(skipped>0)
@@ -109,9 +191,9 @@ class OutlineStrategy implements ImageStrategy {
 			
 			skipped = 0;
 			
-			path.addPath(plane.trace());
+			levels.add(plane.getLevel());
 		}
 		
-		return path;
+		return levels;
 	}
 }
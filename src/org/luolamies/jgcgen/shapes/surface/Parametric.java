@@ -1,5 +1,8 @@
 package org.luolamies.jgcgen.shapes.surface;
 
+import java.util.HashMap;
+import java.util.Map;
+
 import org.apache.velocity.exception.ParseErrorException;
 import org.luolamies.jgcgen.RenderException;
 import org.luolamies.jgcgen.shapes.Shapes;
@@ -21,6 +24,24 @@ public class Parametric extends Surface {
 	private String z0, z1;
 	private double xoff, yoff;
 	private Node jepnode;
+	private CompiledExpression compiled;
+	
+	private boolean presample;
+	private double width, height, depth;
+	/** Values of the template variables used by the function */
+	private Map<String, Object> vars;
+	/** The presampled grid. Built when first needed. */
+	private volatile Grid grid;
+	
+	static private final class Grid {
+		final double[] samples;
+		final int sw, sh;
+		Grid(double[] samples, int sw, int sh) {
+			this.samples = samples;
+			this.sw = sw;
+			this.sh = sh;
+		}
+	}
 	
 	public Parametric(Shapes shapes) {
 		this.shapes = shapes;
@@ -43,6 +64,10 @@ public class Parametric extends Surface {
 		jepnode = jep.parseExpression(func);
 		if(jep.hasError())
 			throw new ParseErrorException(jep.getErrorInfo());
+		// The expression is compiled when the variables are known
+		compiled = null;
+		grid = null;
+		changed();
 
 		return this;
 	}
@@ -67,6 +92,23 @@ public class Parametric extends Surface {
 		if(res<=0)
 			throw new IllegalArgumentException("Resolution must be greater than zero!");
 		this.resolution = res;
+		grid = null;
+		changed();
+		return this;
+	}
+	
+	/**
+	 * Enable or disable presampling. When enabled, the function is evaluated once
+	 * on a grid at the surface resolution and values between the grid points
+	 * are interpolated, like with images. This makes tool depth lookups much
+	 * faster, at the cost of memory and some accuracy between the samples.
+	 * @param enable
+	 * @return this
+	 */
+	public Parametric presample(boolean enable) {
+		this.presample = enable;
+		grid = null;
+		changed();
 		return this;
 	}
 
@@ -75,6 +117,27 @@ public class Parametric extends Surface {
 	}
 
 	public double getDepthAt(double x, double y) {
+		if(presample)
+			return getSampledDepthAt(x, y);
+		return evaluate(x, y);
+	}
+	
+	/**
+	 * Evaluate the function at the given point
+	 */
+	private double evaluate(double x, double y) {
+		final CompiledExpression c = compiled;
+		if(c!=null) {
+			final double v = c.eval(x+xoff, y+yoff);
+			// NaN may mean the result is not a real number. Let JEP handle that.
+			if(!Double.isNaN(v))
+				return -(v - zmin) * zscale;
+		}
+		return evaluateJep(x, y);
+	}
+	
+	private synchronized double evaluateJep(double x, double y) {
+		// JEP evaluator is not thread safe
 		jep.addVariable("x", x+xoff);
 		jep.addVariable("y", y+yoff);
 		try {
@@ -83,6 +146,59 @@ public class Parametric extends Surface {
 			throw new ParseErrorException(e.getMessage());
 		}
 	}
+	
+	/**
+	 * Get the depth by interpolating between the presampled points
+	 */
+	private double getSampledDepthAt(double x, double y) {
+		Grid g = grid;
+		if(g==null)
+			g = getGrid();
+		final double[] samples = g.samples;
+		final int sw = g.sw, sh = g.sh;
+		final double sx = x / resolution;
+		final double sy = -y / resolution;
+		int ix = (int)Math.floor(sx);
+		int iy = (int)Math.floor(sy);
+		final double fx = sx-ix;
+		final double fy = sy-iy;
+		
+		if(ix<0)
+			ix = 0;
+		else if(ix>sw-2)
+			ix = sw-2;
+		if(iy<0)
+			iy = 0;
+		else if(iy>sh-2)
+			iy = sh-2;
+		
+		final int yy = sw * iy + ix;
+		final double fx1 = 1.0-fx;
+		final double fy1 = 1.0-fy;
+		return samples[yy] * (fx1 * fy1) +
+			samples[yy + 1] * (fx * fy1) +
+			samples[yy + sw] * (fx1 * fy) +
+			samples[yy + sw + 1] * (fx*fy);
+	}
+	
+	/**
+	 * Get the presampled grid, building it if needed.
+	 * Only building takes the lock. Lookups read the volatile field directly.
+	 */
+	private synchronized Grid getGrid() {
+		Grid g = grid;
+		if(g==null) {
+			final int w = Math.max(2, (int)Math.ceil(width / resolution) + 1);
+			final int h = Math.max(2, (int)Math.ceil(height / resolution) + 1);
+			final double[] s = new double[w * h];
+			for(int i=0,y=0;y<h;++y)
+				for(int x=0;x<w;++x,++i)
+					s[i] = evaluate(x * resolution, -y * resolution);
+			g = new Grid(s, w, h);
+			grid = g;
+		}
+		return g;
+	}
 
 	public double getMaxZ() {
 		return maxz;
@@ -93,9 +209,6 @@ public class Parametric extends Surface {
 	}
 
 	public void setTargetSize(double width, double height, double depth) {
-		xoff = -width / 2;
-		yoff = height / 2;
-
 		// Set dimension constants
 		jep.removeVariable("w"); jep.addConstant("w", width);
 		jep.removeVariable("h"); jep.addConstant("h", height);
@@ -106,6 +219,7 @@ public class Parametric extends Surface {
 		Node znode1 = jep.parseExpression(z1);
 		
 		// Set velocity variables
+		Map<String, Object> vars = new HashMap<String, Object>();
 		SymbolTable symbols = jep.getSymbolTable();
 		for(Object key : symbols.keySet()) {
 			if(!"x".equals(key) && !"y".equals(key)) {
@@ -115,10 +229,16 @@ public class Parametric extends Surface {
 					if(val==null || !(val instanceof Number))
 						throw new ParseErrorException("Variable \"" + var.getName() + "\" is not a number!");
 					var.setValue(val);
+					vars.put(var.getName(), val);
 				}
 			}
 		}
 		
+		// If nothing changed, the compiled expression, the samples and
+		// the cached tool surfaces can all be reused.
+		if(compiled!=null && width==this.width && height==this.height && depth==this.depth && vars.equals(this.vars))
+			return;
+		
 		// Calculate Z scaling		
 		double z1;
 		try {
@@ -131,8 +251,19 @@ public class Parametric extends Surface {
 		if(z1==this.zmin)
 			throw new RenderException("Range cannot be zero!");
 		
+		xoff = -width / 2;
+		yoff = height / 2;
+		this.width = width;
+		this.height = height;
+		this.depth = depth;
+		this.vars = vars;
 		this.maxz = depth;
 		this.zscale = depth / (z1 - zmin);
+		
+		// All variables are known now
+		compiled = CompiledExpression.compile(jep, jepnode);
+		grid = null;
+		changed();
 	}
 
 }
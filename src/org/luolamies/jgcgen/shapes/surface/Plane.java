@@ -1,39 +1,32 @@
 package org.luolamies.jgcgen.shapes.surface;
 
-import java.io.BufferedInputStream;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
-import java.io.OutputStreamWriter;
 import java.io.PrintStream;
-import java.io.StringReader;
-import java.nio.ByteBuffer;
 import java.util.Arrays;
 
-import org.luolamies.jgcgen.RenderException;
-import org.luolamies.jgcgen.importer.svg.SvgImporter;
-import org.luolamies.jgcgen.path.Axis;
-import org.luolamies.jgcgen.path.NumericCoordinate;
-import org.luolamies.jgcgen.path.Path;
+import org.luolamies.jgcgen.path.SegmentSink;
 import org.luolamies.jgcgen.tools.Tool;
-import org.xml.sax.InputSource;
-import org.xml.sax.SAXException;
 
 /**
  * A 2D bitmap of possible tool positions on an image plane
  *
  */
 class Plane {
-	private final double[] depthmap;
 	private final double resolution;
 	private final double width, height;
 	private final int bmw, bmh;
 	private double curz, prevz;
 	
-	private boolean[] bitmap, prevbitmap;
+	/** Defined pixel depths in ascending order */
+	private final double[] depths;
+	/** Pixel indices sorted by depth. Pixels order[k..depths.length) are set when k depths are at or below the level */
+	private final int[] order;
+	/** Current and previous index into the order array */
+	private int curk, prevk;
+	
+	/** Bitmap packed 64 pixels per word, row by row */
+	private final long[] bitmap;
+	private boolean hasprev;
 	
 	public static class Point {
 		public Point(int x, int y) {
@@ -53,16 +46,71 @@ class Plane {
 		
 		if(bmw==0 || bmh==0)
 			throw new IllegalArgumentException("Image would be one dimensional!");
-		this.depthmap = new double[bmw * bmh];
+		final double[] depthmap = new double[bmw * bmh];
 		
 		int i=-1;
 		double cy = (1.0 / bmh * height);
 		double cx = (1.0 / bmw * width);
+		final ToolSurface ts = ToolSurface.get(surface, tool, cx, cy);
 		for(int y=0;y<bmh;++y) {
-			double yd = -y * cy;
 			for(int x=0;x<bmw;++x)
-				depthmap[++i] = surface.getDepthAt(x * cx, yd, tool);
+				depthmap[++i] = ts.getCell(x, y);
+		}
+		
+		// Sort the depths. Undefined (NaN) pixels are never set, so they are left out.
+		int m=0;
+		double[] sorted = new double[depthmap.length];
+		for(double d : depthmap)
+			if(!Double.isNaN(d))
+				sorted[m++] = d;
+		Arrays.sort(sorted, 0, m);
+		this.depths = m==sorted.length ? sorted : Arrays.copyOf(sorted, m);
+		
+		// Sort the pixels by depth. Pixels with the same depth form a group
+		// starting at the index of the first occurrence of that depth.
+		this.order = new int[m];
+		final int[] fill = new int[m];
+		for(i=0;i<depthmap.length;++i) {
+			final double d = depthmap[i];
+			if(!Double.isNaN(d)) {
+				final int g = below(d, false);
+				order[g + fill[g]++] = i;
+			}
+		}
+		
+		this.bitmap = new long[(depthmap.length + 63) >> 6];
+		this.curk = m;
+	}
+	
+	/**
+	 * Count the depths below the given level
+	 * @param level
+	 * @param inclusive count also depths equal to the level
+	 * @return number of depths
+	 */
+	private int below(double level, boolean inclusive) {
+		int lo=0, hi=depths.length;
+		while(lo<hi) {
+			final int mid = (lo+hi) >>> 1;
+			if(depths[mid] < level || (inclusive && depths[mid]==level))
+				lo = mid+1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+	
+	/**
+	 * Move the bitmap to a new position in the depth order. Only the pixels
+	 * whose depth is between the old and the new level are flipped.
+	 * @param k
+	 */
+	private void moveTo(int k) {
+		for(int j=Math.min(k, curk), end=Math.max(k, curk);j<end;++j) {
+			final int i = order[j];
+			bitmap[i>>6] ^= 1L<<i;
 		}
+		curk = k;
 	}
 	
 	/**
@@ -73,61 +121,95 @@ class Plane {
 	 * @return true is plane is all ones.
 	 */
 	public boolean init(double level) {
-		boolean solid=true;
-		prevbitmap = bitmap;
+		prevk = curk;
 		prevz = curz;
-		bitmap = new boolean[bmw * bmh];
-		for(int i=0;i<depthmap.length;++i) {
-			bitmap[i] = depthmap[i] > level;
-			solid &= bitmap[i];
-		}
+		hasprev = true;
+		moveTo(below(level, true));
 		curz = level;
-		return solid;
+		return curk==0 && depths.length==bmw*bmh;
 	}
 	
 	/**
 	 * Is the newly initialized plane identical to the previous plane?
 	 * This is used for optimization.
+	 * <p>Since the set pixels of a level always include those of the levels
+	 * above it, the planes are identical if the same number of pixels is set.
 	 * @return true if last call to init() produced an identical bitmap as the previous one.
 	 */
 	public boolean isIdentical() {
-		return Arrays.equals(bitmap, prevbitmap);
+		return hasprev && prevk==curk;
 	}
 	
 	/**
 	 * Restore the plane before the last init()
 	 */
 	public void restorePrevious() {
-		bitmap = prevbitmap;
+		moveTo(prevk);
 		curz = prevz;
 	}
 	
-	public Path trace() {
-		try {
-			String cmdline = "potrace --svg -W " + width + "mm -H " + height + "mm";
-			Process potrace = Runtime.getRuntime().exec(cmdline);
-			
-			//System.err.println("Tracing layer... (" + cmdline + ")");
-			printPbm(potrace.getOutputStream());
-			//System.err.println("Layer printed...");
-			
-			SvgImporter svg = new SvgImporter(new InputSource(new BufferedInputStream(potrace.getInputStream())));
-			// Default resolution of potrace seems to be 72 DPI
-			svg.scale(1.0 / (72 / 25.5));
-			
-			//System.err.println("done.");
-			//svg.dump(System.err);
-			
-			Path path = svg.getPath().all().toPath();
-			for(Path.Segment s : path.getSegments())
-				((NumericCoordinate)s.point).set(Axis.Z, curz);
-			
-			return path;
-		} catch (IOException e) {
-			throw new RenderException("Error while writing output to potrace!", e);
-		} catch(SAXException e) {
-			throw new RenderException("Error while parsing potrace output!", e);
-		}
+	/**
+	 * Get a copy of the bitmap at the given level.
+	 * <p>The current plane is moved to the level. Moving from one level to
+	 * the next only flips the pixels between them, so walking through
+	 * the levels in order is cheap.
+	 * @param level
+	 * @return packed bitmap
+	 */
+	public long[] getBitmap(double level) {
+		moveTo(below(level, true));
+		curz = level;
+		hasprev = false;
+		return bitmap.clone();
+	}
+	
+	/**
+	 * Get the Z level of the current plane
+	 * @return level
+	 */
+	public double getLevel() {
+		return curz;
+	}
+	
+	/**
+	 * Trace the outlines of a bitmap returned by {@link #getBitmap(double)}.
+	 * <p>This does not touch the current plane, so different levels can be
+	 * traced concurrently.
+	 * @param bitmap the packed bitmap
+	 * @param level the Z level
+	 * @param tolerance outline simplification tolerance
+	 * @param sink the outline path at the Z level is pushed here
+	 */
+	public void trace(long[] bitmap, double level, double tolerance, SegmentSink sink) {
+		new ContourTracer(this, bitmap, tolerance).trace(level, sink);
+	}
+	
+	/**
+	 * @return bitmap width in pixels
+	 */
+	int getBitmapWidth() {
+		return bmw;
+	}
+	
+	/**
+	 * @return bitmap height in pixels
+	 */
+	int getBitmapHeight() {
+		return bmh;
+	}
+	
+	/**
+	 * @return the width of a single pixel
+	 */
+	double getPixelWidth() {
+		return width / bmw;
+	}
+	
+	/**
+	 * @return the height of a single pixel
+	 */
+	double getPixelHeight() {
+		return height / bmh;
 	}
 	
 	/**
@@ -138,25 +220,9 @@ class Plane {
 	public void dump(PrintStream out) {
 		for(int i=0,y=0;y<bmh;++y) {
 			for(int x=0;x<bmw;++x,++i) {
-				out.write(bitmap[i] ? 'X' : ' ');
-			}
-			out.write('\n');
-		}
-	}
-	
-	private void printPbm(OutputStream output) throws IOException {
-		OutputStreamWriter out = new OutputStreamWriter(output);
-		
-		out.write("P1\n");
-		out.write(bmw + " " + bmh + "\n");
-		for(int i=0,y=0;y<bmh;++y) {
-			for(int x=0;x<bmw;++x,++i) {
-				out.write(bitmap[i] ? '1' : '0');
-				out.write(' ');
+				out.write((bitmap[i>>6] & (1L<<i))!=0 ? 'X' : ' ');
 			}
 			out.write('\n');
 		}
-		out.close();
 	}
-	
 }
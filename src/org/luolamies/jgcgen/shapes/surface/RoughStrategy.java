@@ -6,9 +6,10 @@ import java.util.List;
 
 import org.luolamies.jgcgen.JGCGenerator;
 import org.luolamies.jgcgen.Logger;
-import org.luolamies.jgcgen.path.Coordinate;
+import org.luolamies.jgcgen.path.Axis;
 import org.luolamies.jgcgen.path.NumericCoordinate;
 import org.luolamies.jgcgen.path.Path;
+import org.luolamies.jgcgen.path.SegmentSink;
 
 import static org.luolamies.jgcgen.shapes.surface.SurfaceUtils.incr;
 import static org.luolamies.jgcgen.shapes.surface.SurfaceUtils.safeline;
@@ -83,7 +84,7 @@ public class RoughStrategy implements ImageStrategy {
 		}		
 	}
 	
-	public Path toPath(Surface img) {
+	public void generate(Surface img, SegmentSink sink) {
 		// Get the pass depth. This is used to generate waterline masks
 		double passdepth = -this.passdepth;
 		if(passdepth==0)
@@ -97,7 +98,7 @@ public class RoughStrategy implements ImageStrategy {
 			stepover = image.getStepover();
 	
 		// Z passes
-		Path path = new Path();
+		final ToolSurface ts = ToolSurface.get(img, image.getTool());
 		final double minlevel = -img.getMaxZ();
 		double level = 0;
 		final Logger log = JGCGenerator.getLogger();
@@ -105,14 +106,12 @@ public class RoughStrategy implements ImageStrategy {
 		do {
 			log.progress("RoughStrategy", -level, -minlevel);
 			level = incr(level, minlevel, passdepth);
-			if(!doPass(path, level, img, stepover))
+			if(!doPass(sink, level, img, ts, stepover))
 				break;
 		} while(level>minlevel);
-		
-		return path;
 	}
 	
-	private boolean doPass(Path path, double level, Surface img, double stepover) {
+	private boolean doPass(SegmentSink sink, double level, Surface img, ToolSurface ts, double stepover) {
 		double imin=0, imax;
 		if(angle==0) {
 			imax = -image.getHeight();
@@ -124,7 +123,7 @@ public class RoughStrategy implements ImageStrategy {
 		List<Seg> segments = new ArrayList<Seg>();
 		double i=imin;
 		while(true) {
-			doLine(segments, img, i, level, dir!=Dir.NEG);
+			doLine(segments, ts, img.getResolution(), i, level, dir!=Dir.NEG);
 			if(i==imax)
 				break;
 			i = incr(i, imax, stepover);
@@ -135,59 +134,74 @@ public class RoughStrategy implements ImageStrategy {
 		if(segments.isEmpty())
 			return false;
 		
-		final Coordinate o = image.getOrigin(); 
 		if(dir!=Dir.ALT) {
-			while(!segments.isEmpty()) {
-				Seg seg = segments.remove(0);
+			for(Seg seg : segments) {
 				if(angle==0) {
-					path.addSegment(Path.SType.MOVE, o.offset(new NumericCoordinate(seg.j0, -seg.i, level)));
-					path.addSegment(Path.SType.LINE, o.offset(new NumericCoordinate(seg.j1, -seg.i, level)));
+					sink.addSegment(Path.SType.MOVE, seg.j0, -seg.i, level);
+					sink.addSegment(Path.SType.LINE, seg.j1, -seg.i, level);
 				} else {
-					path.addSegment(Path.SType.MOVE, o.offset(new NumericCoordinate(seg.i, -seg.j0, level)));
-					path.addSegment(Path.SType.LINE, o.offset(new NumericCoordinate(seg.i, -seg.j1, level)));
+					sink.addSegment(Path.SType.MOVE, seg.i, -seg.j0, level);
+					sink.addSegment(Path.SType.LINE, seg.i, -seg.j1, level);
 				}
 			}
 		} else {
 			// Alternating directions. This is a bit smarter than that actually.
 			// The segments are sorted to minimize rapids
-			Seg seg = segments.remove(0);
+			final int count = segments.size();
+			final double[] si = new double[count], sj0 = new double[count], sj1 = new double[count];
+			for(int s=0;s<count;++s) {
+				Seg ss = segments.get(s);
+				si[s] = ss.i;
+				sj0[s] = ss.j0;
+				sj1[s] = ss.j1;
+			}
+			final SegmentGrid grid = new SegmentGrid(si, sj0, sj1);
+			
+			// The points we have searched from. A segment starts from its end
+			// nearest to the point it was picked from. If both ends are equally
+			// near, it keeps the direction it had at the previous search.
+			final double[] qi = new double[count], qj = new double[count];
+			int queries = 0;
+			
+			Seg seg = segments.get(0);
+			grid.remove(0);
 			boolean movefirst = true;
 			NumericCoordinate last;
 			while(true) {
 				if(angle==0) {
-					path.addSegment(movefirst ? Path.SType.MOVE : Path.SType.LINE, o.offset(new NumericCoordinate(seg.j0, -seg.i, level)));
+					sink.addSegment(movefirst ? Path.SType.MOVE : Path.SType.LINE, seg.j0, -seg.i, level);
 					last = new NumericCoordinate(seg.j1, -seg.i, level);
 				} else {
-					path.addSegment(movefirst ? Path.SType.MOVE : Path.SType.LINE, o.offset(new NumericCoordinate(seg.i, -seg.j0, level)));
+					sink.addSegment(movefirst ? Path.SType.MOVE : Path.SType.LINE, seg.i, -seg.j0, level);
 					last = new NumericCoordinate(seg.i, -seg.j1, level);
 				}
-				path.addSegment(Path.SType.LINE, o.offset(last));
+				sink.addSegment(Path.SType.LINE, last.getValue(Axis.X), last.getValue(Axis.Y), level);
 				
-				if(segments.isEmpty()) {
+				if(grid.isEmpty()) {
 					// If this was the last segment were done.
 					break;
 				} else {
 					// Find the nearest next segment.
 					// Check distance to both ends.
-					double maxd = Double.MAX_VALUE;
-					int maxs = 0;
-					for(int s=0;s<segments.size();++s) {
-						Seg ss = segments.get(s);
-						double d = dist(seg.i-ss.i, seg.j1-ss.j0);
-						double d2 = dist(seg.i-ss.i, seg.j1-ss.j1);
+					qi[queries] = seg.i;
+					qj[queries] = seg.j1;
+					++queries;
+					
+					final int maxs = grid.nearest(seg.i, seg.j1);
+					grid.remove(maxs);
+					Seg next = segments.get(maxs);
+					for(int q=queries-1;q>=0;--q) {
+						double d = dist(qi[q]-next.i, qj[q]-next.j0);
+						double d2 = dist(qi[q]-next.i, qj[q]-next.j1);
 						if(d2 < d) {
-							ss.reverse();
-							d = d2;
-						}
-						if(d < maxd) {
-							maxd = d;
-							maxs = s;
-						}
+							next.reverse();
+							break;
+						} else if(d < d2)
+							break;
 					}
+					
 					// Ok, we got our next segment. See if we can plow
 					// straight into it without lifting the tool
-					Seg next = segments.remove(maxs);
-					
 					NumericCoordinate nc;
 					if(angle==0)
 						nc = new NumericCoordinate(next.j0, -next.i, level);
@@ -198,7 +212,7 @@ public class RoughStrategy implements ImageStrategy {
 					
 					seg = next;
 				}
-			};
+			}
 		}
 		return true;
 	}
@@ -208,9 +222,9 @@ public class RoughStrategy implements ImageStrategy {
 	}
 	
 	/** Generate the toolpath for a single X or Y line, depending on the angle. */
-	private void doLine(List<Seg> segments, Surface img, double i, double level, boolean pos) {
+	private void doLine(List<Seg> segments, ToolSurface img, double res, double i, double level, boolean pos) {
 		// Get the available line segments
-		ArrayList<Double> points = sliceLine(img, i, level, pos);
+		ArrayList<Double> points = sliceLine(img, res, i, level, pos);
 		
 		// Check if we have anything to do
 		if(points.isEmpty())
@@ -225,21 +239,21 @@ public class RoughStrategy implements ImageStrategy {
 	}
 	
 	/** Cut a single line into segments */
-	private ArrayList<Double> sliceLine(Surface img, double i, double level, boolean pos) {
+	private ArrayList<Double> sliceLine(ToolSurface img, double res, double i, double level, boolean pos) {
 		ArrayList<Double> points = new ArrayList<Double>();
 		
 		boolean bb = true;
 		double max = (angle==0 ? image.getWidth() : image.getHeight());
 		
-		for(double j=0;j<max;j+=img.getResolution()) {
+		for(double j=0;j<max;j+=res) {
 			boolean b;
 			if(angle==0)
-				b = img.getDepthAt(j, i, image.getTool()) > level;
+				b = img.getDepthAt(j, i) > level;
 			else
-				b = img.getDepthAt(i, -j, image.getTool()) > level;
+				b = img.getDepthAt(i, -j) > level;
 			
 			if(b!=bb) {				
-				points.add(j - (b ? img.getResolution() : 0));
+				points.add(j - (b ? res : 0));
 				bb = b;
 			}
 		}
@@ -0,0 +1,163 @@
+package org.luolamies.jgcgen.shapes.surface;
+
+/**
+ * A uniform grid of line segment endpoints for nearest segment searches.
+ * <p>Segments lie on rows: each has a row coordinate <var>i</var> and the two
+ * end coordinates <var>j0</var> and <var>j1</var> along the row. The distance to
+ * a segment is the squared distance to its nearer endpoint. Segments can
+ * be removed, and the grid is rebuilt with larger cells as it empties.
+ */
+final class SegmentGrid {
+	private final double[] si, sj0, sj1;
+	private final boolean[] removed;
+	private int remaining;
+
+	/** Grid geometry */
+	private double imin, jmin, cell;
+	private int ni, nj;
+	/** Endpoints (segment*2 + end) sorted by cell. Cell c has entries start[c]..start[c+1] */
+	private int[] start, entries;
+	/** Segment count when the grid was last built */
+	private int built;
+
+	/**
+	 * @param i row coordinates
+	 * @param j0 start coordinates
+	 * @param j1 end coordinates
+	 */
+	SegmentGrid(double[] i, double[] j0, double[] j1) {
+		this.si = i;
+		this.sj0 = j0;
+		this.sj1 = j1;
+		this.removed = new boolean[i.length];
+		this.remaining = i.length;
+		build();
+	}
+
+	/**
+	 * Remove a segment from the grid
+	 * @param s segment index
+	 */
+	void remove(int s) {
+		if(!removed[s]) {
+			removed[s] = true;
+			--remaining;
+			if(remaining>0 && remaining < built/4)
+				build();
+		}
+	}
+
+	boolean isEmpty() {
+		return remaining==0;
+	}
+
+	/**
+	 * Find the segment with an endpoint nearest to the given point.
+	 * If several segments are equally near, the one with the lowest index is returned.
+	 * @param qi row coordinate
+	 * @param qj coordinate along the row
+	 * @return segment index or -1 if the grid is empty
+	 */
+	int nearest(double qi, double qj) {
+		if(remaining==0)
+			return -1;
+
+		final int ci = cellOf(qi / cell, imin, ni), cj = cellOf(qj / cell, jmin, nj);
+		final int maxr = Math.max(Math.max(ci, ni-1-ci), Math.max(cj, nj-1-cj));
+
+		int best = -1;
+		double bestd = Double.MAX_VALUE;
+		for(int r=0;r<=maxr;++r) {
+			for(int y=ci-r;y<=ci+r;++y) {
+				if(y<0 || y>=ni)
+					continue;
+				final boolean edge = y==ci-r || y==ci+r;
+				for(int x=cj-r;x<=cj+r;x += (edge || r==0) ? 1 : 2*r) {
+					if(x<0 || x>=nj)
+						continue;
+					final int c = y*nj + x;
+					for(int e=start[c];e<start[c+1];++e) {
+						final int s = entries[e] >> 1;
+						if(removed[s])
+							continue;
+						final double dj = qj - ((entries[e]&1)==0 ? sj0[s] : sj1[s]);
+						final double d = (qi-si[s])*(qi-si[s]) + dj*dj;
+						if(d < bestd || (d==bestd && s<best)) {
+							bestd = d;
+							best = s;
+						}
+					}
+				}
+			}
+			// Everything beyond this ring is at least r cells away
+			if(best>=0) {
+				final double gap = r * cell * (1 - 1e-9);
+				if(gap*gap > bestd)
+					break;
+			}
+		}
+		return best;
+	}
+
+	static private int cellOf(double v, double min, int n) {
+		int c = (int)Math.floor(v - min);
+		return c<0 ? 0 : c>=n ? n-1 : c;
+	}
+
+	/**
+	 * (Re)build the grid from the remaining segments
+	 */
+	private void build() {
+		imin = Double.MAX_VALUE;
+		jmin = Double.MAX_VALUE;
+		double imax = -Double.MAX_VALUE, jmax = -Double.MAX_VALUE;
+		for(int s=0;s<si.length;++s) {
+			if(removed[s])
+				continue;
+			imin = Math.min(imin, si[s]);
+			imax = Math.max(imax, si[s]);
+			jmin = Math.min(jmin, Math.min(sj0[s], sj1[s]));
+			jmax = Math.max(jmax, Math.max(sj0[s], sj1[s]));
+		}
+		built = remaining;
+		if(remaining==0) {
+			imin = imax = jmin = jmax = 0;
+		}
+
+		// Aim for a couple of endpoints per cell
+		final double ir = imax-imin, jr = jmax-jmin;
+		cell = Math.max(Math.sqrt(ir * jr / Math.max(1, remaining)), Math.max(ir, jr) / Math.max(1, remaining));
+		if(cell==0)
+			cell = 1;
+		ni = (int)(ir / cell) + 1;
+		nj = (int)(jr / cell) + 1;
+
+		// Store coordinates in cell units to make cell lookups cheap
+		imin /= cell;
+		jmin /= cell;
+
+		start = new int[ni*nj + 1];
+		entries = new int[remaining*2];
+		final int[] cells = new int[remaining*2];
+		for(int s=0,n=0;s<si.length;++s) {
+			if(removed[s])
+				continue;
+			final int y = cellOf(si[s] / cell, imin, ni);
+			cells[n++] = y*nj + cellOf(sj0[s] / cell, jmin, nj);
+			cells[n++] = y*nj + cellOf(sj1[s] / cell, jmin, nj);
+		}
+		for(int c : cells)
+			++start[c+1];
+		for(int c=0;c<ni*nj;++c)
+			start[c+1] += start[c];
+		final int[] fill = new int[ni*nj];
+		for(int s=0,n=0;s<si.length;++s) {
+			if(removed[s])
+				continue;
+			entries[start[cells[n]] + fill[cells[n]]++] = s*2;
+			++n;
+			entries[start[cells[n]] + fill[cells[n]]++] = s*2 + 1;
+			++n;
+		}
+	}
+}
@@ -1,9 +1,19 @@
 package org.luolamies.jgcgen.shapes.surface;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
 import org.luolamies.jgcgen.JGCGenerator;
 import org.luolamies.jgcgen.Logger;
-import org.luolamies.jgcgen.path.NumericCoordinate;
-import org.luolamies.jgcgen.path.Path;
+import org.luolamies.jgcgen.RenderException;
+import org.luolamies.jgcgen.path.SegmentSink;
 import org.luolamies.jgcgen.path.Path.SType;
 import static org.luolamies.jgcgen.shapes.surface.SurfaceUtils.incr;
 
@@ -52,53 +62,77 @@ class SimpleStrategy implements ImageStrategy {
 	}
 	
 	/**
-	 * Do a single horizontal or vertical scanline in either positive or negative direction
-	 * @param path path to build
-	 * @param img image source
-	 * @param origin origin coordinate
-	 * @param move should the first path segment be a move instead of a line
-	 * @param pos positive direction?
-	 * @param i scanline position (if angle==0, this is the Y coordinate, otherwise this X)
-	 * @param jmin starting point at scanline
-	 * @param jmax ending point at scanline
-	 * @param dj scan step
+	 * A single horizontal or vertical scanline
 	 */
-	private void scanline(Path path, Surface img, boolean move, boolean pos, double i, double jmin, double jmax, double dj) {
-		double j = jmin;
-		if(angle==0) {
-			if(move) {
-				path.addSegment(SType.MOVE, image.getOrigin().offset(new NumericCoordinate(j, i, img.getDepthAt(j, i, image.getTool()))));
-				j = incr(j, jmax, dj);
-			}
+	private final class Scanline implements Callable<double[]> {
+		/** Should the first path segment be a move instead of a line */
+		final boolean move;
+		/** Scanline position (if angle==0, this is the Y coordinate, otherwise this X) */
+		final double i;
+		/** Starting and ending points at scanline */
+		final double jmin, jmax;
+		/** Scan step */
+		final double dj;
+		
+		private final ToolSurface img;
+		
+		Scanline(ToolSurface img, boolean move, double i, double jmin, double jmax, double dj) {
+			this.img = img;
+			this.move = move;
+			this.i = i;
+			this.jmin = jmin;
+			this.jmax = jmax;
+			this.dj = angle==0 ? dj : -dj;
+		}
+		
+		/**
+		 * Calculate the depth at each point on the line
+		 * @return depths
+		 */
+		public double[] call() {
+			double[] z = new double[16];
+			int n=0;
+			double j = jmin;
 			while(true) {
-				path.addSegment(SType.LINE, image.getOrigin().offset(new NumericCoordinate(j, i, img.getDepthAt(j, i, image.getTool()))));
+				if(n==z.length)
+					z = Arrays.copyOf(z, n*2);
+				if(angle==0)
+					z[n++] = img.getDepthAt(j, i);
+				else
+					z[n++] = img.getDepthAt(i, j);
 				if(j==jmax)
 					break;
 				j = incr(j, jmax, dj);
 			}
-		} else {
-			if(move) {
-				path.addSegment(SType.MOVE, image.getOrigin().offset(new NumericCoordinate(i, j, img.getDepthAt(i, j, image.getTool()))));
-				j = incr(j, jmax, -dj);
-			}
-			while(true) {
-				path.addSegment(SType.LINE, image.getOrigin().offset(new NumericCoordinate(i, j, img.getDepthAt(i, j, image.getTool()))));
-				if(j==jmax)
-					break;
-				j = incr(j, jmax, -dj);
+			return Arrays.copyOf(z, n);
+		}
+		
+		/**
+		 * Add the scanline to the path.
+		 * @param sink the segment sink
+		 * @param z depths calculated by {@link #call()}
+		 */
+		void emit(SegmentSink sink, double[] z) {
+			double j = jmin;
+			for(int n=0;n<z.length;++n) {
+				SType type = (n==0 && move) ? SType.MOVE : SType.LINE;
+				if(angle==0)
+					sink.addSegment(type, j, i, z[n]);
+				else
+					sink.addSegment(type, i, j, z[n]);
+				j = incr(j, jmax, dj);
 			}
 		}
 	}
 	
-	public Path toPath(Surface img) {
-		Path path = new Path();
-
+	public void generate(Surface img, SegmentSink sink) {
 		double so;
 		if(image.getStepover()==0)
 			so = img.getResolution(); // Default minimum
 		else
 			so = image.getStepover();
 		
+		final ToolSurface ts = ToolSurface.get(img, image.getTool());
 		double jmin=0, dj = img.getResolution(), jmax;
 		if(angle==0)
 			jmax = image.getWidth();
@@ -124,12 +158,12 @@ class SimpleStrategy implements ImageStrategy {
 			jmax = -jmax;
 		}
 		
-		final Logger log = JGCGenerator.getLogger();
-		
+		// List the scanlines first. Each line depends only on its own coordinates,
+		// so they can be calculated in any order.
+		List<Scanline> lines = new ArrayList<Scanline>();
 		boolean first=true;
 		while(true) {
-			log.progress("SimpleStrategy", i, imax);
-			scanline(path, img, first | dir!=Dir.ALT, dir!=Dir.NEG, i, jmin, jmax, dj);
+			lines.add(new Scanline(ts, first | dir!=Dir.ALT, i, jmin, jmax, dj));
 			first = false;
 			
 			if(i==imax)
@@ -137,14 +171,53 @@ class SimpleStrategy implements ImageStrategy {
 			i = incr(i, imax, so);
 			
 			if(dir==Dir.ALT) {
-				scanline(path, img, false, false, i, jmax, jmin, -dj);
+				lines.add(new Scanline(ts, false, i, jmax, jmin, -dj));
 				
 				if(i==imax)
 					break;
 				i = incr(i, imax, so);
 			}
 		}
+		
+		final Logger log = JGCGenerator.getLogger();
+		final int threads = image.getThreads();
+		
+		if(threads<2) {
+			for(Scanline line : lines) {
+				log.progress("SimpleStrategy", line.i, imax);
+				line.emit(sink, line.call());
+			}
+		} else {
+			// Calculate the lines in parallel and stitch them together in the original order.
+			// Only a few lines are kept in flight to bound memory use.
+			ExecutorService pool = Executors.newFixedThreadPool(threads);
+			try {
+				LinkedList<Future<double[]>> pending = new LinkedList<Future<double[]>>();
+				int done = 0;
+				for(Scanline line : lines) {
+					pending.add(pool.submit(line));
+					
+					if(pending.size() > threads * 2) {
+						Scanline l = lines.get(done++);
+						log.progress("SimpleStrategy", l.i, imax);
+						l.emit(sink, pending.removeFirst().get());
+					}
+				}
 				
-		return path;
+				while(!pending.isEmpty()) {
+					Scanline l = lines.get(done++);
+					log.progress("SimpleStrategy", l.i, imax);
+					l.emit(sink, pending.removeFirst().get());
+				}
+			} catch(InterruptedException e) {
+				throw new RenderException("Interrupted while generating scanlines", e);
+			} catch(ExecutionException e) {
+				if(e.getCause() instanceof RuntimeException)
+					throw (RuntimeException)e.getCause();
+				throw new RenderException("Error while generating scanlines", e.getCause());
+			} finally {
+				pool.shutdownNow();
+			}
+		}
 	}
 }
@@ -11,6 +11,7 @@ import org.luolamies.jgcgen.tools.Tool;
  *
  */
 public abstract class Surface {
+	private int generation;
 
 	/**
 	 * Get the aspect ratio of the surface.
@@ -51,21 +52,23 @@ public abstract class Surface {
 	 */
 	abstract public double getMaxZ();
 	
+	/**
+	 * Get the deepest Z value the tool can reach when centered at the given coordinates
+	 * without penetrating the surface.
+	 * @param cx
+	 * @param cy
+	 * @param tool
+	 * @return Z
+	 */
 	public double getDepthAt(double cx, double cy, Tool tool) {
 		final double rad = tool.getRadius();
-		double res = getResolution() / 2;
+		final double res = getSampleStep(tool);
 		final double minx = cx-rad, miny = cy-rad;
 		final double maxx = cx+rad, maxy = cy+rad;
 		double maxz = -getMaxZ();
 		
-		if(2*rad < res) {
-			// Special case: resolution is too small
-			res = rad / 2; 
-		}
-		
 		final double radrad = rad*rad;
 		
-		//System.err.println("Get depth at " + cx + ", " + cy + " with " + tool.getRadius() + " at " + res);
 		for(double y=miny;y<maxy;y+=res) {
 			for(double x=minx;x<maxx;x+=res) {
 				double rr = (x-cx)*(x-cx) + (y-cy)*(y-cy); 
@@ -81,6 +84,55 @@ public abstract class Surface {
 		return maxz;
 	}
 	
+	/**
+	 * Get the distance between the samples {@link #getDepthAt(double, double, Tool)} takes
+	 * @param tool
+	 * @return sample step
+	 */
+	final double getSampleStep(Tool tool) {
+		final double rad = tool.getRadius();
+		double res = getResolution() / 2;
+		if(2*rad < res) {
+			// Special case: resolution is too small
+			res = rad / 2; 
+		}
+		return res;
+	}
+	
+	/**
+	 * Get the range of values {@link #getDepthAt(double, double)} may return
+	 * inside a rectangle. The bounds may be loose, but they must never be narrower
+	 * than the true range.
+	 * <p>The default implementation does not know anything about the surface
+	 * and returns false.
+	 * @param x0 left edge
+	 * @param y0 bottom edge
+	 * @param x1 right edge
+	 * @param y1 top edge
+	 * @param bounds the minimum and maximum values are stored here
+	 * @return false if bounds are not available
+	 */
+	boolean getDepthBounds(double x0, double y0, double x1, double y1, double[] bounds) {
+		return false;
+	}
+	
+	/**
+	 * Mark the surface as changed. This should be called whenever the
+	 * values returned by {@link #getDepthAt(double, double)} may change, so
+	 * cached tool surfaces are not reused.
+	 */
+	protected final void changed() {
+		++generation;
+	}
+	
+	/**
+	 * Get the modification counter of this surface
+	 * @return generation
+	 */
+	final int getGeneration() {
+		return generation;
+	}
+	
 	/**
 	 * Project a path onto this surface. The Z value for each point
 	 * in the path will be set off by the Z value corresponding point
@@ -111,14 +163,14 @@ public abstract class Surface {
 		Double oy = o.getValue(Axis.Y);
 		if(oy==null)
 			oy = 0.0;
-		final Tool t = tool!=null ? Tool.get(tool) : null;
+		final ToolSurface t = tool!=null ? ToolSurface.get(this, Tool.get(tool)) : null;
 		
 		for(Path.Segment s : path.getSegments()) {
 			if(s.point!=null) {
 				NumericCoordinate c = (NumericCoordinate) s.point;
 				double z;
 				if(t!=null)
-					z = getDepthAt(c.getValue(Axis.X) + ox, c.getValue(Axis.Y) + oy, t);
+					z = t.getDepthAt(c.getValue(Axis.X) + ox, c.getValue(Axis.Y) + oy);
 				else
 					z = getDepthAt(c.getValue(Axis.X) + ox, c.getValue(Axis.Y) + oy);
 				pp.addSegment(s.type, c.offset(new NumericCoordinate(null, null, z), false, true));
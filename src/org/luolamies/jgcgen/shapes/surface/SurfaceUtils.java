@@ -1,5 +1,7 @@
 package org.luolamies.jgcgen.shapes.surface;
 
+import java.util.Arrays;
+
 import org.luolamies.jgcgen.path.Axis;
 import org.luolamies.jgcgen.path.NumericCoordinate;
 import org.luolamies.jgcgen.tools.Tool;
@@ -23,9 +25,18 @@ class SurfaceUtils {
 		return i;
 	}
 	
+	/** Lines with at most this many samples left are checked point by point */
+	static private final int SAFELINE_LEAF = 4;
+	/** Slack for rounding errors in the depth bounds */
+	static private final double SAFELINE_EPS = 1e-9;
+	
 	/**
 	 * Check if a line can be drawn from <i>start</i> to <i>end</i> without
 	 * hitting the shape we're engraving. 
+	 * <p>The line is checked at intervals of the surface resolution.
+	 * If the surface can provide depth bounds, the line is first checked
+	 * as a whole against the bounds of the area it passes through and
+	 * split in halves only when the bounds are inconclusive.
 	 * @param start
 	 * @param end
 	 * @return true if line from start to end is safe
@@ -43,10 +54,98 @@ class SurfaceUtils {
 		double dy = (end.getValue(Axis.Y)-y1) / len;
 		double dz = (end.getValue(Axis.Z)-z1) / len;
 		
-		for(double d=0;d<len;d += img.getResolution()) {				
-			if(img.getDepthAt(x1 + dx*d, y1 + dy*d, tool) > z1 + dz*d)
-				return false;
+		// Sample positions along the line
+		final double res = img.getResolution();
+		double[] ds = new double[16];
+		int n=0;
+		for(double d=0;d<len;d += res) {
+			if(n==ds.length)
+				ds = Arrays.copyOf(ds, n*2);
+			ds[n++] = d;
+		}
+		
+		return new SafeLine(img, tool, x1, y1, z1, dx, dy, dz, ds).check(0, n-1);
+	}
+	
+	/**
+	 * Hierarchical line safety check
+	 */
+	static private final class SafeLine {
+		final Surface img;
+		final Tool tool;
+		/** Lowest profile of any sample under the tool */
+		final double lowprofile;
+		/** Every footprint contains a sample this close to the center (on each axis), with
+		 * a profile no higher than centerprofile. Negative if this is not known. */
+		final double near;
+		final double centerprofile;
+		final double x1, y1, z1, dx, dy, dz;
+		final double[] ds;
+		final double[] bounds = new double[2];
+		
+		SafeLine(Surface img, Tool tool, double x1, double y1, double z1, double dx, double dy, double dz, double[] ds) {
+			this.img = img;
+			this.tool = tool;
+			// Tool profiles grow towards the edge. The sample rows and columns are one
+			// step apart, so one of them is within half a step (plus rounding) of the center.
+			final double res = img.getSampleStep(tool);
+			final double h = res/2 * (1+1e-9);
+			final double rad = tool.getRadius();
+			this.lowprofile = tool.getProfile(0);
+			if(2*h*h < rad*rad) {
+				this.near = h;
+				this.centerprofile = tool.getProfile(2*h*h);
+			} else {
+				this.near = -1;
+				this.centerprofile = 0;
+			}
+			this.x1 = x1;
+			this.y1 = y1;
+			this.z1 = z1;
+			this.dx = dx;
+			this.dy = dy;
+			this.dz = dz;
+			this.ds = ds;
+		}
+		
+		/**
+		 * Check samples from..to (inclusive)
+		 */
+		boolean check(int from, int to) {
+			if(to-from >= SAFELINE_LEAF) {
+				final double da = ds[from], db = ds[to];
+				final double xa = x1 + dx*da, xb = x1 + dx*db;
+				final double ya = y1 + dy*da, yb = y1 + dy*db;
+				final double za = z1 + dz*da, zb = z1 + dz*db;
+				final double zmin = Math.min(za, zb) - SAFELINE_EPS, zmax = Math.max(za, zb) + SAFELINE_EPS;
+				final double xmin = Math.min(xa, xb) - SAFELINE_EPS, xmax = Math.max(xa, xb) + SAFELINE_EPS;
+				final double ymin = Math.min(ya, yb) - SAFELINE_EPS, ymax = Math.max(ya, yb) + SAFELINE_EPS;
+				
+				// The tool can reach no higher than the highest point under its footprint
+				final double r = tool.getRadius();
+				if(img.getDepthBounds(xmin - r, ymin - r, xmax + r, ymax + r, bounds)) {
+					final double high = Math.max(bounds[1] - lowprofile, -img.getMaxZ());
+					if(high < zmin)
+						return true;
+					
+					// The tool cannot go lower than the sample nearest to its center allows
+					if(near>=0) {
+						img.getDepthBounds(xmin - near, ymin - near, xmax + near, ymax + near, bounds);
+						if(bounds[0] - centerprofile > zmax)
+							return false;
+					}
+					
+					final int mid = (from + to) >>> 1;
+					return check(from, mid) && check(mid+1, to);
+				}
+			}
+			
+			for(int i=from;i<=to;++i) {
+				final double d = ds[i];
+				if(img.getDepthAt(x1 + dx*d, y1 + dy*d, tool) > z1 + dz*d)
+					return false;
+			}
+			return true;
 		}
-		return true;
 	}
 }
@@ -0,0 +1,245 @@
+package org.luolamies.jgcgen.shapes.surface;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.luolamies.jgcgen.JGCGenerator;
+import org.luolamies.jgcgen.tools.Tool;
+
+/**
+ * A tool compensated height field.
+ * <p>The value at each point is the deepest Z the tool can reach there without
+ * penetrating the surface, i.e. {@link Surface#getDepthAt(double, double, Tool)}.
+ * The values are computed on a regular grid on demand and memoized, so
+ * different strategies and repeated calls with only the origin or strategy
+ * changed can share the work.
+ * <p>The grid is stored in fixed size tiles that are allocated when first touched.
+ * Points that do not fall on the grid are computed directly from the surface.
+ * <p>Tool surfaces are shared through a global cache. The cache is bounded
+ * by a memory budget (see {@link #setBudget(long)}). Least recently used
+ * tool surfaces are evicted first. If the surface in use alone grows over
+ * the budget, its least recently used tiles are dropped and recomputed
+ * when needed again.
+ */
+final class ToolSurface {
+	/** Tile size (cells per side.) Must be a power of two */
+	static private final int TILE = 64;
+	static private final int TILESHIFT = 6;
+	/** Memory used by a single tile */
+	static private final long TILEBYTES = TILE * TILE * 8;
+	/** Marker for a cell whose value has not been computed yet. This is a NaN with a payload
+	 * that is never produced by arithmetic */
+	static private final long EMPTY = 0x7ff8dead0000beefL;
+	/** How close to a grid point a coordinate must be to use the grid (in cells) */
+	static private final double SNAP = 1e-6;
+
+	/** The cache of tool surfaces, in access order */
+	static private final LinkedHashMap<Key, ToolSurface> cache = new LinkedHashMap<Key, ToolSurface>(16, 0.75f, true);
+
+	/** Cache memory budget in bytes */
+	static private long budget = 64L * 1024 * 1024;
+
+	/** Cache key */
+	static private final class Key {
+		final Surface surface;
+		final int generation;
+		final Tool tool;
+		final double xstep, ystep;
+
+		Key(Surface surface, Tool tool, double xstep, double ystep) {
+			this.surface = surface;
+			this.generation = surface.getGeneration();
+			this.tool = tool;
+			this.xstep = xstep;
+			this.ystep = ystep;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if(!(obj instanceof Key))
+				return false;
+			Key k = (Key)obj;
+			return surface == k.surface && generation == k.generation && tool.equals(k.tool) &&
+				xstep == k.xstep && ystep == k.ystep;
+		}
+
+		@Override
+		public int hashCode() {
+			long bits = Double.doubleToLongBits(xstep) * 31 + Double.doubleToLongBits(ystep);
+			return System.identityHashCode(surface) ^ generation * 17 ^ tool.hashCode() * 31 ^ (int)(bits ^ (bits >>> 32));
+		}
+	}
+
+	private final Surface surface;
+	private final Tool tool;
+	private final double xstep, ystep;
+	private final ConcurrentHashMap<Long, Tile> tiles = new ConcurrentHashMap<Long, Tile>();
+	/** Tile allocation counter. Used as the access time of the tiles */
+	private final AtomicLong clock = new AtomicLong();
+
+	/** A grid tile and the time it was last used */
+	static private final class Tile {
+		final AtomicLongArray cells = new AtomicLongArray(TILE * TILE);
+		volatile long used;
+
+		Tile(long time) {
+			for(int i=0;i<cells.length();++i)
+				cells.set(i, EMPTY);
+			used = time;
+		}
+	}
+
+	private ToolSurface(Surface surface, Tool tool, double xstep, double ystep) {
+		this.surface = surface;
+		this.tool = tool;
+		this.xstep = xstep;
+		this.ystep = ystep;
+	}
+
+	/**
+	 * Set the memory budget of the tool surface cache.
+	 * @param bytes maximum memory used by cached tool surfaces
+	 */
+	static synchronized void setBudget(long bytes) {
+		if(bytes<0)
+			throw new IllegalArgumentException("Cache size must be zero or greater!");
+		budget = bytes;
+	}
+
+	/**
+	 * Get a tool surface using the surface resolution as the grid step
+	 * @param surface
+	 * @param tool
+	 * @return tool surface
+	 */
+	static ToolSurface get(Surface surface, Tool tool) {
+		return get(surface, tool, surface.getResolution(), surface.getResolution());
+	}
+
+	/**
+	 * Get a (possibly cached) tool surface
+	 * @param surface the surface
+	 * @param tool the tool
+	 * @param xstep grid step on the X axis
+	 * @param ystep grid step on the Y axis
+	 * @return tool surface
+	 */
+	static synchronized ToolSurface get(Surface surface, Tool tool, double xstep, double ystep) {
+		if(xstep<=0 || ystep<=0)
+			throw new IllegalArgumentException("Grid step must be greater than zero!");
+
+		Key key = new Key(surface, tool, xstep, ystep);
+		ToolSurface ts = cache.get(key);
+		if(ts==null) {
+			ts = new ToolSurface(surface, tool, xstep, ystep);
+			cache.put(key, ts);
+		} else
+			JGCGenerator.getLogger().status("ToolSurface: reusing " + tool + " height field (" + ts.tiles.size() + " tiles)");
+		trim(ts);
+		return ts;
+	}
+
+	/**
+	 * Evict least recently used entries until the cache fits in the budget.
+	 * @param keep an entry that must not be evicted
+	 */
+	static private void trim(ToolSurface keep) {
+		long total = keep.getMemoryUse();
+		for(ToolSurface ts : cache.values())
+			if(ts!=keep)
+				total += ts.getMemoryUse();
+
+		Iterator<Map.Entry<Key, ToolSurface>> i = cache.entrySet().iterator();
+		while(total > budget && i.hasNext()) {
+			ToolSurface ts = i.next().getValue();
+			if(ts!=keep) {
+				total -= ts.getMemoryUse();
+				i.remove();
+			}
+		}
+	}
+
+	/**
+	 * Keep the cache within the budget after a tile has been allocated.
+	 * Other tool surfaces are evicted first, then the least recently used
+	 * tiles of this one.
+	 * @param current the tile just allocated. This is never dropped.
+	 */
+	private void allocated(Long current) {
+		synchronized(ToolSurface.class) {
+			trim(this);
+			while(getMemoryUse() > budget) {
+				Long oldest = null;
+				long time = Long.MAX_VALUE;
+				for(Map.Entry<Long, Tile> e : tiles.entrySet()) {
+					if(e.getValue().used < time && !e.getKey().equals(current)) {
+						oldest = e.getKey();
+						time = e.getValue().used;
+					}
+				}
+				if(oldest==null)
+					break;
+				tiles.remove(oldest);
+			}
+		}
+	}
+
+	/**
+	 * Get the amount of memory used by the computed tiles
+	 * @return memory use in bytes
+	 */
+	long getMemoryUse() {
+		return tiles.size() * TILEBYTES;
+	}
+
+	/**
+	 * Get the tool compensated depth at the given coordinates.
+	 * @param x
+	 * @param y
+	 * @return Z
+	 */
+	double getDepthAt(double x, double y) {
+		final double gx = x / xstep, gy = -y / ystep;
+		final double rx = Math.rint(gx), ry = Math.rint(gy);
+		if(Math.abs(gx-rx) > SNAP || Math.abs(gy-ry) > SNAP)
+			return surface.getDepthAt(x, y, tool);
+
+		return getCell((int)rx, (int)ry);
+	}
+
+	/**
+	 * Get the value of a grid cell
+	 * @param cx column
+	 * @param cy row (rows grow downwards)
+	 * @return Z
+	 */
+	double getCell(int cx, int cy) {
+		final long tkey = ((long)(cy >> TILESHIFT) << 32) | ((cx >> TILESHIFT) & 0xffffffffL);
+		Tile tile = tiles.get(tkey);
+		if(tile==null) {
+			Tile t = new Tile(clock.incrementAndGet());
+			tile = tiles.putIfAbsent(tkey, t);
+			if(tile==null) {
+				tile = t;
+				allocated(tkey);
+			}
+		} else {
+			final long now = clock.get();
+			if(tile.used!=now)
+				tile.used = now;
+		}
+
+		final int i = ((cy & (TILE-1)) << TILESHIFT) | (cx & (TILE-1));
+		long bits = tile.cells.get(i);
+		if(bits==EMPTY) {
+			double z = surface.getDepthAt(cx * xstep, -cy * ystep, tool);
+			tile.cells.set(i, Double.doubleToRawLongBits(z));
+			return z;
+		}
+		return Double.longBitsToDouble(bits);
+	}
+}
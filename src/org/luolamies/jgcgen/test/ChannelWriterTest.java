@@ -0,0 +1,62 @@
+package org.luolamies.jgcgen.test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+
+import org.junit.Test;
+import org.luolamies.jgcgen.ChannelWriter;
+
+import static org.junit.Assert.*;
+
+/**
+ * Channel writer tests
+ */
+public class ChannelWriterTest {
+	static private final Charset UTF8 = Charset.forName("UTF-8");
+	
+	/** Write the pieces with both writers and compare the output */
+	private void check(Charset cs, String... pieces) throws IOException {
+		ByteArrayOutputStream expected = new ByteArrayOutputStream();
+		Writer w = new OutputStreamWriter(expected, cs);
+		for(String s : pieces)
+			w.write(s);
+		w.close();
+		
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ChannelWriter cw = new ChannelWriter(out, cs);
+		for(String s : pieces)
+			cw.write(s);
+		cw.close();
+		
+		assertArrayEquals(expected.toByteArray(), out.toByteArray());
+		assertEquals(out.size(), cw.getBytesWritten());
+	}
+	
+	/** Test plain and mixed text */
+	public @Test void testText() throws IOException {
+		check(UTF8, "G0 X1 Y2\n", "(äö)", "G1 Z-1\n");
+		check(Charset.forName("ISO-8859-1"), "(ä€)\n");
+		check(Charset.forName("UTF-16"), "G0 X1", " (ä)\n");
+	}
+	
+	/** Test surrogate pairs split between writes */
+	public @Test void testSurrogates() throws IOException {
+		check(UTF8, "(\uD83D", "\uDE00)\n");
+		check(UTF8, "\uD83D", "\uDE00");
+		check(UTF8, "a\uD83D", "b");
+		check(UTF8, "\uD83Da\uDE00");
+		check(UTF8, "x\uD83D");
+		check(Charset.forName("UTF-16"), "\uD83D", "\uDE00 X");
+		
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ChannelWriter cw = new ChannelWriter(out, UTF8);
+		cw.write(0xD83D);
+		cw.flush();
+		cw.write(0xDE00);
+		cw.close();
+		assertArrayEquals(new byte[] { (byte)0xF0, (byte)0x9F, (byte)0x98, (byte)0x80 }, out.toByteArray());
+	}
+}
@@ -16,9 +16,15 @@
  */
 package org.luolamies.jgcgen.test;
 
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.HashMap;
+import java.util.Map;
+
 import org.junit.Test;
 import org.luolamies.jgcgen.path.Axis;
 import org.luolamies.jgcgen.path.Coordinate;
+import org.luolamies.jgcgen.path.NumberFormatter;
 import org.luolamies.jgcgen.path.NumericCoordinate;
 import org.luolamies.jgcgen.path.SymbolicCoordinate;
 
@@ -178,4 +184,82 @@ public class CoordinateTests {
 		assertEquals("#<_rotate>", c2.get(Axis.A));
 		assertEquals("-[-10]", c2.get(Axis.B));
 	}
+	
+	@Test public void testParseCache() {
+		NumericCoordinate c1 = (NumericCoordinate) Coordinate.parse("z-1.5");
+		c1.set(Axis.Z, 3.0);
+		NumericCoordinate c2 = (NumericCoordinate) Coordinate.parse("z-1.5");
+		assertNotSame(c1, c2);
+		assertEquals(-1.5, c2.getValue(Axis.Z), 0);
+		
+		SymbolicCoordinate c3 = (SymbolicCoordinate) Coordinate.parse("x 1 2.5 y#< _a b > z[#1 + 2]");
+		assertEquals("12.5", c3.get(Axis.X));
+		assertEquals("#<_ab>", c3.get(Axis.Y));
+		assertEquals("[#1+2]", c3.get(Axis.Z));
+	}
+	
+	@Test public void testSimplify() {
+		SymbolicCoordinate c1 = new SymbolicCoordinate();
+		c1.set(Axis.X, "[[#1+10]+-5.000]");
+		c1.set(Axis.Y, "[[[-10.000] * SIN[#1] + [10.000] * COS[#1]]+-30.000]");
+		c1.set(Axis.Z, "[0.000+[[10.000] * SIN[#1] + [0] * COS[#1]]]");
+		c1.set(Axis.A, "[10+#1]");
+		c1.set(Axis.B, "[[2]*2.000]");
+		c1.set(Axis.C, "-10.000");
+		c1.set(Axis.I, "[#1/0]");
+		
+		SymbolicCoordinate c2 = c1.simplify();
+		assertEquals("[#1+5]", c2.get(Axis.X));
+		assertEquals("[-10*SIN[#1]+10*COS[#1]-30]", c2.get(Axis.Y));
+		assertEquals("[10*SIN[#1]]", c2.get(Axis.Z));
+		assertEquals("[10+#1]", c2.get(Axis.A));
+		assertEquals("4", c2.get(Axis.B));
+		assertEquals("-10.000", c2.get(Axis.C));
+		assertEquals("[#1/0]", c2.get(Axis.I));
+		
+		Map<String, Double> known = new HashMap<String, Double>();
+		known.put("depth", 2.5);
+		SymbolicCoordinate c3 = new SymbolicCoordinate("[#<Depth>*2]", "#<depth>", "[#<_safe>+#<depth>]");
+		c3 = c3.simplify(known);
+		assertEquals("5", c3.get(Axis.X));
+		assertEquals("2.5", c3.get(Axis.Y));
+		assertEquals("[#<_safe>+2.5]", c3.get(Axis.Z));
+
+		// Results that are not finite are not folded
+		SymbolicCoordinate c4 = new SymbolicCoordinate("[-8**0.5]", "[10**400]", "[EXP[1000]+#1]");
+		c4 = c4.simplify();
+		assertEquals("[-8**0.5]", c4.get(Axis.X));
+		assertEquals("[10**400]", c4.get(Axis.Y));
+		assertEquals("[EXP[1000]+#1]", c4.get(Axis.Z));
+		
+		// Unary minus must not capture the base of a power. Small coefficients are kept.
+		SymbolicCoordinate c5 = new SymbolicCoordinate("[0+0-#1**2]", "[#1*0.0000000001*1]", "[#1+0.1+0.2]");
+		c5 = c5.simplify();
+		assertEquals("[-[#1**2]]", c5.get(Axis.X));
+		assertEquals("[0.0000000001*#1]", c5.get(Axis.Y));
+		assertEquals("[#1+0.3]", c5.get(Axis.Z));
+		assertEquals("[-[#1**2]]", new SymbolicCoordinate("[-[#1**2]]", "0", "0").simplify().get(Axis.X));
+	}	
+	@Test public void testNumberFormat() throws IOException {
+		NumberFormatter f3 = new NumberFormatter(3, false);
+		assertEquals("1.000", f3.format(1));
+		assertEquals("-0.500", f3.format(-0.5));
+		assertEquals("0.000", f3.format(-0.0001));
+		assertEquals("1.235", f3.format(1.2345));
+		assertEquals("123456.789", f3.format(123456.789));
+		
+		NumberFormatter t4 = new NumberFormatter(4, true);
+		assertEquals("1", t4.format(1.00001));
+		assertEquals("-2.5", t4.format(-2.5));
+		assertEquals("0", t4.format(-0.00001));
+		assertEquals("100000000000000000000", t4.format(1e20));
+		
+		StringWriter out = new StringWriter();
+		new NumericCoordinate(1.5, -0.00001, 3.0).write(out, t4);
+		assertEquals("X1.5 Y0 Z3", out.toString());
+		
+		out = new StringWriter();
+		new NumericCoordinate(1.5, -0.00001, 3.0).write(out, f3);
+		assertEquals(new NumericCoordinate(1.5, -0.00001, 3.0).toGcode(), out.toString());
+	}
 }
@@ -0,0 +1,45 @@
+package org.luolamies.jgcgen.test;
+
+import org.junit.Test;
+import org.luolamies.jgcgen.path.Path;
+import org.luolamies.jgcgen.path.SegmentMerger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Short segment merging tests
+ */
+public class MergeTest {
+	/** Test merging short segments. Corners must be kept. */
+	public @Test void testMergeShort() {
+		Path p = new Path();
+		p.addSegment("move", "x0y0z0");
+		for(int i=1;i<=10;++i)
+			p.addSegment("line", "x" + (i/10.0));
+		for(int i=1;i<=10;++i)
+			p.addSegment("line", "y" + (i/10.0));
+		
+		final Path merged = new Path();
+		SegmentMerger m = new SegmentMerger(0.35, 0.001) {
+			protected void emit(Path.Segment s) {
+				merged.addSegment(s.type, s.point);
+			}
+		};
+		for(Path.Segment s : p.getSegments())
+			m.add(s);
+		m.finish();
+		
+		Path expected = new Path();
+		expected.addSegment("move", "x0y0z0");
+		expected.addSegment("line", "x0.4"); expected.addSegment("line", "x0.8"); expected.addSegment("line", "x1.0");
+		expected.addSegment("line", "y0.4"); expected.addSegment("line", "y0.8"); expected.addSegment("line", "y1.0");
+		checkPath(expected, merged);
+	}
+	
+	private void checkPath(Path expected, Path path) {
+		assertEquals(expected.getSize(), path.getSize());
+		for(int i=0;i<expected.getSize();++i) {
+			assertEquals(expected.getSegments().get(i).toString(), path.getSegments().get(i).toString());
+		}
+	}
+}
@@ -0,0 +1,36 @@
+package org.luolamies.jgcgen.test;
+
+import java.util.List;
+
+import org.junit.Test;
+import org.luolamies.jgcgen.path.Path;
+
+import static org.junit.Assert.*;
+
+/**
+ * Path ordering tests
+ */
+public class OrderTest {
+	/** Test subpath ordering: inner loops first, loops entered at the nearest vertex */
+	public @Test void testOptimizeOrder() {
+		Path p = new Path();
+		p.addSegment("move", "x20y0z-1");
+		p.addSegment("line", "x30y0z-1");
+		p.addSegment("move", "x0y0z-1");
+		p.addSegment("line", "x10y0"); p.addSegment("line", "x10y10");
+		p.addSegment("line", "x0y10"); p.addSegment("line", "x0y0");
+		p.addSegment("move", "x4y4z-1");
+		p.addSegment("line", "x6y4"); p.addSegment("line", "x6y6");
+		p.addSegment("line", "x4y6"); p.addSegment("line", "x4y4");
+		
+		List<Path.Segment> segs = p.optimizeOrder().getSegments();
+		assertEquals(14, segs.size());
+		assertEquals("MOVE X4.000 Y4.000 Z-1.000", segs.get(0).toString());
+		assertEquals(Path.SType.SEAM, segs.get(5).type);
+		assertEquals("MOVE X10.000 Y0.000 Z-1.000", segs.get(6).toString());
+		assertEquals("LINE X10.000 Y10.000", segs.get(7).toString());
+		assertEquals("LINE X10.000 Y0.000", segs.get(10).toString());
+		assertEquals(Path.SType.SEAM, segs.get(11).type);
+		assertEquals("MOVE X20.000 Y0.000 Z-1.000", segs.get(12).toString());
+	}
+}
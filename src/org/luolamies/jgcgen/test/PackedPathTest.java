@@ -0,0 +1,151 @@
+package org.luolamies.jgcgen.test;
+
+import java.util.List;
+
+import org.junit.Test;
+import org.luolamies.jgcgen.path.Axis;
+import org.luolamies.jgcgen.path.Bounds;
+import org.luolamies.jgcgen.path.NumericCoordinate;
+import org.luolamies.jgcgen.path.PackedPath;
+import org.luolamies.jgcgen.path.Path;
+
+import static org.junit.Assert.*;
+
+/**
+ * Packed path storage tests
+ */
+public class PackedPathTest {
+	/** Fill a path with a mix of segments */
+	static private void fill(Path p) {
+		p.addSegment("move", "x0y0z1");
+		p.addSegment("line", "x1.5y-2z0");
+		p.addSegment("line", "z-1");
+		p.addSegment("cwarc", "x2y2i1j0");
+		p.addSegment(Path.SType.SEAM, null, "part2");
+		p.addSegment("line", "x#1y[#2+1]");
+		p.addSegment("line", "x3y3z3");
+	}
+	
+	/** A packed path must look exactly like a normal path */
+	public @Test void testSameSegments() {
+		Path p = new Path();
+		Path pp = new PackedPath();
+		fill(p);
+		fill(pp);
+		checkPath(p, pp);
+		checkPath(p.offset("x1y1"), pp.offset("x1y1"));
+		checkPath(p.scale("2"), pp.scale("2"));
+		checkPath(p.getNamedSubpath("part2"), pp.getNamedSubpath("part2"));
+	}
+	
+	/** Primitive appends and the packed offset and scale */
+	public @Test void testNumeric() {
+		Path p = new Path();
+		PackedPath pp = new PackedPath();
+		p.addSegment("move", "x0y0z1");
+		pp.addSegment(Path.SType.MOVE, 0, 0, 1);
+		p.addSegment("line", "x1y2");
+		pp.addSegment(Path.SType.LINE, 1, 2, Double.NaN);
+		
+		checkPath(p, pp);
+		checkPath(p.offset("x1z-1"), pp.offset("x1z-1"));
+		checkPath(p.scale("-0.5"), pp.scale("-0.5"));
+		
+		Path joined = new PackedPath();
+		joined.addPath(pp);
+		joined.addPath(pp.offset("x10"));
+		Path expected = new Path();
+		expected.addPath(p);
+		expected.addPath(p.offset("x10"));
+		checkPath(expected, joined);
+	}
+	
+	/** Chained transformations and modifying the transformed paths */
+	public @Test void testTransformChain() {
+		Path[] paths = { new Path(), new PackedPath() };
+		for(Path p : paths) {
+			p.addSegment("move", "x1y0z1");
+			p.addSegment(Path.SType.SEAM, null);
+			p.addSegment("line", "x2y0");
+			
+			Path t = p.scale("2").rotate("z90").offset("x1");
+			checkPoint(t, 0, 1, 2, 2);
+			checkPoint(t, 2, 1, 4, 2);
+			assertNull(t.getSegments().get(1).point);
+			
+			// Flattening is applied to the rotated values
+			checkPoint(t.flatten("z", "-1"), 2, 1, 4, -1);
+			
+			// The paths do not share modifications
+			p.addSegment("line", "x3");
+			assertEquals(3, t.getSize());
+			t.addSegment("line", "x0");
+			assertEquals(4, t.getSize());
+			assertEquals(4, p.getSize());
+			checkPoint(t, 2, 1, 4, 2);
+		}
+	}
+	
+	/** Bounds are kept up to date and derived for transformed paths */
+	public @Test void testBounds() {
+		Path[] paths = { new Path(), new PackedPath() };
+		for(Path p : paths) {
+			p.addSegment("move", "x1y-1");
+			p.addSegment("line", "x3y2z-1");
+			Bounds b = p.getBounds();
+			assertEquals(2, b.getSize(Axis.X), 0);
+			assertEquals(-1, b.getMin(Axis.Z), 0);
+			assertEquals(0, b.getSize(Axis.Z), 0);
+			assertFalse(b.isDefined(Axis.A));
+			
+			b = p.scale("-2").offset("y1").getBounds();
+			assertEquals(-6, b.getMin(Axis.X), 0);
+			assertEquals(-2, b.getMax(Axis.X), 0);
+			assertEquals(-3, b.getMin(Axis.Y), 0);
+			assertEquals(3, b.getMax(Axis.Y), 0);
+			
+			p.addPath(p.rotate("z180"));
+			assertEquals(6, p.getDimension(Axis.X), 1e-9);
+			assertEquals(0, p.getDimension(Axis.A), 0);
+		}
+	}
+	
+	/** Appended paths are linked, but modifications stay separate */
+	public @Test void testLinkedPaths() {
+		Path big = new Path();
+		for(int i=0;i<100;++i)
+			big.addSegment(i==0 ? "move" : "line", "x" + i);
+		
+		Path joined = new Path();
+		joined.addSegment("move", "y1");
+		joined.addPath(big);
+		joined.merge(big);
+		big.addSegment("line", "y2");
+		joined.addSegment("line", "z3");
+		
+		assertEquals(101, big.getSize());
+		assertEquals(1 + 1 + 100 + 100 + 1, joined.getSize());
+		List<Path.Segment> segs = joined.getSegments();
+		assertEquals(Path.SType.SEAM, segs.get(1).type);
+		assertEquals("MOVE X0.000", segs.get(2).toString());
+		assertEquals("LINE X99.000", segs.get(101).toString());
+		assertEquals("LINE X0.000", segs.get(102).toString());
+		assertEquals("LINE X99.000", segs.get(201).toString());
+		assertEquals("LINE Z3.000", segs.get(202).toString());
+		assertEquals(99, joined.getDimension(Axis.X), 0);
+	}
+	
+	static private void checkPoint(Path path, int i, double x, double y, double z) {
+		NumericCoordinate c = (NumericCoordinate)path.getSegments().get(i).point;
+		assertEquals(x, c.getValue(Axis.X), 1e-9);
+		assertEquals(y, c.getValue(Axis.Y), 1e-9);
+		assertEquals(z, c.getValue(Axis.Z), 1e-9);
+	}
+	
+	static private void checkPath(Path expected, Path actual) {
+		List<Path.Segment> e = expected.getSegments(), a = actual.getSegments();
+		assertEquals(e.size(), a.size());
+		for(int i=0;i<e.size();++i)
+			assertEquals(e.get(i).toString(), a.get(i).toString());
+	}
+}
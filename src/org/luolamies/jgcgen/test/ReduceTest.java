@@ -1,6 +1,11 @@
 package org.luolamies.jgcgen.test;
 
+import java.util.List;
+
 import org.junit.Test;
+import org.luolamies.jgcgen.path.Axis;
+import org.luolamies.jgcgen.path.Coordinate;
+import org.luolamies.jgcgen.path.NumericCoordinate;
 import org.luolamies.jgcgen.path.Path;
 
 import static org.junit.Assert.*;
@@ -75,6 +80,55 @@ public class ReduceTest {
 		checkPath(simple, p);
 	}
 	
+	/** Test tolerance and segments that must be kept */
+	public @Test void testReduceTolerance() {
+		Path p = new Path();
+		p.addSegment("move", "x0y0z0");
+		p.addSegment("line", "x1y0.002z0"); p.addSegment("line", "x2y-0.002z0"); p.addSegment("line", "x3y0z0");
+		p.addSegment(Path.SType.LINE, Coordinate.parse("x4y0.002z0"), "label");
+		p.addSegment("line", "x5y0z0");
+		p.addSegment(Path.SType.SEAM, null, "seam");
+		p.addSegment("line", "x6y0.002z0"); p.addSegment("line", "x7y0z0");
+		
+		Path simple = new Path();
+		simple.addSegment("move", "x0y0z0");
+		simple.addSegment("line", "x3y0z0");
+		simple.addSegment(Path.SType.LINE, Coordinate.parse("x4y0.002z0"), "label");
+		simple.addSegment("line", "x5y0z0");
+		simple.addSegment(Path.SType.SEAM, null, "seam");
+		simple.addSegment("line", "x7y0z0");
+		
+		checkPath(simple, p.reduce(0.005));
+		checkPath(p, p.reduce(0.001));
+	}
+	
+	/** Test arc fitting with a polygon approximating a circle */
+	public @Test void testFitArcs() {
+		Path p = new Path();
+		p.addSegment(Path.SType.MOVE, new NumericCoordinate(10.0, 0.0, -1.0));
+		for(int i=1;i<=90;++i) {
+			double a = Math.toRadians(i * 3);
+			p.addSegment(Path.SType.LINE, new NumericCoordinate(10 * Math.cos(a), 10 * Math.sin(a), -1.0));
+		}
+		p.addSegment(Path.SType.LINE, new NumericCoordinate(0.0, 20.0, -1.0));
+		
+		Path arcs = p.fitArcs(0.01);
+		
+		List<Path.Segment> segs = arcs.getSegments();
+		assertTrue(segs.size() < 10);
+		assertEquals(Path.SType.MOVE, segs.get(0).type);
+		for(int i=1;i<segs.size()-1;++i) {
+			Path.Segment s = segs.get(i);
+			assertEquals(Path.SType.CCWARC, s.type);
+			NumericCoordinate c = (NumericCoordinate)s.point;
+			NumericCoordinate prev = (NumericCoordinate)segs.get(i-1).point;
+			// Center should be close to the origin
+			assertEquals(0.0, prev.getValue(Axis.X) + c.getValue(Axis.I), 0.1);
+			assertEquals(0.0, prev.getValue(Axis.Y) + c.getValue(Axis.J), 0.1);
+		}
+		assertEquals("LINE X0.000 Y20.000 Z-1.000", segs.get(segs.size()-1).toString());
+	}
+	
 	private void checkPath(Path expected, Path path) {
 		assertEquals(expected.getSize(), path.getSize());
 		for(int i=0;i<expected.getSize();++i) {
@@ -0,0 +1,87 @@
+package org.luolamies.jgcgen.test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.velocity.VelocityContext;
+import org.junit.Test;
+import org.luolamies.jgcgen.path.Path;
+import org.luolamies.jgcgen.routers.R3axis;
+
+import static org.junit.Assert.*;
+
+/**
+ * 3axis router tests
+ */
+public class RouterTest {
+	static private final Pattern WORD = Pattern.compile("([GXYZIJ])(-?[0-9.]+)");
+	
+	/** Compact output must cut exactly what the normal output cuts */
+	public @Test void testCompact() throws IOException {
+		Path p = new Path();
+		p.addSegment("move", "x0y0z-1");
+		p.addSegment("line", "x10");
+		p.addSegment("line", "y10");
+		// A dab: a rapid with its own depth followed by another rapid
+		p.addSegment("move", "x20y0z-2");
+		p.addSegment("move", "x30y0z-1");
+		p.addSegment(Path.SType.SEAM, null, null);
+		p.addSegment("cwarc", "x40y0i5");
+		p.addSegment("line", "x40y5");
+		
+		String normal = render(p, false);
+		String compact = render(p, true);
+		assertTrue(compact.length() < normal.length());
+		assertEquals(cuts(normal), cuts(compact));
+		assertTrue(cuts(compact).contains("G1 X20.000 Y0.000 Z-2.000"));
+	}
+	
+	private String render(Path path, boolean compact) throws IOException {
+		VelocityContext ctx = new VelocityContext();
+		ctx.put("safe_z", "5");
+		ctx.put("near_z", "1");
+		ctx.put("rapidnear", "false");
+		ctx.put("default_f", "600");
+		ctx.put("plunge_f", "100");
+		ctx.put("decimals", "3");
+		ctx.put("compact", Boolean.toString(compact));
+		StringWriter out = new StringWriter();
+		new R3axis(ctx).toGcode(out, path, null);
+		return out.toString();
+	}
+	
+	/**
+	 * Follow the modal state and list the positions of the feed rate moves
+	 */
+	private List<String> cuts(String gcode) {
+		List<String> cuts = new ArrayList<String>();
+		int mode = -1;
+		String x=null, y=null, z=null;
+		for(String line : gcode.split("\n")) {
+			Matcher m = WORD.matcher(line.replaceAll("\\(.*?\\)", ""));
+			boolean moved = false;
+			String ij = "";
+			while(m.find()) {
+				char w = m.group(1).charAt(0);
+				if(w=='G')
+					mode = (int)Double.parseDouble(m.group(2));
+				else if(w=='X')
+					x = m.group(2);
+				else if(w=='Y')
+					y = m.group(2);
+				else if(w=='Z')
+					z = m.group(2);
+				else
+					ij += " " + m.group();
+				moved |= w!='G';
+			}
+			if(moved && mode>0)
+				cuts.add("G" + mode + " X" + x + " Y" + y + " Z" + z + ij);
+		}
+		return cuts;
+	}
+}
@@ -0,0 +1,45 @@
+package org.luolamies.jgcgen.test;
+
+import org.junit.Test;
+import org.luolamies.jgcgen.path.Axis;
+import org.luolamies.jgcgen.path.Coordinate;
+import org.luolamies.jgcgen.path.Path;
+import org.luolamies.jgcgen.path.PathStats;
+
+import static org.junit.Assert.*;
+
+/**
+ * Path statistics tests
+ */
+public class StatsTest {
+	/** Test path statistics and the time estimate */
+	public @Test void testStats() {
+		Path p = new Path();
+		p.addSegment("move", "x0y0z-1");
+		p.addSegment("line", "x100y0z-1");
+		
+		PathStats s = p.stats();
+		s.setFeed(600);
+		s.setPlungeFeed(60);
+		s.setSafeZ(5);
+		s.setNearZ(1);
+		assertEquals(102.0, s.getCutLength(), 1e-9);
+		assertEquals(10.0, s.getRapidLength(), 1e-9);
+		assertEquals(1, s.getSegments());
+		assertEquals(100.0, s.getMinSegmentLength(), 1e-9);
+		// plunge 2s, line 10s and rapids 10 units at 2000/min
+		assertEquals(12.3, s.getTime(), 1e-9);
+		
+		// Acceleration adds the ramps
+		s.setAcceleration(100);
+		assertEquals(2.01 + 10.1 + 0.4 + 2*Math.sqrt(600)/100, s.getTime(), 1e-9);
+		
+		// A full circle. Heights are not known, so the plunge is not counted.
+		p.addSegment(Path.SType.CWARC, Coordinate.parse("x100y0i10"));
+		s = p.stats();
+		assertEquals(100.0 + 20*Math.PI, s.getCutLength(), 1e-9);
+		assertTrue(Double.isNaN(s.getTime()));
+		assertEquals(120.0, s.getBounds().getMax(Axis.X), 1e-9);
+		assertEquals(-10.0, s.getBounds().getMin(Axis.Y), 1e-9);
+	}
+}
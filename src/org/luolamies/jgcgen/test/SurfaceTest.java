@@ -0,0 +1,65 @@
+package org.luolamies.jgcgen.test;
+
+import java.io.File;
+import java.util.Random;
+
+import org.junit.Test;
+import org.luolamies.jgcgen.Files;
+import org.luolamies.jgcgen.shapes.surface.Image;
+import org.luolamies.jgcgen.shapes.surface.Surface;
+import org.luolamies.jgcgen.tools.Tool;
+
+import static org.junit.Assert.*;
+
+/**
+ * Surface tests
+ */
+public class SurfaceTest {
+	/**
+	 * The image tool depth lookup must give exactly the same results as
+	 * the straightforward scanning loop.
+	 */
+	@Test public void testImageToolDepth() {
+		Files.setWorkdir(new File("doc/samples"));
+		// ball.png is 256 pixels wide, so this is 0.05 mm per pixel
+		Surface s = new Image(null).file("ball.png").size(12.75, 12.75).height(5).getSurface();
+		assertEquals(0.05, s.getResolution(), 1e-12);
+		
+		Random r = new Random(1);
+		for(String def : new String[] {"3 flat", "3 ball", "3 v 60", "0.02 ball"}) {
+			Tool tool = Tool.get(def);
+			for(int i=0;i<20000;++i) {
+				double x = r.nextDouble() * 14 - 0.5;
+				double y = -r.nextDouble() * 14 + 0.5;
+				assertEquals(def + " at " + x + "," + y, scan(s, x, y, tool), s.getDepthAt(x, y, tool), 0);
+			}
+		}
+	}
+	
+	/**
+	 * The reference lookup
+	 */
+	private static double scan(Surface s, double cx, double cy, Tool tool) {
+		final double rad = tool.getRadius();
+		double res = s.getResolution() / 2;
+		final double minx = cx-rad, miny = cy-rad;
+		final double maxx = cx+rad, maxy = cy+rad;
+		double maxz = -s.getMaxZ();
+		
+		if(2*rad < res)
+			res = rad / 2; 
+		
+		final double radrad = rad*rad;
+		for(double y=miny;y<maxy;y+=res) {
+			for(double x=minx;x<maxx;x+=res) {
+				double rr = (x-cx)*(x-cx) + (y-cy)*(y-cy); 
+				if(rr <= radrad) {
+					double v = s.getDepthAt(x,y) - tool.getProfile(rr);
+					if(v>maxz)
+						maxz = v;
+				}
+			}
+		}
+		return maxz;
+	}
+}
@@ -52,4 +52,20 @@ public abstract class Tool {
 	 * @return Z offset
 	 */
 	public abstract double getProfile(double rr);
+	
+	/**
+	 * Two tools are equal if they are of the same type and have the same dimensions.
+	 */
+	@Override
+	public boolean equals(Object obj) {
+		if(obj==null || obj.getClass() != getClass())
+			return false;
+		return ((Tool)obj).diameter == diameter;
+	}
+	
+	@Override
+	public int hashCode() {
+		long bits = Double.doubleToLongBits(diameter);
+		return getClass().hashCode() ^ (int)(bits ^ (bits >>> 32));
+	}
 }
@@ -22,5 +22,15 @@ public class Vbit extends Tool {
 	public double getProfile(double rr) {
 		return Math.sqrt(rr) * a;
 	}
+	
+	@Override
+	public boolean equals(Object obj) {
+		return super.equals(obj) && ((Vbit)obj).a == a;
+	}
+	
+	@Override
+	public int hashCode() {
+		return super.hashCode() ^ Double.valueOf(a).hashCode();
+	}
 
 }